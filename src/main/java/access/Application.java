@@ -18,6 +18,8 @@ package access;
 import java.lang.reflect.Method;
 import java.util.concurrent.Executor;
 
+import javax.annotation.PreDestroy;
+
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
@@ -33,8 +35,13 @@ import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 @SpringBootApplication
 @Configuration
@@ -60,7 +67,10 @@ public class Application extends SpringBootServletInitializer implements AsyncCo
 	public RestTemplate restTemplate() {
 		RestTemplate restTemplate = new RestTemplate();
 		HttpClient httpClient = HttpClientBuilder.create().setMaxConnTotal(httpMaxTotal).setMaxConnPerRoute(httpMaxRoute).build();
-		restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+		// Stream request bodies rather than buffering them, so that uploads of large files are not held in memory
+		requestFactory.setBufferRequestBody(false);
+		restTemplate.setRequestFactory(requestFactory);
 		return restTemplate;
 	}
 
@@ -89,4 +99,73 @@ public class Application extends SpringBootServletInitializer implements AsyncCo
 			}
 		};
 	}
+
+	/**
+	 * Configures the asynchronous request handling used by streamed responses. Streaming bodies run on a bounded pool
+	 * rather than Spring's default executor, which spawns a new thread per request, and are given an explicit timeout
+	 * so that the container does not cut long downloads short at its own default.
+	 */
+	@Configuration
+	public static class AsyncMvcConfiguration extends WebMvcConfigurerAdapter {
+		@Value("${mvc.async.timeout.millis}")
+		private long asyncTimeoutMillis;
+		@Value("${mvc.async.thread.count.size}")
+		private int asyncThreadCountSize;
+		@Value("${mvc.async.thread.count.limit}")
+		private int asyncThreadCountLimit;
+		@Value("${mvc.async.queue.capacity}")
+		private int asyncQueueCapacity;
+
+		private ThreadPoolTaskExecutor asyncExecutor;
+
+		@Override
+		public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+			// Not exposed as a bean, so that autowiring of the application's task executor stays unambiguous
+			asyncExecutor = new ThreadPoolTaskExecutor();
+			asyncExecutor.setCorePoolSize(asyncThreadCountSize);
+			asyncExecutor.setMaxPoolSize(asyncThreadCountLimit);
+			asyncExecutor.setQueueCapacity(asyncQueueCapacity);
+			asyncExecutor.setThreadNamePrefix("mvc-async-");
+			asyncExecutor.initialize();
+			configurer.setDefaultTimeout(asyncTimeoutMillis);
+			configurer.setTaskExecutor(asyncExecutor);
+		}
+
+		@PreDestroy
+		public void shutdown() {
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Configures the scheduler that runs scheduled tasks. Spring's default scheduler has a single thread, on which the
+	 * nightly reaping of expired leases would hold up the heartbeat that renews the Deployment locks, letting their
+	 * leases lapse during long deployments.
+	 */
+	@Configuration
+	public static class SchedulingConfiguration implements SchedulingConfigurer {
+		@Value("${scheduler.thread.count}")
+		private int schedulerThreadCount;
+
+		private ThreadPoolTaskScheduler scheduler;
+
+		@Override
+		public void configureTasks(ScheduledTaskRegistrar registrar) {
+			// Not exposed as a bean, as with the asynchronous request executor
+			scheduler = new ThreadPoolTaskScheduler();
+			scheduler.setPoolSize(Math.max(2, schedulerThreadCount));
+			scheduler.setThreadNamePrefix("scheduler-");
+			scheduler.initialize();
+			registrar.setTaskScheduler(scheduler);
+		}
+
+		@PreDestroy
+		public void shutdown() {
+			if (scheduler != null) {
+				scheduler.shutdown();
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.cache.CachedContent;
+import access.cache.ContentCache;
+import access.database.Accessor;
+import access.export.ExportFormat;
+import access.export.FeatureWriter;
+import access.util.AccessUtilities;
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.FolderShare;
+import model.data.type.PostGISDataType;
+import model.data.type.TextDataType;
+
+/**
+ * Writes the files of many Data Resources into one ZIP archive, built while it is streamed to the client.
+ * 
+ * <p>
+ * Files held in S3 are fetched ahead of the entry being written, a bounded number at a time, so that the latency of
+ * each fetch is hidden behind the writing of the entries before it. Each fetch holds at most a few buffers of its file;
+ * once they are full, it waits for the archive to catch up, holding its thread. So that archives streamed to slow
+ * clients cannot take every thread, only as many archives as there are full windows of threads fetch ahead at once;
+ * any others fetch each file when its entry is written. Files already on local disk (in a folder share or the
+ * Content Cache) are opened as they enter the window, and read when their entry is written. Vector data held only in
+ * PostGIS is added as GeoJSON.
+ * </p>
+ * 
+ * <p>
+ * Files that are already compressed, such as GeoTIFFs and images, are not compressed again. If the file is on local
+ * disk, it is written as a STORED entry; otherwise its checksum is not known before it is written, so it is written
+ * without compression in a DEFLATED entry.
+ * </p>
+ */
+@Component
+public class BulkDownloader {
+	@Value("${bulk.prefetch.threads}")
+	private int THREADS;
+	@Value("${bulk.prefetch.window}")
+	private int PREFETCH_WINDOW;
+	@Value("${bulk.prefetch.buffers}")
+	private int PREFETCH_BUFFERS;
+	@Value("${bulk.max.items}")
+	private int MAX_ITEMS;
+
+	private static final List<String> COMPRESSED_EXTENSIONS = Arrays.asList("tif", "tiff", "jp2", "png", "jpg", "jpeg", "gif",
+			"zip", "gz", "tgz", "bz2", "xz", "7z");
+
+	@Autowired
+	private Accessor accessor;
+	@Autowired
+	private AccessUtilities accessUtilities;
+	@Autowired
+	private ContentCache contentCache;
+
+	private ExecutorService executor;
+	private Semaphore prefetchPermits;
+	private final AtomicLong archives = new AtomicLong();
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+
+	@PostConstruct
+	private void initialize() {
+		executor = Executors.newFixedThreadPool(THREADS);
+		prefetchPermits = new Semaphore(Math.max(1, THREADS / Math.max(1, PREFETCH_WINDOW)));
+	}
+
+	@PreDestroy
+	private void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return The largest number of Data Resources that may be downloaded in one archive
+	 */
+	public int getMaxItems() {
+		return MAX_ITEMS;
+	}
+
+	/**
+	 * Determines if a Data Resource can be added to an archive.
+	 * 
+	 * @param data
+	 *            The Data Resource
+	 * @return True if the resource is a file, text, or vector data held in PostGIS
+	 */
+	public boolean isSupported(DataResource data) {
+		return (data.getDataType() instanceof FileRepresentation) || (data.getDataType() instanceof TextDataType)
+				|| (data.getDataType() instanceof PostGISDataType);
+	}
+
+	/**
+	 * Writes the archive. Each Data Resource is written to an entry named after its Data Id, with the extension of its
+	 * file.
+	 * 
+	 * @param dataResources
+	 *            The Data Resources to write, in order. Each must be supported; see {@link #isSupported(DataResource)}.
+	 * @param outputStream
+	 *            The stream to write the archive to. Not closed by this method.
+	 */
+	public void write(List<DataResource> dataResources, OutputStream outputStream) throws IOException {
+		archives.incrementAndGet();
+		// Closed only once the archive is complete, so that a failed archive is left without a central directory
+		ZipOutputStream zipStream = new ZipOutputStream(new CloseShieldOutputStream(outputStream));
+		// The open local copies and the fetches of the files, by position in the archive
+		List<FileChannel> localFiles = new ArrayList<FileChannel>();
+		List<PrefetchInputStream> fetches = new ArrayList<PrefetchInputStream>();
+		// Without a permit, no fetch is started ahead, and each file is fetched on this thread
+		boolean prefetch = prefetchPermits.tryAcquire();
+		int window = prefetch ? PREFETCH_WINDOW : 1;
+		try {
+			for (int i = 0; i < dataResources.size(); i++) {
+				// Keep the window of fetches ahead of the entry being written full
+				while ((fetches.size() < dataResources.size()) && (fetches.size() < i + window)) {
+					DataResource data = dataResources.get(fetches.size());
+					FileChannel localFile = openLocalFile(data);
+					localFiles.add(localFile);
+					fetches.add(((localFile == null) && prefetch) ? startFetch(data) : null);
+				}
+				writeEntry(zipStream, dataResources.get(i), localFiles.get(i), fetches.get(i));
+				localFiles.set(i, null);
+				fetches.set(i, null);
+				entries.incrementAndGet();
+			}
+			zipStream.close();
+		} finally {
+			// Release any files left open and fetches left running by a failed archive
+			for (FileChannel localFile : localFiles) {
+				if (localFile != null) {
+					localFile.close();
+				}
+			}
+			for (PrefetchInputStream fetch : fetches) {
+				if (fetch != null) {
+					fetch.close();
+				}
+			}
+			if (prefetch) {
+				prefetchPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of archives and entries written, and of files fetched ahead of their entry.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("archives", archives.get());
+		statistics.put("entries", entries.get());
+		statistics.put("prefetched", prefetched.get());
+		return statistics;
+	}
+
+	/**
+	 * Starts fetching the file of a Data Resource, if it is a file.
+	 * 
+	 * @return The fetch, or null if the resource is not a file
+	 */
+	private PrefetchInputStream startFetch(DataResource data) {
+		if (!(data.getDataType() instanceof FileRepresentation)) {
+			return null;
+		}
+		final FileLocation fileLocation = ((FileRepresentation) data.getDataType()).getLocation();
+		PrefetchInputStream fetch = new PrefetchInputStream(PREFETCH_BUFFERS, AccessUtilities.STREAM_BUFFERS);
+		fetch.start(executor, () -> accessUtilities.getFileStream(fileLocation));
+		prefetched.incrementAndGet();
+		return fetch;
+	}
+
+	/**
+	 * Writes the entry of one Data Resource.
+	 * 
+	 * @param localFile
+	 *            The open local copy of the resource's file, if there is one. Closed once it has been written.
+	 * @param fetch
+	 *            The fetch of the resource's file, if it is not held locally and was fetched ahead
+	 */
+	private void writeEntry(ZipOutputStream zipStream, DataResource data, FileChannel localFile, PrefetchInputStream fetch)
+			throws IOException {
+		String dataId = data.getDataId();
+		if (data.getDataType() instanceof TextDataType) {
+			byte[] content = ((TextDataType) data.getDataType()).getContent().getBytes(StandardCharsets.UTF_8);
+			putEntry(zipStream, dataId + ".txt", true);
+			zipStream.write(content);
+		} else if (data.getDataType() instanceof PostGISDataType) {
+			putEntry(zipStream, dataId + "." + ExportFormat.GEOJSON.getExtension(), true);
+			writeFeatures(((PostGISDataType) data.getDataType()).getTable(), zipStream);
+		} else {
+			FileLocation fileLocation = ((FileRepresentation) data.getDataType()).getLocation();
+			String extension = FilenameUtils.getExtension(fileLocation.getFileName());
+			String name = extension.isEmpty() ? dataId : String.format("%s.%s", dataId, extension);
+			boolean compress = !COMPRESSED_EXTENSIONS.contains(extension.toLowerCase());
+			if (localFile != null) {
+				writeLocalEntry(zipStream, name, compress, localFile);
+			} else {
+				putEntry(zipStream, name, compress);
+				if (fetch != null) {
+					AccessUtilities.copyStream(fetch, zipStream);
+					fetch.close();
+				} else {
+					fetchFile(fileLocation, zipStream);
+				}
+			}
+		}
+		zipStream.closeEntry();
+	}
+
+	/**
+	 * Begins a DEFLATED entry, at the default compression level or without compression.
+	 */
+	private void putEntry(ZipOutputStream zipStream, String name, boolean compress) throws IOException {
+		zipStream.setLevel(compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+		zipStream.putNextEntry(new ZipEntry(name));
+	}
+
+	/**
+	 * Writes a file on local disk, and closes it. A file that is already compressed is written as a STORED entry; its
+	 * checksum is read from the file first, which is cheap as the file is then in the page cache when it is copied.
+	 */
+	private void writeLocalEntry(ZipOutputStream zipStream, String name, boolean compress, FileChannel fileChannel)
+			throws IOException {
+		try {
+			long length = fileChannel.size();
+			if (compress) {
+				putEntry(zipStream, name, true);
+			} else {
+				ZipEntry entry = new ZipEntry(name);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(length);
+				entry.setCompressedSize(length);
+				entry.setCrc(AccessUtilities.getChecksum(fileChannel));
+				zipStream.putNextEntry(entry);
+			}
+			AccessUtilities.transferFile(fileChannel, 0, length, Channels.newChannel(zipStream));
+		} finally {
+			fileChannel.close();
+		}
+	}
+
+	/**
+	 * Fetches a file and copies it to the archive, on the thread writing the archive.
+	 */
+	private void fetchFile(FileLocation fileLocation, ZipOutputStream zipStream) throws IOException {
+		InputStream inputStream;
+		try {
+			inputStream = accessUtilities.getFileStream(fileLocation);
+		} catch (IOException exception) {
+			throw exception;
+		} catch (Exception exception) {
+			throw new IOException(exception);
+		}
+		try {
+			AccessUtilities.copyStream(inputStream, zipStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Writes the features of a PostGIS table as a GeoJSON FeatureCollection.
+	 */
+	private void writeFeatures(String tableName, ZipOutputStream zipStream) throws IOException {
+		SimpleFeatureSource featureSource;
+		try {
+			featureSource = accessor.getPostGisDataStore().getFeatureSource(tableName);
+		} catch (IOException exception) {
+			throw exception;
+		} catch (Exception exception) {
+			throw new IOException(exception);
+		}
+		// The writer must not close the archive
+		try (FeatureWriter featureWriter = ExportFormat.GEOJSON.createWriter(new CloseShieldOutputStream(zipStream), null, null)) {
+			featureWriter.writeStart(featureSource.getSchema());
+			SimpleFeatureIterator iterator = featureSource.getFeatures().features();
+			try {
+				while (iterator.hasNext()) {
+					featureWriter.writeFeature(iterator.next());
+				}
+			} finally {
+				iterator.close();
+			}
+			featureWriter.writeEnd();
+		}
+	}
+
+	/**
+	 * Opens the local copy of the file of a Data Resource, if there is one: the file itself in a folder share, or the
+	 * copy held in the Content Cache. The file is opened when it is looked up, so that the copy remains readable even if
+	 * the cache evicts it before its entry is written.
+	 * 
+	 * @return The open local file, or null if the resource is not a file, or the file must be fetched
+	 */
+	private FileChannel openLocalFile(DataResource data) throws IOException {
+		if (!(data.getDataType() instanceof FileRepresentation)) {
+			return null;
+		}
+		FileLocation fileLocation = ((FileRepresentation) data.getDataType()).getLocation();
+		if (fileLocation instanceof FolderShare) {
+			return FileChannel.open(Paths.get(((FolderShare) fileLocation).filePath), StandardOpenOption.READ);
+		}
+		CachedContent cachedContent = contentCache.get(data.getDataId(), fileLocation);
+		if (cachedContent == null) {
+			return null;
+		}
+		try {
+			return FileChannel.open(cachedContent.getFile().toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException exception) {
+			// Evicted since it was found; fetch the file instead
+			return null;
+		}
+	}
+}
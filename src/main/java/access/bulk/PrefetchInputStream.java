@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import access.util.BufferPool;
+
+/**
+ * A stream read ahead of its reader by a background task. The task opens the source stream and reads it into a
+ * bounded queue of buffers; once the queue is full, the task waits for the reader to take a buffer. At most the queued
+ * buffers, plus the one being filled and the one being read, are held in memory. The buffers are taken from a
+ * {@link BufferPool}, and returned to it once they have been read.
+ */
+class PrefetchInputStream extends InputStream {
+	// Queued after the last buffer, whether the source ended or failed
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final BufferPool bufferPool;
+	private volatile boolean closed = false;
+	private volatile Exception failure;
+	private Future<?> task;
+	private ByteBuffer current;
+	private boolean ended = false;
+
+	/**
+	 * @param bufferCount
+	 *            The number of buffers that may be read ahead
+	 * @param bufferPool
+	 *            The pool of heap buffers to read into
+	 */
+	PrefetchInputStream(int bufferCount, BufferPool bufferPool) {
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, bufferCount));
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Starts reading the source ahead.
+	 * 
+	 * @param executor
+	 *            The executor to read on
+	 * @param opener
+	 *            Opens the source stream. The stream is closed once it has been read.
+	 */
+	void start(ExecutorService executor, final Callable<InputStream> opener) {
+		task = executor.submit(() -> fetch(opener));
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while ((current == null) || !current.hasRemaining()) {
+			if (ended) {
+				return -1;
+			}
+			if (current != null) {
+				bufferPool.release(current);
+			}
+			current = take();
+			if (current == END) {
+				ended = true;
+				if (failure != null) {
+					throw (failure instanceof IOException) ? (IOException) failure : new IOException(failure);
+				}
+			}
+		}
+		int count = Math.min(length, current.remaining());
+		current.get(bytes, offset, count);
+		return count;
+	}
+
+	/**
+	 * Stops the read ahead, and returns its buffers to the pool.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (task != null) {
+			task.cancel(true);
+		}
+		if ((current != null) && (current != END)) {
+			bufferPool.release(current);
+		}
+		current = null;
+		ended = true;
+		ByteBuffer buffer;
+		while ((buffer = buffers.poll()) != null) {
+			if (buffer != END) {
+				bufferPool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Takes the next buffer, waiting for the task to read it.
+	 */
+	private ByteBuffer take() throws IOException {
+		try {
+			while (true) {
+				ByteBuffer buffer = buffers.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (buffer != null) {
+					return buffer;
+				}
+				if (task.isDone() && buffers.isEmpty()) {
+					// The task was stopped before it could mark the end of the source
+					throw new IOException("The read ahead of the file stopped before the end of the file.");
+				}
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the read ahead of the file.");
+		}
+	}
+
+	/**
+	 * Reads the source into the queue, in full buffers but for the last.
+	 */
+	private void fetch(Callable<InputStream> opener) {
+		try (InputStream inputStream = opener.call()) {
+			boolean more = true;
+			while (more && !closed) {
+				ByteBuffer buffer = bufferPool.acquire();
+				byte[] bytes = buffer.array();
+				int length = 0;
+				int read;
+				while ((length < bytes.length) && ((read = inputStream.read(bytes, length, bytes.length - length)) != -1)) {
+					length += read;
+				}
+				more = (length == bytes.length);
+				buffer.limit(length);
+				if ((length == 0) || !put(buffer)) {
+					bufferPool.release(buffer);
+					if (length > 0) {
+						return;
+					}
+				}
+			}
+		} catch (Exception exception) {
+			failure = exception;
+		}
+		put(END);
+	}
+
+	/**
+	 * Queues a buffer, waiting while the queue is full.
+	 * 
+	 * @return False if the stream was closed, or the task interrupted, before the buffer could be queued
+	 */
+	private boolean put(ByteBuffer buffer) {
+		try {
+			while (!closed) {
+				if (buffers.offer(buffer, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+}
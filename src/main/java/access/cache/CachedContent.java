@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.io.File;
+
+import access.util.StoredFileInfo;
+
+/**
+ * A local copy of a stored file held by the Content Cache, along with the description of the original stored file.
+ */
+public class CachedContent {
+	private File file;
+	private StoredFileInfo info;
+
+	/**
+	 * @param file
+	 *            The local copy of the file
+	 * @param info
+	 *            The length and validators of the original stored file
+	 */
+	public CachedContent(File file, StoredFileInfo info) {
+		this.file = file;
+		this.info = info;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public StoredFileInfo getInfo() {
+		return info;
+	}
+}
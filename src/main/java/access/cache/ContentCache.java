@@ -0,0 +1,510 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.util.AccessUtilities;
+import access.util.StoredFileInfo;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+
+/**
+ * Local disk cache of file content fetched from the S3 blobstore. Files are keyed by their Data Id and S3 location, and
+ * are evicted in least-recently-used order once the configured byte budget is exceeded. The description of the
+ * original S3 object (length, ETag and modification time) is kept with each file, so a cached file can be served
+ * without contacting S3.
+ * 
+ * <p>
+ * Only one fetch of each file is in flight at a time. Concurrent callers either wait for the fetch in flight and are
+ * then served from the cached copy, or follow it, reading the file as it is written. If the fetch is abandoned, they
+ * fetch the file themselves; only an error reading the file is passed on to them.
+ * </p>
+ * 
+ * <p>
+ * Files in local folder shares are not cached, as they are already on local disk.
+ * </p>
+ */
+@Component
+public class ContentCache {
+	@Value("${cache.content.directory}")
+	private String CACHE_DIRECTORY;
+	@Value("${cache.content.max.bytes}")
+	private long CACHE_MAX_BYTES;
+	@Value("${cache.content.flight.wait.seconds}")
+	private long FLIGHT_WAIT_SECONDS;
+
+	private static final String ETAG_ATTRIBUTE = "eTag";
+	private static final String LAST_MODIFIED_ATTRIBUTE = "lastModified";
+
+	private DiskCache diskCache;
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	@PostConstruct
+	private void initialize() {
+		diskCache = new DiskCache(new File(CACHE_DIRECTORY), CACHE_MAX_BYTES);
+	}
+
+	/**
+	 * Determines if a file should be written to the cache when it is fetched.
+	 * 
+	 * @param fileLocation
+	 *            The location of the file
+	 * @param fileInfo
+	 *            The description of the file
+	 * @return True if the file is in S3 and fits within the cache budget
+	 */
+	public boolean isCacheable(FileLocation fileLocation, StoredFileInfo fileInfo) {
+		return (fileLocation instanceof S3FileStore) && diskCache.accepts(fileInfo.getLength());
+	}
+
+	/**
+	 * Gets the cached copy of a file.
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The cached copy of the file, or null if it is not cached
+	 */
+	public CachedContent get(String dataId, FileLocation fileLocation) {
+		if (!(fileLocation instanceof S3FileStore)) {
+			return null;
+		}
+		DiskCache.Entry entry = diskCache.get(dataId, getKey(fileLocation));
+		if (entry == null) {
+			return null;
+		}
+		String eTag = entry.getAttribute(ETAG_ATTRIBUTE);
+		String lastModified = entry.getAttribute(LAST_MODIFIED_ATTRIBUTE);
+		StoredFileInfo fileInfo = new StoredFileInfo(entry.getLength(), eTag,
+				(lastModified != null) ? Long.parseLong(lastModified) : -1);
+		return new CachedContent(entry.getFile(), fileInfo);
+	}
+
+	/**
+	 * Claims the fetch of a file that is not cached. Only one fetch of each file is in flight at a time; other callers
+	 * wait for it with {@link #await(String, FileLocation)} instead of fetching the file themselves.
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The Flight the caller must complete with {@link #fill(Flight, StoredFileInfo, InputStream, OutputStream)}
+	 *         or {@link Flight#fail(Exception)}. Null if a fetch of this file is already in flight.
+	 */
+	public Flight lead(String dataId, FileLocation fileLocation) {
+		Flight flight = new Flight(dataId, getKey(fileLocation));
+		return (flights.putIfAbsent(flight.name, flight) == null) ? flight : null;
+	}
+
+	/**
+	 * Waits for the fetch of a file that is in flight, if there is one.
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The cached copy of the file once the fetch completes. Null if no fetch is in flight, if it was cancelled
+	 *         or abandoned, or if it did not complete within the wait limit, in which case the caller should fetch the
+	 *         file itself.
+	 * @throws IOException
+	 *             The error that failed reading the file in flight
+	 */
+	public CachedContent await(String dataId, FileLocation fileLocation) throws IOException {
+		if (!(fileLocation instanceof S3FileStore)) {
+			return null;
+		}
+		Flight flight = flights.get(getFlightName(dataId, getKey(fileLocation)));
+		if (flight == null) {
+			return null;
+		}
+		flight.waiters.incrementAndGet();
+		try {
+			CachedContent cachedContent = flight.result.get(FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+			coalesced.incrementAndGet();
+			return cachedContent;
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Interrupted while waiting for the file of Data %s.", dataId));
+		} catch (CancellationException | TimeoutException exception) {
+			return null;
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof CancellationException) {
+				return null;
+			} else if (exception.getCause() instanceof IOException) {
+				throw (IOException) exception.getCause();
+			}
+			throw new IOException(exception.getCause());
+		} finally {
+			flight.waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Opens a stream of a file that another caller is fetching into the cache. The stream reads the part of the file
+	 * written so far, and then waits for more as the fetch continues, so that the file can be passed on as it arrives
+	 * rather than once all of it is cached.
+	 * 
+	 * <p>
+	 * The stream ends before the end of the file if the fetch is cancelled or abandoned, or if no more of the file
+	 * arrives within the wait limit; the caller should then fetch the rest of the file itself. If the fetch fails
+	 * reading the file, that error is thrown instead.
+	 * </p>
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The stream, which the caller must close. Null if no fetch of the file is in flight.
+	 */
+	public InputStream follow(String dataId, FileLocation fileLocation) {
+		if (!(fileLocation instanceof S3FileStore)) {
+			return null;
+		}
+		Flight flight = flights.get(getFlightName(dataId, getKey(fileLocation)));
+		if (flight == null) {
+			return null;
+		}
+		flight.waiters.incrementAndGet();
+		coalesced.incrementAndGet();
+		return new FlightStream(flight);
+	}
+
+	/**
+	 * Reads the file contents from the input stream into the cache, and completes the Flight. If an output stream is
+	 * specified, the contents are written to it as they are read, so a client can be served while the cache is filled.
+	 * The cached copy only becomes visible once all of the file has been read.
+	 * 
+	 * <p>
+	 * If the leading caller goes away (its output stream fails, or its thread is interrupted) the fetch continues for
+	 * the callers waiting on the Flight. Once no caller is left, the fetch is cancelled.
+	 * </p>
+	 * 
+	 * @param flight
+	 *            The Flight claimed by the caller
+	 * @param fileInfo
+	 *            The description of the file
+	 * @param inputStream
+	 *            The stream of file contents. Not closed by this method.
+	 * @param outputStream
+	 *            Optional stream to copy the contents to as they are read. Not closed by this method.
+	 * @return The cached copy of the file
+	 */
+	public CachedContent fill(Flight flight, StoredFileInfo fileInfo, InputStream inputStream, OutputStream outputStream)
+			throws IOException {
+		DiskCache.Fill fill = null;
+		ByteBuffer pooledBuffer = null;
+		boolean committed = false;
+		IOException leaderException = null;
+		try {
+			fill = diskCache.begin(flight.dataId, flight.key);
+			flight.begin(fill.getFile());
+			OutputStream cacheStream = fill.getOutputStream();
+			boolean leaderPresent = true;
+			pooledBuffer = AccessUtilities.STREAM_BUFFERS.acquire();
+			byte[] buffer = pooledBuffer.array();
+			long length = 0;
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				if (leaderPresent && (outputStream != null)) {
+					try {
+						outputStream.write(buffer, 0, read);
+					} catch (IOException exception) {
+						leaderPresent = false;
+						leaderException = exception;
+					}
+				}
+				if (leaderPresent && Thread.currentThread().isInterrupted()) {
+					leaderPresent = false;
+					leaderException = new InterruptedIOException(
+							String.format("Interrupted while fetching the file of Data %s.", flight.dataId));
+				}
+				if (!leaderPresent && (flight.waiters.get() == 0)) {
+					// Nobody is left to receive the file
+					flight.cancel();
+					throw leaderException;
+				}
+				cacheStream.write(buffer, 0, read);
+				length += read;
+				flight.advance(length);
+			}
+			if (length != fileInfo.getLength()) {
+				throw new IOException(String.format("Expected %s bytes for cached file of Data %s, but read %s.",
+						fileInfo.getLength(), flight.dataId, length));
+			}
+
+			Map<String, String> attributes = new HashMap<String, String>();
+			attributes.put(ETAG_ATTRIBUTE, fileInfo.getETag());
+			attributes.put(LAST_MODIFIED_ATTRIBUTE, Long.toString(fileInfo.getLastModified()));
+			DiskCache.Entry entry = flight.commit(fill, attributes);
+			committed = true;
+			CachedContent cachedContent = new CachedContent(entry.getFile(), fileInfo);
+			flight.complete(cachedContent);
+			if (leaderException != null) {
+				// The waiters were served, but the leading caller's own transfer still failed
+				throw leaderException;
+			}
+			return cachedContent;
+		} catch (IOException | RuntimeException exception) {
+			flight.fail(exception);
+			throw exception;
+		} finally {
+			if (!committed && (fill != null)) {
+				flight.discard(fill);
+			}
+			AccessUtilities.STREAM_BUFFERS.release(pooledBuffer);
+		}
+	}
+
+	/**
+	 * Gets the hit, miss and eviction counters, the size of the cache, and the number of fetches in flight and of
+	 * callers that waited on another caller's fetch.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = diskCache.getStatistics();
+		statistics.put("inFlight", flights.size());
+		statistics.put("coalesced", coalesced.get());
+		return statistics;
+	}
+
+	/**
+	 * A fetch of a file into the cache that other callers can wait on.
+	 */
+	public class Flight {
+		private final String dataId;
+		private final String key;
+		private final String name;
+		private final CompletableFuture<CachedContent> result = new CompletableFuture<CachedContent>();
+		private final AtomicInteger waiters = new AtomicInteger();
+		// The file being written, then the cached file once committed. Null before the fetch starts, or once discarded.
+		private File file;
+		private long written;
+		private boolean ended;
+
+		private Flight(String dataId, String key) {
+			this.dataId = dataId;
+			this.key = key;
+			this.name = getFlightName(dataId, key);
+		}
+
+		private synchronized void begin(File file) {
+			this.file = file;
+		}
+
+		private synchronized void advance(long length) {
+			written = length;
+			notifyAll();
+		}
+
+		private synchronized DiskCache.Entry commit(DiskCache.Fill fill, Map<String, String> attributes) throws IOException {
+			DiskCache.Entry entry = fill.commit(attributes);
+			file = entry.getFile();
+			return entry;
+		}
+
+		private synchronized void discard(DiskCache.Fill fill) {
+			fill.abort();
+			file = null;
+		}
+
+		private synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until more than the given number of bytes have been written, the fetch ends, or the wait limit passes.
+		 * 
+		 * @return The number of bytes written
+		 */
+		private synchronized long awaitWritten(long position) throws InterruptedIOException {
+			long deadline = System.currentTimeMillis() + FLIGHT_WAIT_SECONDS * 1000;
+			long remaining;
+			while ((written <= position) && !ended && ((remaining = deadline - System.currentTimeMillis()) > 0)) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(String.format("Interrupted while waiting for the file of Data %s.", dataId));
+				}
+			}
+			return written;
+		}
+
+		/**
+		 * Opens the file being written, or the cached file if it has been committed.
+		 * 
+		 * @return The channel, or null if the file has been discarded or evicted
+		 */
+		private synchronized FileChannel open() {
+			if (file == null) {
+				return null;
+			}
+			try {
+				return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} catch (IOException exception) {
+				return null;
+			}
+		}
+
+		/**
+		 * Throws the error that failed reading the file, if the fetch failed. Nothing is thrown if the fetch is still
+		 * running, completed, or was cancelled or abandoned.
+		 */
+		private void rethrowFailure() throws IOException {
+			if (!result.isCompletedExceptionally() || result.isCancelled()) {
+				return;
+			}
+			try {
+				result.join();
+			} catch (CompletionException exception) {
+				if (exception.getCause() instanceof IOException) {
+					throw (IOException) exception.getCause();
+				}
+				throw new IOException(exception.getCause());
+			}
+		}
+
+		private void complete(CachedContent cachedContent) {
+			flights.remove(name, this);
+			result.complete(cachedContent);
+			end();
+		}
+
+		private void cancel() {
+			flights.remove(name, this);
+			result.cancel(false);
+			end();
+		}
+
+		/**
+		 * Fails the fetch, passing the error to every waiting caller. Has no effect if the Flight has already
+		 * completed.
+		 * 
+		 * @param exception
+		 *            The error that failed the fetch
+		 */
+		public void fail(Exception exception) {
+			flights.remove(name, this);
+			result.completeExceptionally(exception);
+			end();
+		}
+
+		/**
+		 * Abandons the fetch because the request leading it ended, or timed out, before the fetch completed. Waiting
+		 * callers are not given an error, but fetch the file themselves. Has no effect if the Flight has already
+		 * completed.
+		 */
+		public void abandon() {
+			cancel();
+		}
+	}
+
+	/**
+	 * A stream of a file being fetched by another caller, read from the cache file as it is written. See
+	 * {@link ContentCache#follow(String, FileLocation)}.
+	 */
+	private class FlightStream extends InputStream {
+		private final Flight flight;
+		private FileChannel channel;
+		private long position;
+		private boolean closed;
+
+		private FlightStream(Flight flight) {
+			this.flight = flight;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			long written = flight.awaitWritten(position);
+			if (written <= position) {
+				// No more of the file is coming
+				flight.rethrowFailure();
+				return -1;
+			}
+			if ((channel == null) && ((channel = flight.open()) == null)) {
+				flight.rethrowFailure();
+				return -1;
+			}
+			int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, written - position)), position);
+			if (read <= 0) {
+				return -1;
+			}
+			position += read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flight.waiters.decrementAndGet();
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the key of a file within its Data Id.
+	 */
+	private String getKey(FileLocation fileLocation) {
+		S3FileStore s3Location = (S3FileStore) fileLocation;
+		return String.format("s3://%s/%s", s3Location.getBucketName(), s3Location.getFileName());
+	}
+
+	private static String getFlightName(String dataId, String key) {
+		return dataId + "\n" + key;
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of files on local disk. Entries are evicted in least-recently-used order once the total size of the
+ * cached files exceeds the byte budget.
+ * 
+ * <p>
+ * Entries are written to a temporary file in the cache directory and renamed into place only once complete, so a
+ * partially written file is never visible to readers. The directory is scanned on construction, so entries survive a
+ * restart; the modification time of each file records its last use, and is used to restore the eviction order.
+ * </p>
+ * 
+ * <p>
+ * Each entry belongs to a group (typically a Data Id), which is part of the file name so that all entries of a group
+ * can be removed together. An entry may also carry a small set of String attributes, which are stored beside it.
+ * </p>
+ */
+public class DiskCache {
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String ATTRIBUTES_SUFFIX = ".attributes";
+
+	private final File directory;
+	private final long maxBytes;
+	// Access-ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long currentBytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates the cache, loading any entries already present in the directory.
+	 * 
+	 * @param directory
+	 *            The directory holding the cached files. Created if it does not exist.
+	 * @param maxBytes
+	 *            The byte budget of the cache. A budget of zero or less disables the cache.
+	 */
+	public DiskCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		if (isEnabled()) {
+			load();
+		}
+	}
+
+	/**
+	 * @return True if the cache has a positive byte budget
+	 */
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Determines if a file of the specified size may be stored in the cache.
+	 * 
+	 * @param length
+	 *            The size of the file in bytes
+	 * @return True if the cache is enabled and the file fits within its budget
+	 */
+	public boolean accepts(long length) {
+		return isEnabled() && (length <= maxBytes);
+	}
+
+	/**
+	 * Gets an entry from the cache, and marks it as most recently used.
+	 * 
+	 * @param group
+	 *            The group of the entry
+	 * @param key
+	 *            The key of the entry within the group
+	 * @return The entry, or null if it is not cached
+	 */
+	public Entry get(String group, String key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		String name = getName(group, key);
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(name);
+			if ((entry != null) && !entry.getFile().exists()) {
+				// The file was removed from underneath the cache
+				entries.remove(name);
+				currentBytes -= entry.getLength();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		// Record the use on disk, so the eviction order can be restored after a restart
+		entry.getFile().setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * Begins writing a new entry into the cache. The entry is not visible until {@link Fill#commit(Map)} is called.
+	 * 
+	 * @param group
+	 *            The group of the entry
+	 * @param key
+	 *            The key of the entry within the group
+	 * @return The Fill to write the contents of the entry to
+	 */
+	public Fill begin(String group, String key) throws IOException {
+		return new Fill(getName(group, key));
+	}
+
+	/**
+	 * Removes all entries of a group from the cache.
+	 * 
+	 * @param group
+	 *            The group to remove
+	 */
+	public synchronized void removeGroup(String group) {
+		String prefix = sanitize(group) + "_";
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> mapEntry = iterator.next();
+			if (mapEntry.getKey().startsWith(prefix)) {
+				iterator.remove();
+				delete(mapEntry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Gets the statistics of the cache: hits, misses, evictions, number of entries and bytes used.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("evictions", evictions.get());
+		statistics.put("entries", entries.size());
+		statistics.put("bytes", currentBytes);
+		statistics.put("maxBytes", maxBytes);
+		return statistics;
+	}
+
+	/**
+	 * Loads the entries already present in the cache directory, in order of last use. Temporary files left behind by
+	 * interrupted writes are deleted.
+	 */
+	private synchronized void load() {
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> dataFiles = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.contains(TEMP_SUFFIX)) {
+				file.delete();
+			} else if (name.endsWith(ATTRIBUTES_SUFFIX)) {
+				if (!new File(directory, name.substring(0, name.length() - ATTRIBUTES_SUFFIX.length())).exists()) {
+					file.delete();
+				}
+			} else if (file.isFile()) {
+				dataFiles.add(file);
+			}
+		}
+		Collections.sort(dataFiles, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return Long.compare(first.lastModified(), second.lastModified());
+			}
+		});
+		for (File file : dataFiles) {
+			Entry entry = new Entry(file, file.length(), readAttributes(file.getName()));
+			entries.put(file.getName(), entry);
+			currentBytes += entry.getLength();
+		}
+		trim();
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache is within its byte budget.
+	 */
+	private synchronized void trim() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while ((currentBytes > maxBytes) && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			iterator.remove();
+			delete(entry);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Deletes the files of an entry that has been removed from the index.
+	 */
+	private void delete(Entry entry) {
+		currentBytes -= entry.getLength();
+		entry.getFile().delete();
+		new File(directory, entry.getFile().getName() + ATTRIBUTES_SUFFIX).delete();
+	}
+
+	/**
+	 * Reads the attributes stored beside an entry. Returns an empty map if there are none.
+	 */
+	private Map<String, String> readAttributes(String name) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		File attributesFile = new File(directory, name + ATTRIBUTES_SUFFIX);
+		if (attributesFile.exists()) {
+			Properties properties = new Properties();
+			try (InputStream inputStream = new FileInputStream(attributesFile)) {
+				properties.load(inputStream);
+				for (String property : properties.stringPropertyNames()) {
+					attributes.put(property, properties.getProperty(property));
+				}
+			} catch (IOException exception) {
+				// Unreadable attributes are treated as absent
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * Gets the file name of an entry. The group is kept readable so entries can be removed by group; the key is hashed
+	 * so that any key produces a safe, fixed-length name.
+	 */
+	private static String getName(String group, String key) {
+		return String.format("%s_%s", sanitize(group), sha1(group + "\n" + key));
+	}
+
+	private static String sanitize(String group) {
+		return group.replaceAll("[^A-Za-z0-9-]", "-");
+	}
+
+	private static String sha1(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte digestByte : digest) {
+				hex.append(String.format("%02x", digestByte));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * A file held by the cache.
+	 */
+	public static class Entry {
+		private final File file;
+		private final long length;
+		private final Map<String, String> attributes;
+
+		private Entry(File file, long length, Map<String, String> attributes) {
+			this.file = file;
+			this.length = length;
+			this.attributes = attributes;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @param name
+		 *            The name of the attribute
+		 * @return The attribute value, or null if the entry has no such attribute
+		 */
+		public String getAttribute(String name) {
+			return attributes.get(name);
+		}
+	}
+
+	/**
+	 * An entry being written into the cache. Exactly one of {@link #commit(Map)} or {@link #abort()} must be called.
+	 */
+	public class Fill {
+		private final String name;
+		private final File tempFile;
+		private final OutputStream outputStream;
+
+		private Fill(String name) throws IOException {
+			directory.mkdirs();
+			this.name = name;
+			this.tempFile = new File(directory, String.format("%s%s-%s", name, TEMP_SUFFIX, UUID.randomUUID().toString()));
+			this.outputStream = new FileOutputStream(tempFile);
+		}
+
+		/**
+		 * @return The file the contents are written to, until the entry is committed
+		 */
+		public File getFile() {
+			return tempFile;
+		}
+
+		/**
+		 * @return The stream to write the contents of the entry to
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Moves the completed file into place, and evicts older entries if the cache is now over budget.
+		 * 
+		 * @param attributes
+		 *            Attributes to store with the entry. May be null.
+		 * @return The committed entry
+		 */
+		public Entry commit(Map<String, String> attributes) throws IOException {
+			outputStream.close();
+			Map<String, String> entryAttributes = new HashMap<String, String>();
+			if ((attributes != null) && !attributes.isEmpty()) {
+				entryAttributes.putAll(attributes);
+				Properties properties = new Properties();
+				properties.putAll(attributes);
+				File tempAttributesFile = new File(directory, tempFile.getName() + ATTRIBUTES_SUFFIX);
+				try (OutputStream attributesStream = new FileOutputStream(tempAttributesFile)) {
+					properties.store(attributesStream, null);
+				}
+				Files.move(tempAttributesFile.toPath(), new File(directory, name + ATTRIBUTES_SUFFIX).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			File file = new File(directory, name);
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			Entry entry = new Entry(file, file.length(), entryAttributes);
+			synchronized (DiskCache.this) {
+				Entry previous = entries.put(name, entry);
+				if (previous != null) {
+					currentBytes -= previous.getLength();
+				}
+				currentBytes += entry.getLength();
+				trim();
+			}
+			return entry;
+		}
+
+		/**
+		 * Discards the partially written file.
+		 */
+		public void abort() {
+			try {
+				outputStream.close();
+			} catch (IOException exception) {
+				// The file is deleted regardless
+			}
+			tempFile.delete();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.util.StoredFileInfo;
+
+/**
+ * Local disk cache of encoded vector exports. Vector data does not change once it is loaded, so the output of an
+ * export depends only on the Data Id and the export options; a repeated export is served from the cached file rather
+ * than being queried and encoded again. Files are evicted in least-recently-used order once the configured byte budget
+ * is exceeded, and all exports of a Data Id are removed when its Deployment or Data Resource is deleted.
+ * 
+ * <p>
+ * An export is cached as it is streamed to the first client that requests it. The entry only becomes visible once
+ * the whole export has been written; an export that fails, or outgrows the budget, is not cached.
+ * </p>
+ */
+@Component
+public class ExportCache {
+	@Value("${cache.export.directory}")
+	private String CACHE_DIRECTORY;
+	@Value("${cache.export.max.bytes}")
+	private long CACHE_MAX_BYTES;
+
+	private static final String ETAG_ATTRIBUTE = "eTag";
+	private static final String CREATED_ATTRIBUTE = "created";
+
+	private DiskCache diskCache;
+
+	@PostConstruct
+	private void initialize() {
+		diskCache = new DiskCache(new File(CACHE_DIRECTORY), CACHE_MAX_BYTES);
+	}
+
+	/**
+	 * Gets the cached copy of an export.
+	 * 
+	 * @param dataId
+	 *            The Data Id that was exported
+	 * @param key
+	 *            The key of the export options; see {@link access.export.ExportOptions#getCacheKey()}
+	 * @return The cached export, or null if it is not cached
+	 */
+	public CachedContent get(String dataId, String key) {
+		DiskCache.Entry entry = diskCache.get(dataId, key);
+		if (entry == null) {
+			return null;
+		}
+		String created = entry.getAttribute(CREATED_ATTRIBUTE);
+		StoredFileInfo fileInfo = new StoredFileInfo(entry.getLength(), entry.getAttribute(ETAG_ATTRIBUTE),
+				(created != null) ? Long.parseLong(created) : -1);
+		return new CachedContent(entry.getFile(), fileInfo);
+	}
+
+	/**
+	 * Wraps the stream an export is written to, so that the export is written to the cache at the same time. The
+	 * caller must call {@link Fill#commit()} once the export is complete, and must close the Fill in all cases.
+	 * 
+	 * @param dataId
+	 *            The Data Id being exported
+	 * @param key
+	 *            The key of the export options
+	 * @param outputStream
+	 *            The stream the export is sent to. Not closed by the Fill.
+	 * @return The stream to write the export to. Only passes the export to the client if the cache is disabled.
+	 */
+	public Fill fill(String dataId, String key, OutputStream outputStream) throws IOException {
+		return new Fill(diskCache.isEnabled() ? diskCache.begin(dataId, key) : null, outputStream);
+	}
+
+	/**
+	 * Removes all cached exports of a Data Id.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 */
+	public void remove(String dataId) {
+		diskCache.removeGroup(dataId);
+	}
+
+	/**
+	 * Gets the hit, miss and eviction counters, and the size of the cache.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		return diskCache.getStatistics();
+	}
+
+	/**
+	 * An export being written to a client and to the cache. Writes to the client come first; if the client goes away,
+	 * the export fails and nothing is cached. Once the export outgrows the byte budget, it is only sent to the client.
+	 */
+	public class Fill extends OutputStream {
+		private final OutputStream outputStream;
+		private final MessageDigest digest;
+		private DiskCache.Fill fill;
+		private long length = 0;
+
+		private Fill(DiskCache.Fill fill, OutputStream outputStream) {
+			this.fill = fill;
+			this.outputStream = outputStream;
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException exception) {
+				abort();
+				throw new IllegalStateException(exception);
+			}
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte[] { (byte) value }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int count) throws IOException {
+			outputStream.write(bytes, offset, count);
+			if (fill == null) {
+				return;
+			}
+			length += count;
+			if (!diskCache.accepts(length)) {
+				abort();
+				return;
+			}
+			fill.getOutputStream().write(bytes, offset, count);
+			digest.update(bytes, offset, count);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			outputStream.flush();
+		}
+
+		/**
+		 * Makes the cached export visible. Call once the whole export has been written.
+		 */
+		public void commit() throws IOException {
+			if (fill == null) {
+				return;
+			}
+			StringBuilder eTag = new StringBuilder("\"");
+			for (byte digestByte : digest.digest()) {
+				eTag.append(String.format("%02x", digestByte));
+			}
+			eTag.append('"');
+			Map<String, String> attributes = new HashMap<String, String>();
+			attributes.put(ETAG_ATTRIBUTE, eTag.toString());
+			attributes.put(CREATED_ATTRIBUTE, Long.toString(System.currentTimeMillis()));
+			DiskCache.Fill committing = fill;
+			fill = null;
+			try {
+				committing.commit(attributes);
+			} catch (IOException exception) {
+				committing.abort();
+				throw exception;
+			}
+		}
+
+		/**
+		 * Discards the cached export, unless it has been committed. Leaves the client's stream open.
+		 */
+		@Override
+		public void close() {
+			abort();
+		}
+
+		private void abort() {
+			if (fill != null) {
+				fill.abort();
+				fill = null;
+			}
+		}
+	}
+}
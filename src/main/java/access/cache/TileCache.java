@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache of encoded vector tiles. Tiles are keyed by their Data Id and tile coordinates, and are
+ * evicted in least-recently-used order once the total size of the cached tiles exceeds the byte budget.
+ */
+public class TileCache {
+	private final long maxBytes;
+	// Access-ordered, so iteration starts at the least recently used tile
+	private final LinkedHashMap<String, byte[]> tiles = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long currentBytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes
+	 *            The byte budget of the cache. A budget of zero or less disables the cache.
+	 */
+	public TileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets a cached tile, and marks it as most recently used.
+	 * 
+	 * @param dataId
+	 *            The Data Id the tile belongs to
+	 * @param z
+	 *            The zoom level
+	 * @param x
+	 *            The column of the tile
+	 * @param y
+	 *            The row of the tile
+	 * @return The encoded tile, or null if it is not cached
+	 */
+	public byte[] get(String dataId, int z, int x, int y) {
+		byte[] tile;
+		synchronized (this) {
+			tile = tiles.get(getKey(dataId, z, x, y));
+		}
+		if (tile == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return tile;
+	}
+
+	/**
+	 * Adds a tile to the cache, and evicts older tiles if the cache is now over budget. Tiles larger than the budget
+	 * are not cached.
+	 * 
+	 * @param dataId
+	 *            The Data Id the tile belongs to
+	 * @param z
+	 *            The zoom level
+	 * @param x
+	 *            The column of the tile
+	 * @param y
+	 *            The row of the tile
+	 * @param tile
+	 *            The encoded tile
+	 */
+	public synchronized void put(String dataId, int z, int x, int y, byte[] tile) {
+		if (tile.length > maxBytes) {
+			return;
+		}
+		byte[] previous = tiles.put(getKey(dataId, z, x, y), tile);
+		if (previous != null) {
+			currentBytes -= previous.length;
+		}
+		currentBytes += tile.length;
+		Iterator<byte[]> iterator = tiles.values().iterator();
+		while ((currentBytes > maxBytes) && iterator.hasNext()) {
+			currentBytes -= iterator.next().length;
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes all cached tiles of a Data Id.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 */
+	public synchronized void remove(String dataId) {
+		String prefix = dataId + "/";
+		Iterator<Map.Entry<String, byte[]>> iterator = tiles.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, byte[]> entry = iterator.next();
+			if (entry.getKey().startsWith(prefix)) {
+				currentBytes -= entry.getValue().length;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Gets the statistics of the cache: hits, misses, evictions, number of tiles and bytes used.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("evictions", evictions.get());
+		statistics.put("entries", tiles.size());
+		statistics.put("bytes", currentBytes);
+		statistics.put("maxBytes", maxBytes);
+		return statistics;
+	}
+
+	private static String getKey(String dataId, int z, int x, int y) {
+		return String.format("%s/%s/%s/%s", dataId, z, x, y);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of decoded coordinate reference systems, and of the transforms between them, shared by all exports. Decoding
+ * a CRS and finding a transform both query the EPSG database, which is far slower than reprojecting a feature; with
+ * the cache, repeated exports into the same CRS pay that cost once.
+ */
+@Component
+public class TransformCache {
+	private final ConcurrentHashMap<String, CoordinateReferenceSystem> crsByCode =
+			new ConcurrentHashMap<String, CoordinateReferenceSystem>();
+	// Keyed by the source and target CRS
+	private final ConcurrentHashMap<List<CoordinateReferenceSystem>, MathTransform> transforms =
+			new ConcurrentHashMap<List<CoordinateReferenceSystem>, MathTransform>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Decodes a coordinate reference system. Axes are in longitude, latitude order, as GeoJSON requires.
+	 * 
+	 * @param code
+	 *            The code of the CRS, such as EPSG:3857. A bare number is taken as an EPSG code.
+	 * @return The CRS
+	 * @throws IllegalArgumentException
+	 *             If the code is not a known CRS
+	 */
+	public CoordinateReferenceSystem getCrs(String code) {
+		String normalizedCode = code.trim().toUpperCase();
+		if (normalizedCode.matches("[0-9]+")) {
+			normalizedCode = "EPSG:" + normalizedCode;
+		}
+		CoordinateReferenceSystem crs = crsByCode.get(normalizedCode);
+		if (crs != null) {
+			hits.incrementAndGet();
+			return crs;
+		}
+		misses.incrementAndGet();
+		try {
+			crs = CRS.decode(normalizedCode, true);
+		} catch (Exception exception) {
+			throw new IllegalArgumentException(String.format("Unknown crs: %s", code), exception);
+		}
+		CoordinateReferenceSystem previous = crsByCode.putIfAbsent(normalizedCode, crs);
+		return (previous != null) ? previous : crs;
+	}
+
+	/**
+	 * Gets the transform between two coordinate reference systems.
+	 * 
+	 * @param sourceCrs
+	 *            The CRS to transform from
+	 * @param targetCrs
+	 *            The CRS to transform to
+	 * @return The transform. Datum shifts are approximated where the EPSG database has no exact transform.
+	 * @throws IllegalArgumentException
+	 *             If there is no transform between the two
+	 */
+	public MathTransform getTransform(CoordinateReferenceSystem sourceCrs, CoordinateReferenceSystem targetCrs) {
+		List<CoordinateReferenceSystem> key = Arrays.asList(sourceCrs, targetCrs);
+		MathTransform transform = transforms.get(key);
+		if (transform != null) {
+			hits.incrementAndGet();
+			return transform;
+		}
+		misses.incrementAndGet();
+		try {
+			transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+		} catch (Exception exception) {
+			throw new IllegalArgumentException(String.format("Cannot reproject from %s to %s: %s", sourceCrs.getName(),
+					targetCrs.getName(), exception.getMessage()), exception);
+		}
+		MathTransform previous = transforms.putIfAbsent(key, transform);
+		return (previous != null) ? previous : transform;
+	}
+
+	/**
+	 * Gets the statistics of the cache: hits, misses, and the number of cached CRSs and transforms.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("crs", crsByCode.size());
+		statistics.put("transforms", transforms.size());
+		return statistics;
+	}
+}
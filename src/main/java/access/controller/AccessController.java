@@ -15,11 +15,25 @@
  **/
 package access.controller;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.io.FilenameUtils;
 import org.geotools.data.DataStore;
@@ -27,37 +41,62 @@ import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.geojson.feature.FeatureJSON;
-import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
-import org.springframework.util.StreamUtils;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.amazonaws.util.StringUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import access.bulk.BulkDownloader;
+import access.cache.CachedContent;
+import access.cache.ContentCache;
+import access.cache.ExportCache;
+import access.cache.TransformCache;
 import access.database.Accessor;
 import access.deploy.Deployer;
+import access.deploy.GeoServerClient;
 import access.deploy.GroupDeployer;
 import access.deploy.Leaser;
+import access.export.ExportFormat;
+import access.export.ExportOptions;
+import access.export.FeatureWriter;
+import access.export.GeometryReprojector;
+import access.export.ParallelExporter;
 import access.messaging.AccessThreadManager;
+import access.tile.TileGenerator;
+import access.util.AccessUtilities;
+import access.util.StoredFileInfo;
 import model.data.DataResource;
 import model.data.FileRepresentation;
 import model.data.deployment.Deployment;
 import model.data.deployment.DeploymentGroup;
 import model.data.deployment.Lease;
-import model.data.location.FileAccessFactory;
+import model.data.location.FileLocation;
+import model.data.location.FolderShare;
+import model.data.type.GeoJsonDataType;
 import model.data.type.PostGISDataType;
+import model.data.type.ShapefileDataType;
 import model.data.type.TextDataType;
 import model.response.DataResourceResponse;
 import model.response.DeploymentGroupResponse;
@@ -82,19 +121,6 @@ import util.PiazzaLogger;
 @RestController
 public class AccessController {
 
-	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.hostname}")
-	private String POSTGRES_HOST;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.port}")
-	private String POSTGRES_PORT;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.database}")
-	private String POSTGRES_DB_NAME;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.username}")
-	private String POSTGRES_USER;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.password}")
-	private String POSTGRES_PASSWORD;
-	@Value("${postgres.schema}")
-	private String POSTGRES_SCHEMA;
-
 	@Autowired
 	private AccessThreadManager threadManager;
 	@Autowired
@@ -109,12 +135,32 @@ public class AccessController {
 	private Leaser leaser;
 	@Autowired
 	private ThreadPoolTaskExecutor threadPoolTaskExecutor;
+	@Autowired
+	private AccessUtilities accessUtilities;
+	@Autowired
+	private ContentCache contentCache;
+	@Autowired
+	private ParallelExporter parallelExporter;
+	@Autowired
+	private TileGenerator tileGenerator;
+	@Autowired
+	private TransformCache transformCache;
+	@Autowired
+	private ExportCache exportCache;
+	@Autowired
+	private BulkDownloader bulkDownloader;
+	@Autowired
+	private GeoServerClient geoServerClient;
 
-	@Value("${vcap.services.pz-blobstore.credentials.access_key_id}")
-	private String AMAZONS3_ACCESS_KEY;
-	@Value("${vcap.services.pz-blobstore.credentials.secret_access_key}")
-	private String AMAZONS3_PRIVATE_KEY;
+	@Value("${file.sendfile.enabled}")
+	private boolean SENDFILE_ENABLED;
 
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
 	private static final String DEFAULT_PAGE_SIZE = "10";
 	private static final String DEFAULT_PAGE = "0";
 	private static final String DEFAULT_SORTBY = "dataId";
@@ -134,12 +180,29 @@ public class AccessController {
 	 * Requests a file download that has been prepared by this Access component. This will return the raw bytes of the
 	 * resource.
 	 * 
+	 * <p>
+	 * File resources support the Range and If-Range headers. Partial requests are answered with 206 Partial Content,
+	 * and requests for multiple ranges are answered with a multipart/byteranges body.
+	 * </p>
+	 * 
+	 * <p>
+	 * PostGIS resources are returned as a GeoJSON FeatureCollection, or in the format named by the format parameter:
+	 * ndjson, geojsonseq, flatgeobuf or gpkg. The bbox, filter, properties, maxFeatures and startIndex parameters select
+	 * the features and attributes to return; see {@link ExportOptions}. Shapefile and GeoJSON resources that have been
+	 * loaded into PostGIS are exported from their table in the same way when the format parameter is given; otherwise
+	 * their original file is returned.
+	 * </p>
+	 * 
 	 * @param dataId
 	 *            The Id of the Data Item to get. Assumes this file is ready to be downloaded.
+	 * @param exportOptions
+	 *            The parameters selecting the features and format of exports from PostGIS
+	 * @param request
+	 *            The HTTP request, used to read the Range headers
 	 */
 	@RequestMapping(value = "/file/{dataId}", method = RequestMethod.GET)
 	public ResponseEntity<?> accessFile(@PathVariable(value = "dataId") String dataId,
-			@RequestParam(value = "fileName", required = false) String name) {
+			@RequestParam(value = "fileName", required = false) String name, ExportOptions exportOptions, HttpServletRequest request) {
 		try {
 			// Get the DataResource item
 			DataResource data = accessor.getData(dataId);
@@ -147,6 +210,7 @@ public class AccessController {
 
 			if (data == null) {
 				logger.log(String.format("Data not found for requested Id %s", dataId), PiazzaLogger.WARNING);
+				removeCachedData(dataId);
 				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Data not found: %s", dataId), "Access"),
 						HttpStatus.NOT_FOUND);
 			}
@@ -156,34 +220,57 @@ public class AccessController {
 				TextDataType textData = (TextDataType) data.getDataType();
 				return getResponse(MediaType.TEXT_PLAIN, String.format("%s%s", fileName, ".txt"), textData.getContent().getBytes());
 			} else if (data.getDataType() instanceof PostGISDataType) {
-				// Obtain geoJSON from postGIS
-				StringBuilder geoJSON = getPostGISGeoJSON(data);
-
-				// Log the Request
-				logger.log(String.format("Returning Bytes for %s of length %s", dataId, geoJSON.length()), PiazzaLogger.INFO);
-
-				// Stream the Bytes back
-				return getResponse(MediaType.TEXT_PLAIN, String.format("%s%s", fileName, ".geojson"), geoJSON.toString().getBytes());
+				// Stream the features back from PostGIS as they are read
+				logger.log(String.format("Streaming features for %s", dataId), PiazzaLogger.INFO);
+				return getPostGISExportResponse(request, data, exportOptions, fileName);
+			} else if ((exportOptions != null) && !StringUtils.isNullOrEmpty(exportOptions.getFormat())
+					&& (getDatabaseTableName(data) != null)) {
+				// Export the features of the file from the table it was loaded into
+				logger.log(String.format("Streaming features of the file for %s", dataId), PiazzaLogger.INFO);
+				return getPostGISExportResponse(request, data, exportOptions, fileName);
 			} else if (!(data.getDataType() instanceof FileRepresentation)) {
 				String message = String.format("File download not available for Data Id %s; type is %s", dataId,
 						data.getDataType().getClass().getSimpleName());
 				logger.log(message, PiazzaLogger.WARNING);
 				throw new Exception(message);
 			} else {
-				// Get the File Bytes from wherever the File Location
-				FileAccessFactory fileFactory = new FileAccessFactory(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
-				InputStream byteStream = fileFactory.getFile(((FileRepresentation) data.getDataType()).getLocation());
-				byte[] bytes = StreamUtils.copyToByteArray(byteStream);
+				// Preserve the file extension from the original file.
+				FileLocation fileLocation = ((FileRepresentation) data.getDataType()).getLocation();
+				String extension = FilenameUtils.getExtension(fileLocation.getFileName());
+				String downloadName = String.format("%s.%s", fileName, extension);
+
+				// If the File has been fetched before, then serve the copy held in the local Content Cache.
+				CachedContent cachedContent = contentCache.get(dataId, fileLocation);
+				if (cachedContent != null) {
+					return getCachedFileResponse(request, dataId, cachedContent, downloadName);
+				}
+
+				boolean wholeFile = (request.getHeader("Range") == null);
+
+				// Describe the File from wherever the File Location is. The file itself is not read here; the bytes
+				// are copied to the client as they arrive so that large files are never held in memory.
+				StoredFileInfo fileInfo = accessUtilities.getFileInfo(fileLocation);
+
+				// If the client already holds the current File, then there is nothing to send.
+				if (isNotModified(request, fileInfo.getETag(), fileInfo.getLastModified())) {
+					return getNotModifiedResponse(fileInfo.getETag(), fileInfo.getLastModified());
+				}
 
 				// Log the Request
-				logger.log(String.format("Returning Bytes for %s of length %s", dataId, bytes.length), PiazzaLogger.INFO);
+				logger.log(String.format("Streaming Bytes for %s of length %s", dataId, fileInfo.getLength()), PiazzaLogger.INFO);
 
-				// Preserve the file extension from the original file.
-				String originalFileName = ((FileRepresentation) data.getDataType()).getLocation().getFileName();
-				String extension = FilenameUtils.getExtension(originalFileName);
+				// When the whole File is requested, fill the Content Cache while streaming it back. Only one request
+				// fetches the File; any others arriving meanwhile follow that fetch as it is written to the cache.
+				if (wholeFile && contentCache.isCacheable(fileLocation, fileInfo)) {
+					ContentCache.Flight flight = contentCache.lead(dataId, fileLocation);
+					if (flight != null) {
+						return getCachingFileResponse(request, flight, fileLocation, fileInfo, downloadName);
+					}
+					return getFollowingFileResponse(dataId, fileLocation, fileInfo, downloadName);
+				}
 
-				// Stream the Bytes back
-				return getResponse(MediaType.APPLICATION_OCTET_STREAM, String.format("%s.%s", fileName, extension), bytes);
+				// Stream the Bytes, or the requested Ranges of Bytes, back
+				return getFileResponse(request, fileLocation, fileInfo, downloadName);
 			}
 		} catch (Exception exception) {
 			exception.printStackTrace();
@@ -193,15 +280,146 @@ public class AccessController {
 		}
 	}
 
+	/**
+	 * Downloads the files of many Data Resources as one ZIP archive. The archive is built while it is streamed back;
+	 * files held in S3 are fetched concurrently, a bounded number ahead of the entry being written. See
+	 * {@link BulkDownloader}.
+	 * 
+	 * @param dataIds
+	 *            The Ids of the Data Items to download, as a JSON array. Repeated Ids are downloaded once.
+	 * @return The archive, or an ErrorResponse if any Data Item cannot be downloaded
+	 */
+	@RequestMapping(value = "/file/bulk", method = RequestMethod.POST)
+	public ResponseEntity<?> accessFiles(@RequestBody List<String> dataIds) {
+		try {
+			List<String> uniqueIds = (dataIds != null) ? new ArrayList<String>(new LinkedHashSet<String>(dataIds))
+					: new ArrayList<String>();
+			if (uniqueIds.isEmpty() || (uniqueIds.size() > bulkDownloader.getMaxItems())) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(
+						String.format("Between 1 and %s Data Ids must be requested.", bulkDownloader.getMaxItems()), "Access"),
+						HttpStatus.BAD_REQUEST);
+			}
+
+			// Look up all of the DataResources at once, and return them in the requested order
+			Map<String, DataResource> dataById = new HashMap<String, DataResource>();
+			for (DataResource data : accessor.getData(uniqueIds)) {
+				dataById.put(data.getDataId(), data);
+			}
+			final List<DataResource> dataResources = new ArrayList<DataResource>();
+			for (String dataId : uniqueIds) {
+				DataResource data = dataById.get(dataId);
+				if (data == null) {
+					logger.log(String.format("Data not found for requested Id %s", dataId), PiazzaLogger.WARNING);
+					removeCachedData(dataId);
+					return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Data not found: %s", dataId), "Access"),
+							HttpStatus.NOT_FOUND);
+				}
+				if (!bulkDownloader.isSupported(data)) {
+					String message = String.format("File download not available for Data Id %s; type is %s", dataId,
+							data.getDataType().getClass().getSimpleName());
+					return new ResponseEntity<PiazzaResponse>(new ErrorResponse(message, "Access"), HttpStatus.BAD_REQUEST);
+				}
+				dataResources.add(data);
+			}
+
+			logger.log(String.format("Streaming archive of %s Data Items", dataResources.size()), PiazzaLogger.INFO);
+			StreamingResponseBody body = new StreamingResponseBody() {
+				@Override
+				public void writeTo(OutputStream outputStream) throws IOException {
+					bulkDownloader.write(dataResources, outputStream);
+				}
+			};
+			HttpHeaders header = new HttpHeaders();
+			header.setContentType(MediaType.parseMediaType("application/zip"));
+			header.set("Content-Disposition", "attachment; filename=data.zip");
+			return new ResponseEntity<StreamingResponseBody>(body, header, HttpStatus.OK);
+		} catch (Exception exception) {
+			exception.printStackTrace();
+			logger.log(String.format("Error fetching bulk Data: %s", exception.getMessage()), PiazzaLogger.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse("Error fetching Files: " + exception.getMessage(), "Access"),
+					HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Gets a Mapbox Vector Tile of a Data Resource stored in PostGIS, in the Web Mercator tiling scheme. The tile has one
+	 * layer, named after the table, holding the features that intersect the tile, simplified for the zoom level.
+	 * 
+	 * <p>
+	 * The response carries an ETag computed from the tile. If the request's If-None-Match header holds the current
+	 * ETag, the response is 304 Not Modified and carries no body.
+	 * </p>
+	 * 
+	 * @param dataId
+	 *            The Id of the Data Item
+	 * @param z
+	 *            The zoom level
+	 * @param x
+	 *            The column of the tile, from the west
+	 * @param y
+	 *            The row of the tile, from the north
+	 * @param request
+	 *            The request, which may carry an If-None-Match header
+	 * @return The encoded tile, or an ErrorResponse
+	 */
+	@RequestMapping(value = "/tiles/{dataId}/{z}/{x}/{y}.mvt", method = RequestMethod.GET)
+	public ResponseEntity<?> getTile(@PathVariable(value = "dataId") String dataId, @PathVariable(value = "z") int z,
+			@PathVariable(value = "x") int x, @PathVariable(value = "y") int y, HttpServletRequest request) {
+		try {
+			if (!tileGenerator.isValidTile(z, x, y)) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Invalid tile: %s/%s/%s", z, x, y), "Access"),
+						HttpStatus.BAD_REQUEST);
+			}
+			DataResource data = accessor.getData(dataId);
+			if (data == null) {
+				logger.log(String.format("Data not found for requested Id %s", dataId), PiazzaLogger.WARNING);
+				removeCachedData(dataId);
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Data not found: %s", dataId), "Access"),
+						HttpStatus.NOT_FOUND);
+			}
+			String tableName = getDatabaseTableName(data);
+			if (tableName == null) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Tiles not available for Data Id %s; type is %s", dataId,
+								data.getDataType().getClass().getSimpleName()), "Access"),
+						HttpStatus.BAD_REQUEST);
+			}
+
+			byte[] tile = tileGenerator.getTile(accessor.getPostGisDataStore(), dataId, tableName, z, x, y);
+			String eTag = String.format("\"%s\"", DigestUtils.md5DigestAsHex(tile));
+			if (isNotModified(request, eTag, -1)) {
+				return getNotModifiedResponse(eTag, -1);
+			}
+			HttpHeaders header = new HttpHeaders();
+			header.setContentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"));
+			header.setContentLength(tile.length);
+			header.setETag(eTag);
+			return new ResponseEntity<byte[]>(tile, header, HttpStatus.OK);
+		} catch (Exception exception) {
+			exception.printStackTrace();
+			logger.log(String.format("Error building tile %s/%s/%s of Data %s: %s", z, x, y, dataId, exception.getMessage()),
+					PiazzaLogger.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse("Error building Tile: " + exception.getMessage(), "Access"),
+					HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	/**
 	 * Returns the Data resource object from the Resources collection.
 	 * 
+	 * <p>
+	 * The response carries an ETag computed from the Data Resource. If the request's If-None-Match header holds the
+	 * current ETag, the response is 304 Not Modified and carries no body.
+	 * </p>
+	 * 
 	 * @param dataId
 	 *            Id of the Resource
+	 * @param request
+	 *            The request, which may carry an If-None-Match header
 	 * @return The resource matching the specified Id
 	 */
 	@RequestMapping(value = "/data/{dataId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<PiazzaResponse> getData(@PathVariable(value = "dataId") String dataId) {
+	public ResponseEntity<PiazzaResponse> getData(@PathVariable(value = "dataId") String dataId, HttpServletRequest request) {
 		try {
 			if (dataId.isEmpty()) {
 				throw new Exception("No Data Id specified.");
@@ -210,13 +428,21 @@ public class AccessController {
 			DataResource data = accessor.getData(dataId);
 			if (data == null) {
 				logger.log(String.format("Data not found for requested Id %s", dataId), PiazzaLogger.WARNING);
+				removeCachedData(dataId);
 				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Data not found: %s", dataId), "Access"),
 						HttpStatus.NOT_FOUND);
 			}
 
-			// Return the Data Resource item
+			// Return the Data Resource item, unless the client already holds it
+			DataResourceResponse response = new DataResourceResponse(data);
+			String eTag = getDocumentETag(response);
+			if (isNotModified(request, eTag, -1)) {
+				return getNotModifiedResponse(eTag, -1);
+			}
 			logger.log(String.format("Returning Data Metadata for %s", dataId), PiazzaLogger.INFO);
-			return new ResponseEntity<PiazzaResponse>(new DataResourceResponse(data), HttpStatus.OK);
+			HttpHeaders header = new HttpHeaders();
+			header.setETag(eTag);
+			return new ResponseEntity<PiazzaResponse>(response, header, HttpStatus.OK);
 		} catch (Exception exception) {
 			exception.printStackTrace();
 			logger.log(String.format("Error fetching Data %s: %s", dataId, exception.getMessage()), PiazzaLogger.ERROR);
@@ -230,12 +456,21 @@ public class AccessController {
 	 * 
 	 * @see http://pz-swagger.stage.geointservices.io/#!/Deployment/ get_deployment_deploymentId
 	 * 
+	 * <p>
+	 * The response carries an ETag and Last-Modified time taken from the times the Deployment and its Lease were
+	 * saved. If the request's If-None-Match header holds the current ETag, or its If-Modified-Since header is no earlier
+	 * than the Last-Modified time, the response is 304 Not Modified and carries no body.
+	 * </p>
+	 * 
 	 * @param deploymentId
 	 *            The Id of the deployment to fetch
+	 * @param request
+	 *            The request, which may carry an If-None-Match or If-Modified-Since header
 	 * @return The deployment information, or an ErrorResponse if exceptions occur
 	 */
 	@RequestMapping(value = "/deployment/{deploymentId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<PiazzaResponse> getDeployment(@PathVariable(value = "deploymentId") String deploymentId) {
+	public ResponseEntity<PiazzaResponse> getDeployment(@PathVariable(value = "deploymentId") String deploymentId,
+			HttpServletRequest request) {
 		try {
 			if (deploymentId.isEmpty()) {
 				throw new Exception("No Deployment Id specified.");
@@ -255,9 +490,20 @@ public class AccessController {
 				expiresOn = lease.getExpiresOn();
 			}
 
-			// Return the Data Resource item
+			// Return the Deployment item, unless the client already holds it
+			DeploymentResponse response = new DeploymentResponse(deployment, expiresOn);
+			long lastModified = getDeploymentLastModified(deployment, lease);
+			String eTag = (lastModified >= 0) ? String.format("\"%s-%s\"", deploymentId, lastModified) : getDocumentETag(response);
+			if (isNotModified(request, eTag, lastModified)) {
+				return getNotModifiedResponse(eTag, lastModified);
+			}
 			logger.log(String.format("Returning Deployment Metadata for %s", deploymentId), PiazzaLogger.INFO);
-			return new ResponseEntity<PiazzaResponse>(new DeploymentResponse(deployment, expiresOn), HttpStatus.OK);
+			HttpHeaders header = new HttpHeaders();
+			header.setETag(eTag);
+			if (lastModified >= 0) {
+				header.setLastModified(lastModified);
+			}
+			return new ResponseEntity<PiazzaResponse>(response, header, HttpStatus.OK);
 		} catch (Exception exception) {
 			exception.printStackTrace();
 			logger.log(String.format("Error fetching Deployment %s: %s", deploymentId, exception.getMessage()), PiazzaLogger.ERROR);
@@ -446,6 +692,18 @@ public class AccessController {
 		// Return information on the jobs currently being processed
 		stats.put("jobs", threadManager.getRunningJobIds());
 		stats.put("activeThreads", threadPoolTaskExecutor.getActiveCount());
+		stats.put("contentCache", contentCache.getStatistics());
+		stats.put("postgisPool", accessor.getPostGisPoolStatistics());
+		stats.put("parallelExport", parallelExporter.getStatistics());
+		stats.put("tileCache", tileGenerator.getStatistics());
+		stats.put("transformCache", transformCache.getStatistics());
+		stats.put("exportCache", exportCache.getStatistics());
+		stats.put("bulkDownload", bulkDownloader.getStatistics());
+		stats.put("geoServer", geoServerClient.getStatistics());
+		Map<String, Object> bufferPools = new HashMap<String, Object>();
+		bufferPools.put("stream", AccessUtilities.STREAM_BUFFERS.getStatistics());
+		bufferPools.put("file", AccessUtilities.FILE_BUFFERS.getStatistics());
+		stats.put("bufferPools", bufferPools);
 		if (threadPoolTaskExecutor.getThreadPoolExecutor() != null) {
 			stats.put("threadQueue", threadPoolTaskExecutor.getThreadPoolExecutor().getQueue().size());
 		}
@@ -470,40 +728,693 @@ public class AccessController {
 	}
 
 	/**
-	 * Gets the GeoJSON representation of a Data Resource currently stored in PostGIS.
+	 * Builds the response for a file download. The whole file is returned, unless the request carries a Range header
+	 * (and a matching If-Range header, if any) in which case only the requested byte ranges are returned.
+	 * 
+	 * @param request
+	 *            The HTTP request
+	 * @param fileLocation
+	 *            The location of the file
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @param fileName
+	 *            file name to set for content disposition
+	 * @return ResponseEntity
+	 */
+	private ResponseEntity<?> getFileResponse(HttpServletRequest request, final FileLocation fileLocation, StoredFileInfo fileInfo,
+			String fileName) throws Exception {
+		return getFileResponse(request, fileLocation, fileInfo, fileName, false);
+	}
+
+	/**
+	 * Builds the response for a file download, as {@link #getFileResponse(HttpServletRequest, FileLocation, StoredFileInfo, String)}.
+	 * 
+	 * @param cached
+	 *            True if the file is a local file held by the Content Cache, which may remove it at any time
+	 */
+	private ResponseEntity<?> getFileResponse(HttpServletRequest request, final FileLocation fileLocation, StoredFileInfo fileInfo,
+			String fileName, boolean cached) throws Exception {
+		final long length = fileInfo.getLength();
+		HttpHeaders header = getFileHeaders(fileInfo, fileName);
+		// Files already on local disk are sent without copying them through the JVM heap
+		final File localFile = (fileLocation instanceof FolderShare) ? new File(((FolderShare) fileLocation).filePath) : null;
+
+		List<long[]> ranges = getRequestedRanges(request, fileInfo);
+		if (ranges == null) {
+			// No usable Range was requested. Return the whole file.
+			header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+			header.setContentLength(length);
+			if (localFile != null) {
+				return getLocalFileResponse(request, localFile, cached, 0, length, header, HttpStatus.OK);
+			}
+			InputStream inputStream = accessUtilities.getFileStream(fileLocation);
+			return new ResponseEntity<StreamingResponseBody>(getStreamingBody(inputStream), header, HttpStatus.OK);
+		} else if (ranges.isEmpty()) {
+			// None of the requested Ranges overlap the file.
+			HttpHeaders errorHeader = new HttpHeaders();
+			errorHeader.set("Content-Range", String.format("bytes */%s", length));
+			return new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse(String.format("Requested Range not satisfiable for file of length %s", length), "Access"),
+					errorHeader, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+		} else if (ranges.size() == 1) {
+			// A single Range is returned as the body
+			long[] range = ranges.get(0);
+			header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+			header.setContentLength(range[1] - range[0] + 1);
+			header.set("Content-Range", String.format("bytes %s-%s/%s", range[0], range[1], length));
+			if (localFile != null) {
+				return getLocalFileResponse(request, localFile, cached, range[0], range[1] - range[0] + 1, header,
+						HttpStatus.PARTIAL_CONTENT);
+			}
+			InputStream inputStream = accessUtilities.getFileStream(fileLocation, range[0], range[1]);
+			return new ResponseEntity<StreamingResponseBody>(getStreamingBody(inputStream), header, HttpStatus.PARTIAL_CONTENT);
+		} else {
+			// Multiple Ranges are returned as a multipart/byteranges body. Each part is fetched only when it is written.
+			final String boundary = UUID.randomUUID().toString().replace("-", "");
+			final List<byte[]> partHeaders = new ArrayList<byte[]>();
+			final byte[] closingBoundary = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+			long contentLength = closingBoundary.length;
+			for (long[] range : ranges) {
+				byte[] partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: bytes %s-%s/%s\r\n\r\n", boundary,
+						MediaType.APPLICATION_OCTET_STREAM_VALUE, range[0], range[1], length).getBytes(StandardCharsets.US_ASCII);
+				partHeaders.add(partHeader);
+				contentLength += partHeader.length + (range[1] - range[0] + 1);
+			}
+			header.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+			header.setContentLength(contentLength);
+			final List<long[]> parts = ranges;
+			// Open a local file now, as for a single Range, so that it remains readable even if it is evicted from the
+			// cache before the body is written
+			final FileChannel localChannel = (localFile != null) ? FileChannel.open(localFile.toPath(), StandardOpenOption.READ) : null;
+			StreamingResponseBody body = new StreamingResponseBody() {
+				@Override
+				public void writeTo(OutputStream outputStream) throws IOException {
+					if (localChannel != null) {
+						// Transfer each part straight from the local file
+						WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+						try (FileChannel fileChannel = localChannel) {
+							for (int i = 0; i < parts.size(); i++) {
+								long[] range = parts.get(i);
+								outputStream.write(partHeaders.get(i));
+								AccessUtilities.transferFile(fileChannel, range[0], range[1] - range[0] + 1, outputChannel);
+							}
+						}
+						outputStream.write(closingBoundary);
+						return;
+					}
+					for (int i = 0; i < parts.size(); i++) {
+						long[] range = parts.get(i);
+						outputStream.write(partHeaders.get(i));
+						InputStream inputStream;
+						try {
+							inputStream = accessUtilities.getFileStream(fileLocation, range[0], range[1]);
+						} catch (IOException exception) {
+							throw exception;
+						} catch (Exception exception) {
+							throw new IOException(exception);
+						}
+						try {
+							AccessUtilities.copyStream(inputStream, outputStream);
+						} finally {
+							inputStream.close();
+						}
+					}
+					outputStream.write(closingBoundary);
+				}
+			};
+			return new ResponseEntity<StreamingResponseBody>(body, header, HttpStatus.PARTIAL_CONTENT);
+		}
+	}
+
+	/**
+	 * Builds the response for a region of a file on local disk, without copying the bytes through the JVM heap. If the
+	 * servlet container supports sendfile, the region of a folder share file is handed to the container, which sends it
+	 * from the kernel page cache once the headers are written. Otherwise, or if the response is to be compressed, the
+	 * region is transferred with {@link FileChannel#transferTo}.
+	 * 
+	 * <p>
+	 * Files held by the Content or Export Cache are never sent with sendfile, as the container would open the file by
+	 * name after the response is returned, by which time the cache may have evicted it. They are opened here instead,
+	 * so that they remain readable until the body is written.
+	 * </p>
+	 * 
+	 * @param request
+	 *            The HTTP request
+	 * @param file
+	 *            The local file
+	 * @param cached
+	 *            True if the file is held by a cache, which may remove it at any time
+	 * @param start
+	 *            The offset of the first byte to send
+	 * @param count
+	 *            The number of bytes to send
+	 * @param header
+	 *            The response headers, including the Content-Length
+	 * @param status
+	 *            The response status
+	 * @return ResponseEntity
+	 */
+	private ResponseEntity<StreamingResponseBody> getLocalFileResponse(HttpServletRequest request, File file, boolean cached,
+			final long start, final long count, HttpHeaders header, HttpStatus status) throws IOException {
+		// A file that is to be compressed must pass through the response stream
+		if (!cached && SENDFILE_ENABLED && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))
+				&& !CompressionFilter.isCompressed(request, header.getContentType())) {
+			// The container sends the file when the response completes. The end offset is exclusive.
+			request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(start));
+			request.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(start + count));
+			return new ResponseEntity<StreamingResponseBody>(header, status);
+		}
+
+		// Open the file now, so that it remains readable even if it is evicted from a cache before the body is written
+		final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		StreamingResponseBody body = new StreamingResponseBody() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				try {
+					AccessUtilities.transferFile(fileChannel, start, count, Channels.newChannel(outputStream));
+				} finally {
+					fileChannel.close();
+				}
+			}
+		};
+		return new ResponseEntity<StreamingResponseBody>(body, header, status);
+	}
+
+	/**
+	 * Builds the response for a download of a file held in the Content Cache. If the client already holds the current
+	 * file, the response is 304 Not Modified.
+	 * 
+	 * @param request
+	 *            The download request, which may specify Ranges
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param cachedContent
+	 *            The cached copy of the file
+	 * @param fileName
+	 *            file name to set for content disposition
+	 * @return ResponseEntity
+	 */
+	private ResponseEntity<?> getCachedFileResponse(HttpServletRequest request, String dataId, CachedContent cachedContent,
+			String fileName) throws Exception {
+		StoredFileInfo fileInfo = cachedContent.getInfo();
+		if (isNotModified(request, fileInfo.getETag(), fileInfo.getLastModified())) {
+			return getNotModifiedResponse(fileInfo.getETag(), fileInfo.getLastModified());
+		}
+		logger.log(String.format("Streaming cached Bytes for %s of length %s", dataId, cachedContent.getInfo().getLength()),
+				PiazzaLogger.INFO);
+		return getFileResponse(request, getLocalLocation(cachedContent.getFile()), cachedContent.getInfo(), fileName, true);
+	}
+
+	/**
+	 * Builds the response for a download of a whole file that is not cached yet. The file is streamed to the client
+	 * and written to the Content Cache at the same time. If the request ends or times out before the file is fetched,
+	 * the fetch is abandoned, so that requests following it fetch the file themselves rather than wait on it.
+	 * 
+	 * @param request
+	 *            The HTTP request, whose asynchronous processing streams the file
+	 * @param flight
+	 *            The fetch of the file claimed by this request, which other requests may be waiting on
+	 * @param fileLocation
+	 *            The location of the file
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @param fileName
+	 *            file name to set for content disposition
+	 * @return ResponseEntity
+	 */
+	private ResponseEntity<StreamingResponseBody> getCachingFileResponse(HttpServletRequest request,
+			final ContentCache.Flight flight, FileLocation fileLocation, final StoredFileInfo fileInfo, String fileName)
+			throws Exception {
+		boolean started = false;
+		try {
+			HttpHeaders header = getFileHeaders(fileInfo, fileName);
+			header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+			header.setContentLength(fileInfo.getLength());
+			final InputStream inputStream;
+			try {
+				inputStream = accessUtilities.getFileStream(fileLocation);
+			} catch (Exception exception) {
+				flight.fail(exception);
+				throw exception;
+			}
+			StreamingResponseBody body = new StreamingResponseBody() {
+				@Override
+				public void writeTo(OutputStream outputStream) throws IOException {
+					try {
+						contentCache.fill(flight, fileInfo, inputStream, outputStream);
+					} finally {
+						inputStream.close();
+						flight.abandon();
+					}
+				}
+			};
+			WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(flight,
+					new CallableProcessingInterceptorAdapter() {
+						@Override
+						public <T> Object handleTimeout(NativeWebRequest webRequest, Callable<T> task) {
+							flight.abandon();
+							return RESULT_NONE;
+						}
+
+						@Override
+						public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+							// Also reached when the request fails, or the body is never run
+							flight.abandon();
+						}
+					});
+			started = true;
+			return new ResponseEntity<StreamingResponseBody>(body, header, HttpStatus.OK);
+		} finally {
+			if (!started) {
+				flight.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Builds the response for a download of a whole file that another request is fetching into the Content Cache. The
+	 * body passes on the file as it is written to the cache, so the client receives bytes while the fetch runs, and no
+	 * request thread is held waiting for it. If that fetch is abandoned or stalls, the rest of the file is read from
+	 * its location instead.
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @param fileName
+	 *            file name to set for content disposition
+	 * @return ResponseEntity
+	 */
+	private ResponseEntity<StreamingResponseBody> getFollowingFileResponse(final String dataId, final FileLocation fileLocation,
+			final StoredFileInfo fileInfo, String fileName) {
+		HttpHeaders header = getFileHeaders(fileInfo, fileName);
+		header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+		header.setContentLength(fileInfo.getLength());
+		StreamingResponseBody body = new StreamingResponseBody() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				long position = 0;
+				InputStream flightStream = contentCache.follow(dataId, fileLocation);
+				if (flightStream != null) {
+					try {
+						position = AccessUtilities.copyStream(flightStream, outputStream);
+					} finally {
+						flightStream.close();
+					}
+				}
+				if (position < fileInfo.getLength()) {
+					// The fetch ended early, or had already ended; read the rest of the file from its location
+					InputStream inputStream;
+					try {
+						inputStream = accessUtilities.getFileStream(fileLocation, position, fileInfo.getLength() - 1);
+					} catch (IOException exception) {
+						throw exception;
+					} catch (Exception exception) {
+						throw new IOException(exception);
+					}
+					try {
+						AccessUtilities.copyStream(inputStream, outputStream);
+					} finally {
+						inputStream.close();
+					}
+				}
+			}
+		};
+		return new ResponseEntity<StreamingResponseBody>(body, header, HttpStatus.OK);
+	}
+
+	/**
+	 * Gets the headers common to all file download responses: the content disposition, and the validators used for
+	 * Range requests.
+	 * 
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @param fileName
+	 *            file name to set for content disposition
+	 * @return The headers
+	 */
+	private HttpHeaders getFileHeaders(StoredFileInfo fileInfo, String fileName) {
+		HttpHeaders header = new HttpHeaders();
+		header.set("Content-Disposition", "attachment; filename=" + fileName);
+		header.set("Accept-Ranges", "bytes");
+		header.setETag(fileInfo.getETag());
+		if (fileInfo.getLastModified() >= 0) {
+			header.setLastModified(fileInfo.getLastModified());
+		}
+		return header;
+	}
+
+	/**
+	 * Gets a File Location for a file on local disk, so that local copies can be served the same way as stored files.
+	 * 
+	 * @param file
+	 *            The local file
+	 * @return The File Location
+	 */
+	private FileLocation getLocalLocation(File file) {
+		FolderShare location = new FolderShare();
+		location.filePath = file.getPath();
+		return location;
+	}
+
+	/**
+	 * Determines if the client already holds the current version of a resource. If-None-Match is checked against the
+	 * ETag; only if the request has no If-None-Match header is If-Modified-Since checked against the modification time.
+	 * 
+	 * @param request
+	 *            The request
+	 * @param eTag
+	 *            The quoted ETag of the resource
+	 * @param lastModified
+	 *            The modification time of the resource in epoch milliseconds, or -1 if not known
+	 * @return True if a 304 Not Modified response should be returned
+	 */
+	private boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			if (eTag == null) {
+				return false;
+			}
+			for (String requestTag : ifNoneMatch.split(",")) {
+				// If-None-Match uses the weak comparison
+				requestTag = requestTag.trim();
+				if (requestTag.startsWith("W/")) {
+					requestTag = requestTag.substring(2);
+				}
+				if (requestTag.equals("*") || requestTag.equals(eTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if ((request.getHeader("If-Modified-Since") != null) && (lastModified >= 0)) {
+			try {
+				// HTTP dates have a resolution of one second
+				return (lastModified / 1000) <= (request.getDateHeader("If-Modified-Since") / 1000);
+			} catch (IllegalArgumentException exception) {
+				// An unparseable date is ignored
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a 304 Not Modified response, which carries the validators of the resource but no body.
+	 * 
+	 * @param eTag
+	 *            The quoted ETag of the resource
+	 * @param lastModified
+	 *            The modification time of the resource in epoch milliseconds, or -1 if not known
+	 * @return ResponseEntity
+	 */
+	private <T> ResponseEntity<T> getNotModifiedResponse(String eTag, long lastModified) {
+		HttpHeaders header = new HttpHeaders();
+		header.setETag(eTag);
+		if (lastModified >= 0) {
+			header.setLastModified(lastModified);
+		}
+		return new ResponseEntity<T>(header, HttpStatus.NOT_MODIFIED);
+	}
+
+	/**
+	 * Gets the time a Deployment response last changed, from the times recorded in the database. The Deployment itself
+	 * is never changed once it is saved, so after its creation only renewals of its Lease change the response.
+	 * 
+	 * @param deployment
+	 *            The Deployment
+	 * @param lease
+	 *            The Lease of the Deployment, or null if it has none
+	 * @return The modification time in epoch milliseconds, or -1 if either document predates the recording of these
+	 *         times
+	 */
+	private long getDeploymentLastModified(Deployment deployment, Lease lease) {
+		if (deployment.createdOn == null) {
+			return -1;
+		}
+		long lastModified = deployment.createdOn.getMillis();
+		if (lease != null) {
+			long leaseModified = accessor.getLeaseLastModified(lease.getLeaseId());
+			if (leaseModified < 0) {
+				return -1;
+			}
+			lastModified = Math.max(lastModified, leaseModified);
+		}
+		return lastModified;
+	}
+
+	/**
+	 * Computes a strong ETag for a metadata response from its JSON serialization, so that it changes whenever any
+	 * field of the returned document changes. Used for documents that carry no modification time: Data Resources, which
+	 * are written by Ingest, and Deployments saved before modification times were recorded.
+	 * 
+	 * @param response
+	 *            The response to be returned
+	 * @return The quoted ETag
+	 */
+	private String getDocumentETag(PiazzaResponse response) throws JsonProcessingException {
+		return String.format("\"%s\"", DigestUtils.md5DigestAsHex(objectMapper.writeValueAsBytes(response)));
+	}
+
+	/**
+	 * Determines the byte ranges requested by the client, as inclusive start and end offsets.
+	 * 
+	 * @param request
+	 *            The HTTP request
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @return Null if the whole file should be returned: no Range was requested, the Range header is malformed, or the
+	 *         If-Range validator no longer matches. An empty list if no requested Range overlaps the file.
+	 */
+	private List<long[]> getRequestedRanges(HttpServletRequest request, StoredFileInfo fileInfo) {
+		String rangeHeader = request.getHeader("Range");
+		if ((rangeHeader == null) || !isIfRangeSatisfied(request, fileInfo)) {
+			return null;
+		}
+		List<HttpRange> httpRanges;
+		try {
+			httpRanges = HttpRange.parseRanges(rangeHeader);
+		} catch (IllegalArgumentException exception) {
+			// A malformed Range header is ignored, and the whole file is returned.
+			return null;
+		}
+		if (httpRanges.isEmpty()) {
+			return null;
+		}
+		long length = fileInfo.getLength();
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (HttpRange httpRange : httpRanges) {
+			long start = httpRange.getRangeStart(length);
+			long end = httpRange.getRangeEnd(length);
+			if ((start < length) && (start <= end)) {
+				ranges.add(new long[] { start, end });
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Checks the If-Range header of the request. A Range is only honored if the If-Range validator, when present,
+	 * still matches the file; otherwise the whole file is returned.
+	 * 
+	 * @param request
+	 *            The HTTP request
+	 * @param fileInfo
+	 *            The length and validators of the file
+	 * @return True if the Range header should be honored
+	 */
+	private boolean isIfRangeSatisfied(HttpServletRequest request, StoredFileInfo fileInfo) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Entity tags must match with the strong comparison; weak tags never match.
+			return ifRange.equals(fileInfo.getETag());
+		}
+		try {
+			long date = request.getDateHeader("If-Range");
+			return (fileInfo.getLastModified() >= 0) && ((fileInfo.getLastModified() / 1000) == (date / 1000));
+		} catch (IllegalArgumentException exception) {
+			return false;
+		}
+	}
+
+	/**
+	 * Builds a response body that streams the contents of the input stream to the client. The stream is copied through
+	 * a single fixed-size buffer, so memory use does not depend on the size of the file. The input stream is closed
+	 * once the copy completes.
 	 * 
+	 * @param inputStream
+	 *            The stream of file bytes
+	 * @return The streaming body
+	 */
+	private StreamingResponseBody getStreamingBody(final InputStream inputStream) {
+		return new StreamingResponseBody() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				try {
+					AccessUtilities.copyStream(inputStream, outputStream);
+				} finally {
+					inputStream.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Builds the response for the export of a Data Resource currently stored in PostGIS. The features are written to
+	 * the client in the requested format while they are read from the database, so the table is never held in memory
+	 * (GeoPackages are built in a temporary file, and sent once complete). The export options are passed to the
+	 * database as a Query. Large tables are read and encoded in parallel partitions where the format allows it; see
+	 * {@link ParallelExporter}.
+	 * 
+	 * <p>
+	 * The export is written to the Export Cache as it is streamed. A later export of the same Data with the same options
+	 * is sent from the cached file without querying the database, and answers conditional requests with its ETag.
+	 * </p>
+	 * 
+	 * @param request
+	 *            The HTTP request
 	 * @param data
 	 *            DataResource object
-	 * @return stringbuilder of geojson
-	 * @throws Exception
+	 * @param exportOptions
+	 *            The parameters selecting the features, attributes and format to return
+	 * @param fileName
+	 *            file name to set for content disposition, without the extension
+	 * @return ResponseEntity, or an ErrorResponse with status 400 if the export options are invalid
 	 */
-	private StringBuilder getPostGISGeoJSON(DataResource data) throws Exception {
-		// Connect to POSTGIS and gather geoJSON info
-		DataStore postGisStore = accessor.getPostGisDataStore(POSTGRES_HOST, POSTGRES_PORT, POSTGRES_SCHEMA, POSTGRES_DB_NAME,
-				POSTGRES_USER, POSTGRES_PASSWORD);
+	private ResponseEntity<?> getPostGISExportResponse(HttpServletRequest request, DataResource data, ExportOptions exportOptions,
+			String fileName) throws Exception {
+		final String dataId = data.getDataId();
+		final ExportFormat exportFormat;
+		final String cacheKey;
+		try {
+			exportFormat = (exportOptions != null) ? exportOptions.getExportFormat() : ExportFormat.GEOJSON;
+			cacheKey = ((exportOptions != null) ? exportOptions : new ExportOptions()).getCacheKey();
+		} catch (IllegalArgumentException exception) {
+			logger.log(String.format("Invalid export options for Data %s: %s", dataId, exception.getMessage()), PiazzaLogger.WARNING);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Access"), HttpStatus.BAD_REQUEST);
+		}
+		HttpHeaders header = new HttpHeaders();
+		header.setContentType(MediaType.parseMediaType(exportFormat.getContentType()));
+		header.set("Content-Disposition", String.format("attachment; filename=%s.%s", fileName, exportFormat.getExtension()));
 
-		PostGISDataType resource = (PostGISDataType) (data.getDataType());
-		SimpleFeatureSource simpleFeatureSource = postGisStore.getFeatureSource(resource.getTable());
-		SimpleFeatureCollection simpleFeatureCollection = simpleFeatureSource.getFeatures(Query.ALL);
-		SimpleFeatureIterator simpleFeatureIterator = simpleFeatureCollection.features();
+		// If the same export has been made before, then send the cached file
+		CachedContent cachedExport = exportCache.get(dataId, cacheKey);
+		if (cachedExport != null) {
+			StoredFileInfo fileInfo = cachedExport.getInfo();
+			if (isNotModified(request, fileInfo.getETag(), fileInfo.getLastModified())) {
+				return getNotModifiedResponse(fileInfo.getETag(), fileInfo.getLastModified());
+			}
+			logger.log(String.format("Streaming cached export of %s of length %s", dataId, fileInfo.getLength()), PiazzaLogger.INFO);
+			header.setETag(fileInfo.getETag());
+			if (fileInfo.getLastModified() >= 0) {
+				header.setLastModified(fileInfo.getLastModified());
+			}
+			header.setContentLength(fileInfo.getLength());
+			return getLocalFileResponse(request, cachedExport.getFile(), true, 0, fileInfo.getLength(), header, HttpStatus.OK);
+		}
 
-		StringBuilder geoJSON = new StringBuilder();
+		// Get the table from the shared PostGIS data store. The table is looked up and the Query is built now, so
+		// that a missing table or an invalid option is reported as an error response.
+		final DataStore postGisStore = accessor.getPostGisDataStore();
+		final String tableName = getDatabaseTableName(data);
+		final SimpleFeatureSource simpleFeatureSource = postGisStore.getFeatureSource(tableName);
+		final Query query;
+		final GeometryReprojector reprojector;
 		try {
-			while (simpleFeatureIterator.hasNext()) {
-				SimpleFeature simpleFeature = simpleFeatureIterator.next();
-				FeatureJSON featureJSON = new FeatureJSON();
-				StringWriter writer = new StringWriter();
-
-				featureJSON.writeFeature(simpleFeature, writer);
-				String json = writer.toString();
+			query = (exportOptions != null) ? exportOptions.toQuery(simpleFeatureSource.getSchema()) : Query.ALL;
+			reprojector = getReprojector(simpleFeatureSource.getSchema(), exportOptions);
+		} catch (IllegalArgumentException exception) {
+			logger.log(String.format("Invalid export options for Data %s: %s", dataId, exception.getMessage()), PiazzaLogger.WARNING);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Access"), HttpStatus.BAD_REQUEST);
+		}
 
-				// Append each section
-				geoJSON.append(json);
+		StreamingResponseBody body = new StreamingResponseBody() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				SimpleFeatureCollection features = simpleFeatureSource.getFeatures(query);
+				try (ExportCache.Fill cacheFill = exportCache.fill(dataId, cacheKey, outputStream)) {
+					try (FeatureWriter featureWriter = exportFormat.createWriter(cacheFill, exportOptions, reprojector)) {
+						featureWriter.writeStart(features.getSchema());
+						boolean ordered = (exportOptions == null) || exportOptions.isOrdered();
+						if (!parallelExporter.write(postGisStore, tableName, query, featureWriter, ordered)) {
+							// Closing the iterator returns its connection to the pool
+							SimpleFeatureIterator simpleFeatureIterator = features.features();
+							try {
+								while (simpleFeatureIterator.hasNext()) {
+									featureWriter.writeFeature(simpleFeatureIterator.next());
+								}
+							} finally {
+								simpleFeatureIterator.close();
+							}
+						}
+						featureWriter.writeEnd();
+					}
+					// Only a complete export is cached
+					cacheFill.commit();
+				}
 			}
-		} finally {
-			simpleFeatureIterator.close();
+		};
+
+		return new ResponseEntity<StreamingResponseBody>(body, header, HttpStatus.OK);
+	}
+
+	/**
+	 * Gets the reprojection of exported geometries into the CRS requested by the export options. The CRS and the
+	 * transform come from the shared Transform Cache, so that they are only looked up in the EPSG database once.
+	 * 
+	 * @param schema
+	 *            The feature type of the exported table
+	 * @param exportOptions
+	 *            The export options
+	 * @return The reprojection, or null if no CRS was requested
+	 * @throws IllegalArgumentException
+	 *             If the requested CRS is unknown, or the table's geometries cannot be reprojected into it
+	 */
+	private GeometryReprojector getReprojector(SimpleFeatureType schema, ExportOptions exportOptions) {
+		if ((exportOptions == null) || StringUtils.isNullOrEmpty(exportOptions.getCrs())) {
+			return null;
 		}
+		CoordinateReferenceSystem targetCrs = transformCache.getCrs(exportOptions.getCrs());
+		CoordinateReferenceSystem sourceCrs = schema.getCoordinateReferenceSystem();
+		if (sourceCrs == null) {
+			throw new IllegalArgumentException("crs cannot be used; the data has no coordinate reference system.");
+		}
+		return new GeometryReprojector(targetCrs, transformCache.getTransform(sourceCrs, targetCrs));
+	}
+
+	/**
+	 * Drops the exports and tiles cached for a Data Id whose Data Resource has been deleted, so that they are not served
+	 * again if the Id is reused.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 */
+	private void removeCachedData(String dataId) {
+		exportCache.remove(dataId);
+		tileGenerator.remove(dataId);
+	}
 
-		return geoJSON;
+	/**
+	 * Gets the name of the PostGIS table holding the features of a Data Resource.
+	 * 
+	 * @param data
+	 *            DataResource object
+	 * @return The table name, or null if the features of the resource are not stored in PostGIS
+	 */
+	private String getDatabaseTableName(DataResource data) {
+		if (data.getDataType() instanceof PostGISDataType) {
+			return ((PostGISDataType) data.getDataType()).getTable();
+		} else if (data.getDataType() instanceof ShapefileDataType) {
+			return ((ShapefileDataType) data.getDataType()).getDatabaseTableName();
+		} else if (data.getDataType() instanceof GeoJsonDataType) {
+			return ((GeoJsonDataType) data.getDataType()).databaseTableName;
+		}
+		return null;
 	}
 }
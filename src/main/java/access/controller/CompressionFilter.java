@@ -0,0 +1,418 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import access.util.AccessUtilities;
+
+/**
+ * Compresses text and JSON responses (including GeoJSON exports) with gzip or zstd, as negotiated by the request's
+ * Accept-Encoding header. zstd is preferred where the client accepts both. The body is compressed as it is streamed, so
+ * streamed exports are never held in memory.
+ * 
+ * <p>
+ * Only the media types in {@link #COMPRESSIBLE_TYPES} are compressed; already-compressed files such as GeoTIFFs and
+ * ZIP archives, and binary downloads, are sent as they are. Partial (Range) responses, responses sent with sendfile,
+ * and bodies smaller than the configured minimum are not compressed either. Where the length of a body is not
+ * declared, the first bytes are held back until the minimum is reached or the body is flushed.
+ * </p>
+ * 
+ * <p>
+ * Streamed bodies are written after the request has left the filter, so the filter also runs on the asynchronous
+ * dispatch that ends them, and finishes the compressed stream there.
+ * </p>
+ */
+@Component
+public class CompressionFilter extends OncePerRequestFilter {
+	@Value("${compression.enabled}")
+	private boolean ENABLED;
+	@Value("${compression.min.bytes}")
+	private int MIN_BYTES;
+	@Value("${compression.gzip.level}")
+	private int GZIP_LEVEL;
+	@Value("${compression.zstd.level}")
+	private int ZSTD_LEVEL;
+
+	/**
+	 * The request attribute holding the encoding negotiated for the response, if any.
+	 */
+	public static final String ENCODING_ATTRIBUTE = CompressionFilter.class.getName() + ".encoding";
+	private static final String RESPONSE_ATTRIBUTE = CompressionFilter.class.getName() + ".response";
+	private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+	private static final String GZIP = "gzip";
+	private static final String ZSTD = "zstd";
+	private static final List<MediaType> COMPRESSIBLE_TYPES = Arrays.asList(MediaType.APPLICATION_JSON,
+			MediaType.valueOf("application/geo+json"), MediaType.valueOf("application/geo+json-seq"),
+			MediaType.valueOf("application/x-ndjson"), MediaType.APPLICATION_XML, MediaType.valueOf("text/*"));
+
+	@Override
+	protected boolean shouldNotFilterAsyncDispatch() {
+		return false;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		CompressingResponse compressingResponse = (CompressingResponse) request.getAttribute(RESPONSE_ATTRIBUTE);
+		if (compressingResponse == null) {
+			String encoding = ENABLED ? negotiate(request.getHeader("Accept-Encoding")) : null;
+			if (encoding == null) {
+				filterChain.doFilter(request, response);
+				return;
+			}
+			compressingResponse = new CompressingResponse(request, response, encoding);
+			request.setAttribute(ENCODING_ATTRIBUTE, encoding);
+			request.setAttribute(RESPONSE_ATTRIBUTE, compressingResponse);
+		}
+		try {
+			filterChain.doFilter(request, compressingResponse);
+		} finally {
+			// A streamed body is finished on the dispatch that ends it
+			if (!isAsyncStarted(request)) {
+				compressingResponse.finish();
+			}
+		}
+	}
+
+	/**
+	 * Determines if a response body of the specified type will be compressed, if it is large enough. Controllers use
+	 * this to avoid sending such bodies with sendfile, which bypasses the compression.
+	 * 
+	 * @param request
+	 *            The request
+	 * @param contentType
+	 *            The media type of the response body
+	 * @return True if an encoding was negotiated for the request, and the media type is compressible
+	 */
+	public static boolean isCompressed(HttpServletRequest request, MediaType contentType) {
+		return (request.getAttribute(ENCODING_ATTRIBUTE) != null) && isCompressible(contentType);
+	}
+
+	/**
+	 * Chooses the encoding of a response from the Accept-Encoding header.
+	 * 
+	 * @param acceptEncoding
+	 *            The value of the Accept-Encoding header. May be null.
+	 * @return zstd or gzip, or null if the response should not be compressed
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1;
+		double zstd = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException exception) {
+						quality = 0;
+					}
+				}
+			}
+			if (name.equals(GZIP) || name.equals("x-gzip")) {
+				gzip = quality;
+			} else if (name.equals(ZSTD)) {
+				zstd = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		if (gzip < 0) {
+			// Only gzip is assumed to be covered by a wildcard, as it is understood by every client
+			gzip = any;
+		}
+		if ((zstd > 0) && (zstd >= gzip)) {
+			return ZSTD;
+		}
+		return (gzip > 0) ? GZIP : null;
+	}
+
+	private static boolean isCompressible(MediaType contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		for (MediaType compressibleType : COMPRESSIBLE_TYPES) {
+			if (compressibleType.includes(contentType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A response whose body is compressed if it turns out to be compressible. The decision is made once the body's
+	 * headers and first bytes are known; until then, the declared Content-Length is held back, as it no longer applies
+	 * to a compressed body.
+	 */
+	private class CompressingResponse extends HttpServletResponseWrapper {
+		private final HttpServletRequest request;
+		private final String encoding;
+		private Long contentLength;
+		private CompressingOutputStream outputStream;
+		private PrintWriter writer;
+		private Boolean compressing;
+
+		CompressingResponse(HttpServletRequest request, HttpServletResponse response, String encoding) {
+			super(response);
+			this.request = request;
+			this.encoding = encoding;
+		}
+
+		@Override
+		public void setContentLength(int length) {
+			setContentLengthLong(length);
+		}
+
+		@Override
+		public void setContentLengthLong(long length) {
+			if (compressing == null) {
+				contentLength = length;
+			} else if (!compressing) {
+				forwardContentLength(length);
+			}
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				setContentLengthLong(Long.parseLong(value.trim()));
+			} else {
+				super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				setContentLengthLong(Long.parseLong(value.trim()));
+			} else {
+				super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new CompressingOutputStream(this, super.getOutputStream());
+			}
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (outputStream != null) {
+				outputStream.flush();
+			} else {
+				decide(0);
+			}
+			super.flushBuffer();
+		}
+
+		/**
+		 * Decides whether to compress the body, and sets the headers accordingly.
+		 * 
+		 * @param bodyLength
+		 *            The length of the body if it is known to be complete, or -1 if more may follow
+		 * @return True if the body is compressed
+		 */
+		boolean decide(long bodyLength) {
+			if (compressing != null) {
+				return compressing;
+			}
+			long length = (contentLength != null) ? contentLength : bodyLength;
+			String contentType = getContentType();
+			compressing = !isCommitted() && (getStatus() == HttpStatus.OK.value()) && (getHeader("Content-Encoding") == null)
+					&& (getHeader("Content-Range") == null) && (request.getAttribute(SENDFILE_FILENAME_ATTRIBUTE) == null)
+					&& (contentType != null) && isCompressible(MediaType.parseMediaType(contentType))
+					&& ((length < 0) || (length >= MIN_BYTES));
+			if (compressing) {
+				super.setHeader("Content-Encoding", encoding);
+				super.addHeader("Vary", "Accept-Encoding");
+				// The compressed body is a different representation, so its validator can only be weak
+				String eTag = getHeader("ETag");
+				if ((eTag != null) && !eTag.startsWith("W/")) {
+					super.setHeader("ETag", "W/" + eTag);
+				}
+			} else if (contentLength != null) {
+				forwardContentLength(contentLength);
+			}
+			return compressing;
+		}
+
+		private void forwardContentLength(long length) {
+			if (length <= Integer.MAX_VALUE) {
+				super.setContentLength((int) length);
+			} else {
+				super.setContentLengthLong(length);
+			}
+		}
+
+		/**
+		 * Ends the body, writing the end of the compressed stream. Does nothing if the body was not compressed.
+		 */
+		void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (outputStream != null) {
+				outputStream.finish();
+			} else {
+				decide(0);
+			}
+		}
+
+		OutputStream createCompressor(OutputStream outputStream) throws IOException {
+			OutputStream shielded = new CloseShieldOutputStream(outputStream);
+			if (ZSTD.equals(encoding)) {
+				return new ZstdOutputStream(shielded, ZSTD_LEVEL);
+			}
+			return new GZIPOutputStream(shielded, AccessUtilities.STREAM_BUFFER_SIZE, true) {
+				{
+					def.setLevel(GZIP_LEVEL);
+				}
+			};
+		}
+	}
+
+	/**
+	 * The body of a CompressingResponse. Holds back the first bytes of a body of unknown length until the minimum size
+	 * is reached, the body is flushed, or the body ends.
+	 */
+	private class CompressingOutputStream extends ServletOutputStream {
+		private final CompressingResponse response;
+		private final ServletOutputStream servletStream;
+		private ByteArrayOutputStream heldBytes = new ByteArrayOutputStream();
+		private OutputStream target;
+		private boolean finished = false;
+
+		CompressingOutputStream(CompressingResponse response, ServletOutputStream servletStream) {
+			this.response = response;
+			this.servletStream = servletStream;
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte[] { (byte) value }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (target != null) {
+				target.write(bytes, offset, length);
+				return;
+			}
+			heldBytes.write(bytes, offset, length);
+			if ((response.contentLength != null) || (heldBytes.size() >= MIN_BYTES)) {
+				release(-1);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (target == null) {
+				// A flushed body of unknown length is being streamed, and is compressed regardless of its size
+				release(-1);
+			}
+			target.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			servletStream.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return servletStream.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			servletStream.setWriteListener(writeListener);
+		}
+
+		/**
+		 * Writes the end of the compressed stream, once.
+		 */
+		void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			if (target == null) {
+				release(heldBytes.size());
+			}
+			if (target != servletStream) {
+				// Closing the compressor writes its trailer; the servlet stream is shielded from the close
+				target.close();
+			}
+			servletStream.flush();
+		}
+
+		/**
+		 * Decides whether to compress, and writes the bytes held back.
+		 */
+		private void release(long bodyLength) throws IOException {
+			target = response.decide(bodyLength) ? response.createCompressor(servletStream) : servletStream;
+			heldBytes.writeTo(target);
+			heldBytes = null;
+		}
+	}
+}
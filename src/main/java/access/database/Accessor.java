@@ -16,23 +16,35 @@
 package access.database;
 
 import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.commons.dbcp.BasicDataSource;
 import org.geotools.data.DataStore;
+import org.geotools.data.postgis.PostgisNGDataStoreFactory;
+import org.geotools.jdbc.JDBCDataStore;
 import org.mongojack.DBCursor;
 import org.mongojack.DBQuery;
 import org.mongojack.DBSort;
 import org.mongojack.DBUpdate;
 import org.mongojack.JacksonDBCollection;
+import org.mongojack.internal.MongoJackModule;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
@@ -45,7 +57,7 @@ import model.data.deployment.Lease;
 import model.response.DataResourceListResponse;
 import model.response.DeploymentListResponse;
 import model.response.Pagination;
-import util.GeoToolsUtil;
+import util.PiazzaLogger;
 
 /**
  * Handles Mongo access for the Deployer and the Leaser, and for the Resource collection which stores the Ingested
@@ -72,9 +84,48 @@ public class Accessor {
 	private String DEPLOYMENT_GROUP_COLLECTION_NAME;
 	@Value("${mongo.db.collection.leases}")
 	private String LEASE_COLLECTION_NAME;
+	@Value("${mongo.db.collection.deployment.locks}")
+	private String DEPLOYMENT_LOCK_COLLECTION_NAME;
 	@Value("${mongo.thread.multiplier}")
 	private int mongoThreadMultiplier;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.hostname}")
+	private String POSTGRES_HOST;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.port}")
+	private String POSTGRES_PORT;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.database}")
+	private String POSTGRES_DB_NAME;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.username}")
+	private String POSTGRES_USER;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.postgres.password}")
+	private String POSTGRES_PASSWORD;
+	@Value("${postgres.schema}")
+	private String POSTGRES_SCHEMA;
+	@Value("${postgres.pool.min.connections}")
+	private int POSTGRES_POOL_MIN_CONNECTIONS;
+	@Value("${postgres.pool.max.connections}")
+	private int POSTGRES_POOL_MAX_CONNECTIONS;
+	@Value("${postgres.pool.max.wait.millis}")
+	private long POSTGRES_POOL_MAX_WAIT_MILLIS;
+	@Value("${postgres.pool.max.idle.millis}")
+	private long POSTGRES_POOL_MAX_IDLE_MILLIS;
+	@Value("${postgres.pool.eviction.interval.millis}")
+	private long POSTGRES_POOL_EVICTION_INTERVAL_MILLIS;
+	@Value("${postgres.pool.prepared.statements}")
+	private boolean POSTGRES_POOL_PREPARED_STATEMENTS;
+	@Value("${postgres.pool.max.prepared.statements}")
+	private int POSTGRES_POOL_MAX_PREPARED_STATEMENTS;
+	// The error code of MongoDB for a write that would duplicate a unique key
+	private static final int DUPLICATE_KEY_CODE = 11000;
+	// The time Access last wrote a Lease, kept in the Lease document alongside the fields of the Lease model
+	private static final String LAST_MODIFIED_FIELD = "lastModified";
+	// Maps Lease documents, ignoring the fields kept outside of the model
+	private static final ObjectMapper LEASE_MAPPER = MongoJackModule.configure(new ObjectMapper())
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	@Autowired
+	private PiazzaLogger logger;
 	private MongoClient mongoClient;
+	private JDBCDataStore postGisDataStore;
+	private BasicDataSource postGisDataSource;
 
 	@PostConstruct
 	private void initialize() {
@@ -83,12 +134,34 @@ public class Accessor {
 		} catch (UnknownHostException exception) {
 			System.out.println("Error connecting to MongoDB Instance.");
 			exception.printStackTrace();
+			return;
+		}
+		try {
+			// Only one Deployment may exist for each Data Id
+			getDeploymentCollection().getDbCollection().createIndex(new BasicDBObject("dataId", 1),
+					new BasicDBObject("unique", true));
+			// Expired Deployment locks are removed by MongoDB
+			getDeploymentLockCollection().createIndex(new BasicDBObject("expiresAt", 1), new BasicDBObject("expireAfterSeconds", 0));
+		} catch (MongoException exception) {
+			logger.log(String.format("Error creating the indexes of the Deployment collections: %s", exception.getMessage()),
+					PiazzaLogger.ERROR);
 		}
 	}
 
 	@PreDestroy
-	private void close() {
+	private synchronized void close() {
 		mongoClient.close();
+		if (postGisDataStore != null) {
+			// The connection pool is supplied to the data store, so disposing the data store does not close it
+			postGisDataStore.dispose();
+			try {
+				postGisDataSource.close();
+			} catch (SQLException exception) {
+				logger.log(String.format("Error closing the PostGIS connection pool: %s", exception.getMessage()), PiazzaLogger.WARNING);
+			}
+			postGisDataStore = null;
+			postGisDataSource = null;
+		}
 	}
 
 	/**
@@ -101,13 +174,80 @@ public class Accessor {
 	}
 
 	/**
-	 * Gets the PostGIS data store for GeoTools.
+	 * Gets the PostGIS data store for GeoTools. One data store, with one connection pool, is shared by all callers
+	 * and is created on first use. Callers must not dispose of it.
+	 * 
+	 * <p>
+	 * As the data store is long-lived, the schema and primary key metadata it reads for each table is cached within
+	 * it, rather than being read again for every request.
+	 * </p>
 	 * 
 	 * @return Data Store.
 	 */
-	public DataStore getPostGisDataStore(String host, String port, String schema, String dbName, String user, String password)
-			throws Exception {
-		return GeoToolsUtil.getPostGisDataStore(host, port, schema, dbName, user, password);
+	public synchronized DataStore getPostGisDataStore() throws Exception {
+		if (postGisDataStore == null) {
+			postGisDataSource = createPostGisDataSource();
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put(PostgisNGDataStoreFactory.DBTYPE.key, "postgis");
+			params.put(PostgisNGDataStoreFactory.HOST.key, POSTGRES_HOST);
+			params.put(PostgisNGDataStoreFactory.PORT.key, Integer.valueOf(POSTGRES_PORT));
+			params.put(PostgisNGDataStoreFactory.DATABASE.key, POSTGRES_DB_NAME);
+			params.put(PostgisNGDataStoreFactory.SCHEMA.key, POSTGRES_SCHEMA);
+			params.put(PostgisNGDataStoreFactory.USER.key, POSTGRES_USER);
+			params.put(PostgisNGDataStoreFactory.PASSWD.key, POSTGRES_PASSWORD);
+			params.put(PostgisNGDataStoreFactory.PREPARED_STATEMENTS.key, POSTGRES_POOL_PREPARED_STATEMENTS);
+			// The pool is supplied, rather than created by the factory, so that its metrics can be read
+			params.put(PostgisNGDataStoreFactory.DATASOURCE.key, postGisDataSource);
+			try {
+				postGisDataStore = new PostgisNGDataStoreFactory().createDataStore(params);
+			} catch (Exception exception) {
+				postGisDataSource.close();
+				postGisDataSource = null;
+				throw exception;
+			}
+		}
+		return postGisDataStore;
+	}
+
+	/**
+	 * Gets the metrics of the PostGIS connection pool.
+	 * 
+	 * @return Map of metric names to values. Empty if the pool has not been created yet.
+	 */
+	public synchronized Map<String, Object> getPostGisPoolStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		if (postGisDataSource != null) {
+			statistics.put("active", postGisDataSource.getNumActive());
+			statistics.put("idle", postGisDataSource.getNumIdle());
+			statistics.put("minIdle", postGisDataSource.getMinIdle());
+			statistics.put("maxActive", postGisDataSource.getMaxActive());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Creates the PostGIS connection pool. Connections are validated when they are borrowed, and idle connections
+	 * above the minimum are evicted.
+	 */
+	private BasicDataSource createPostGisDataSource() {
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("org.postgresql.Driver");
+		dataSource.setUrl(String.format("jdbc:postgresql://%s:%s/%s", POSTGRES_HOST, POSTGRES_PORT, POSTGRES_DB_NAME));
+		dataSource.setUsername(POSTGRES_USER);
+		dataSource.setPassword(POSTGRES_PASSWORD);
+		dataSource.setMinIdle(POSTGRES_POOL_MIN_CONNECTIONS);
+		dataSource.setMaxActive(POSTGRES_POOL_MAX_CONNECTIONS);
+		dataSource.setMaxIdle(POSTGRES_POOL_MAX_CONNECTIONS);
+		dataSource.setMaxWait(POSTGRES_POOL_MAX_WAIT_MILLIS);
+		dataSource.setValidationQuery("SELECT 1");
+		dataSource.setTestOnBorrow(true);
+		dataSource.setTimeBetweenEvictionRunsMillis(POSTGRES_POOL_EVICTION_INTERVAL_MILLIS);
+		dataSource.setMinEvictableIdleTimeMillis(POSTGRES_POOL_MAX_IDLE_MILLIS);
+		dataSource.setPoolPreparedStatements(POSTGRES_POOL_PREPARED_STATEMENTS);
+		dataSource.setMaxOpenPreparedStatements(POSTGRES_POOL_MAX_PREPARED_STATEMENTS);
+		// GeoTools unwraps pooled connections to reach the PostgreSQL driver
+		dataSource.setAccessToUnderlyingConnectionAllowed(true);
+		return dataSource;
 	}
 
 	/**
@@ -247,6 +387,21 @@ public class Accessor {
 		return data;
 	}
 
+	/**
+	 * Gets many DataResources in one query.
+	 * 
+	 * @param dataIds
+	 *            The Ids of the DataResources
+	 * @return The DataResources that exist, in no particular order
+	 */
+	public List<DataResource> getData(List<String> dataIds) {
+		try {
+			return getDataResourceCollection().find(DBQuery.in("dataId", dataIds)).toArray();
+		} catch (MongoTimeoutException mte) {
+			throw new MongoException("MongoDB instance not available.");
+		}
+	}
+
 	/**
 	 * Gets a Deployment by its unique Id.
 	 * 
@@ -278,7 +433,28 @@ public class Accessor {
 	 *            The new Expiration date. ISO8601 String.
 	 */
 	public void updateLeaseExpirationDate(String leaseId, String expirationDate) {
-		getLeaseCollection().update(DBQuery.is("leaseId", leaseId), DBUpdate.set("expirationDate", expirationDate));
+		getLeaseCollection().update(DBQuery.is("leaseId", leaseId),
+				DBUpdate.set("expirationDate", expirationDate).set(LAST_MODIFIED_FIELD, new Date()));
+	}
+
+	/**
+	 * Gets the time a Lease was last written, which changes whenever its expiration date does.
+	 * 
+	 * @param leaseId
+	 *            The Id of the Lease
+	 * @return The modification time in epoch milliseconds, or -1 if the Lease does not exist or was last written
+	 *         before modification times were recorded
+	 */
+	public long getLeaseLastModified(String leaseId) {
+		DBObject lease;
+		try {
+			lease = getLeaseCollection().getDbCollection().findOne(new BasicDBObject("leaseId", leaseId),
+					new BasicDBObject(LAST_MODIFIED_FIELD, 1));
+		} catch (MongoTimeoutException mte) {
+			throw new MongoException("MongoDB instance not available.");
+		}
+		Object lastModified = (lease != null) ? lease.get(LAST_MODIFIED_FIELD) : null;
+		return (lastModified instanceof Date) ? ((Date) lastModified).getTime() : -1;
 	}
 
 	/**
@@ -295,7 +471,8 @@ public class Accessor {
 	}
 
 	/**
-	 * Creates a new Deployment entry in the database.
+	 * Creates a new Deployment entry in the database. A second Deployment for the same Data Id is rejected by the
+	 * unique index on the Data Id, with a MongoException, see {@link #isDuplicateKey(MongoException)}.
 	 * 
 	 * @param deployment
 	 *            Deployment to enter
@@ -304,6 +481,84 @@ public class Accessor {
 		getDeploymentCollection().insert(deployment);
 	}
 
+	/**
+	 * Determines if an exception from MongoDB is the rejection of a write that would duplicate a unique key, such as a
+	 * second Deployment for a Data Id.
+	 * 
+	 * @param exception
+	 *            The exception
+	 * @return True if the write was rejected as a duplicate
+	 */
+	public static boolean isDuplicateKey(MongoException exception) {
+		return exception.getCode() == DUPLICATE_KEY_CODE;
+	}
+
+	/**
+	 * Acquires the cluster-wide lock on deploying a Data Id, if it is free or its holder's lease has expired. The lock
+	 * is taken in one atomic findAndModify, so only one instance of Access can hold it at a time.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 * @param owner
+	 *            A unique Id of the holder
+	 * @param leaseMillis
+	 *            The time after which the lock lapses, if it has not been released
+	 * @return True if the lock was acquired; false if another holder has it
+	 */
+	public boolean acquireDeploymentLock(String dataId, String owner, long leaseMillis) {
+		Date now = new Date();
+		// Matches only a lapsed lock. If the lock is held, the upsert collides with it on the Data Id and is rejected.
+		BasicDBObject query = new BasicDBObject("_id", dataId).append("expiresAt", new BasicDBObject("$lt", now));
+		BasicDBObject update = new BasicDBObject("$set",
+				new BasicDBObject("owner", owner).append("expiresAt", new Date(now.getTime() + leaseMillis)));
+		try {
+			getDeploymentLockCollection().findAndModify(query, null, null, false, update, true, true);
+			return true;
+		} catch (MongoTimeoutException mte) {
+			throw new MongoException("MongoDB instance not available.");
+		} catch (MongoException exception) {
+			if (isDuplicateKey(exception)) {
+				return false;
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Extends the lease of the cluster-wide lock on deploying a Data Id, if it is still held by the given holder.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 * @param owner
+	 *            The unique Id of the holder, as given when the lock was acquired
+	 * @param leaseMillis
+	 *            The time from now after which the lock lapses, if it has not been released
+	 * @return True if the lock was renewed; false if it has lapsed, and may have been taken by another holder
+	 */
+	public boolean renewDeploymentLock(String dataId, String owner, long leaseMillis) {
+		BasicDBObject query = new BasicDBObject("_id", dataId).append("owner", owner);
+		BasicDBObject update = new BasicDBObject("$set",
+				new BasicDBObject("expiresAt", new Date(System.currentTimeMillis() + leaseMillis)));
+		try {
+			return getDeploymentLockCollection().update(query, update).getN() == 1;
+		} catch (MongoTimeoutException mte) {
+			throw new MongoException("MongoDB instance not available.");
+		}
+	}
+
+	/**
+	 * Releases the cluster-wide lock on deploying a Data Id. The lock is left alone if it has lapsed and been taken by
+	 * another holder.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 * @param owner
+	 *            The unique Id of the holder, as given when the lock was acquired
+	 */
+	public void releaseDeploymentLock(String dataId, String owner) {
+		getDeploymentLockCollection().remove(new BasicDBObject("_id", dataId).append("owner", owner));
+	}
+
 	/**
 	 * Creates a new Deployment Group entry in the database.
 	 * 
@@ -322,6 +577,8 @@ public class Accessor {
 	 */
 	public void insertLease(Lease lease) {
 		getLeaseCollection().insert(lease);
+		getLeaseCollection().getDbCollection().update(new BasicDBObject("leaseId", lease.getLeaseId()),
+				new BasicDBObject("$set", new BasicDBObject(LAST_MODIFIED_FIELD, new Date())));
 	}
 
 	/**
@@ -449,6 +706,15 @@ public class Accessor {
 		return JacksonDBCollection.wrap(collection, DeploymentGroup.class, String.class);
 	}
 
+	/**
+	 * Gets the Mongo Collection of the locks held on deploying Data Ids. Each lock is keyed by its Data Id.
+	 * 
+	 * @return Mongo collection for Deployment locks
+	 */
+	public DBCollection getDeploymentLockCollection() {
+		return mongoClient.getDB(DATABASE_NAME).getCollection(DEPLOYMENT_LOCK_COLLECTION_NAME);
+	}
+
 	/**
 	 * Gets the Mongo Collection of all Leases currently referenced within Piazza.
 	 * 
@@ -456,6 +722,6 @@ public class Accessor {
 	 */
 	public JacksonDBCollection<Lease, String> getLeaseCollection() {
 		DBCollection collection = mongoClient.getDB(DATABASE_NAME).getCollection(LEASE_COLLECTION_NAME);
-		return JacksonDBCollection.wrap(collection, Lease.class, String.class);
+		return JacksonDBCollection.wrap(collection, Lease.class, String.class, LEASE_MAPPER);
 	}
 }
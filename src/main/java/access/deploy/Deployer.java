@@ -16,12 +16,12 @@
 package access.deploy;
 
 import java.io.File;
+import java.nio.file.Files;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.tomcat.util.codec.binary.Base64;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -31,9 +31,13 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
-import org.springframework.web.client.RestTemplate;
 
+import com.mongodb.MongoException;
+
+import access.cache.ExportCache;
 import access.database.Accessor;
+import access.deploy.DeploymentLocker.DeploymentLock;
+import access.tile.TileGenerator;
 import access.util.AccessUtilities;
 import model.data.DataResource;
 import model.data.deployment.Deployment;
@@ -64,21 +68,20 @@ public class Deployer {
 	private AccessUtilities accessUtilities;
 	@Autowired
 	private Accessor accessor;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.hostname}")
-	private String GEOSERVER_HOST;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.port}")
-	private String GEOSERVER_PORT;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.username}")
-	private String GEOSERVER_USERNAME;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.password}")
-	private String GEOSERVER_PASSWORD;
 	@Autowired
-	private RestTemplate restTemplate;
-
-	private static final String HOST_ADDRESS = "http://%s:%s%s";
-
-	private static final String ADD_LAYER_ENDPOINT = "/geoserver/rest/workspaces/piazza/datastores/piazza/featuretypes/";
-	private static final String CAPABILITIES_URL = "/geoserver/piazza/wfs?service=wfs&version=2.0.0&request=GetCapabilities";
+	private ExportCache exportCache;
+	@Autowired
+	private RasterStager rasterStager;
+	@Autowired
+	private RasterOptimizer rasterOptimizer;
+	@Autowired
+	private MosaicDeployer mosaicDeployer;
+	@Autowired
+	private GeoServerClient geoServerClient;
+	@Autowired
+	private DeploymentLocker deploymentLocker;
+	@Autowired
+	private TileGenerator tileGenerator;
 
 	/**
 	 * Creates a new deployment from the dataResource object.
@@ -88,6 +91,20 @@ public class Deployer {
 	 * @return A deployment for the object.
 	 */
 	public Deployment createDeployment(DataResource dataResource) throws Exception {
+		return createDeployment(dataResource, null);
+	}
+
+	/**
+	 * Creates a new deployment from the dataResource object, under a lock on the deployment of its Data. The lock is
+	 * verified to still be held before the Deployment is saved.
+	 * 
+	 * @param dataResource
+	 *            The resource metadata, describing the object to be deployed.
+	 * @param lock
+	 *            The lock on the deployment of the Data. Null if not locked.
+	 * @return A deployment for the object.
+	 */
+	public Deployment createDeployment(DataResource dataResource, DeploymentLock lock) throws Exception {
 		// Create the GeoServer Deployment based on the Data Type
 		Deployment deployment;
 		try {
@@ -108,9 +125,22 @@ public class Deployer {
 			throw new Exception("There was an error deploying the to GeoServer instance: " + exception.getMessage());
 		}
 
-		// Insert the Deployment into the Database
+		// Insert the Deployment into the Database, unless another Job may have taken over the deployment
+		if (lock != null) {
+			deploymentLocker.verify(lock);
+		}
 		deployment.createdOn = new DateTime();
-		accessor.insertDeployment(deployment);
+		try {
+			accessor.insertDeployment(deployment);
+		} catch (MongoException exception) {
+			if (!Accessor.isDuplicateKey(exception)) {
+				throw exception;
+			}
+			// Another Job has already deployed this Data, and only one Deployment may exist for it. Use that one.
+			logger.log(String.format("Data %s was deployed by another Job while this Job deployed it; using Deployment from the other Job.",
+					dataResource.getDataId()), PiazzaLogger.WARNING);
+			return accessor.getDeploymentByDataId(dataResource.getDataId());
+		}
 
 		// Log information
 		logger.log(String.format("Created Deployment %s for Data %s on host %s", deployment.getDeploymentId(), deployment.getDataId(),
@@ -132,11 +162,6 @@ public class Deployer {
 	 * @return The Deployment
 	 */
 	private Deployment deployPostGisTable(DataResource dataResource) throws Exception {
-		// Create the JSON Payload for the Layer request to GeoServer
-		ClassLoader classLoader = getClass().getClassLoader();
-		String featureTypeRequestBody = IOUtils
-				.toString(classLoader.getResourceAsStream("templates" + File.separator + "featureTypeRequest.xml"));
-
 		// Get the appropriate Table Name from the DataResource
 		String tableName = null;
 		if (dataResource.getDataType() instanceof ShapefileDataType) {
@@ -148,11 +173,11 @@ public class Deployer {
 		}
 
 		// Inject the Metadata from the Data Resource into the Payload
-		String requestBody = String.format(featureTypeRequestBody, tableName, tableName, tableName,
+		String requestBody = String.format(geoServerClient.getFeatureTypeTemplate(), tableName, tableName, tableName,
 				dataResource.getSpatialMetadata().getEpsgString(), "EPSG:4326");
 
 		// Execute the POST to GeoServer to add the FeatureType
-		HttpStatus statusCode = postGeoServerFeatureType(ADD_LAYER_ENDPOINT, requestBody);
+		HttpStatus statusCode = postGeoServerFeatureType(requestBody);
 
 		// Ensure the Status Code is OK
 		if (statusCode != HttpStatus.CREATED) {
@@ -163,75 +188,101 @@ public class Deployer {
 
 		// Create a new Deployment for this Resource
 		String deploymentId = uuidFactory.getUUID();
-		String capabilitiesUrl = String.format(HOST_ADDRESS, GEOSERVER_HOST, GEOSERVER_PORT, CAPABILITIES_URL);
-
-		Deployment deployment = new Deployment(deploymentId, dataResource.getDataId(), GEOSERVER_HOST, GEOSERVER_PORT, tableName,
-				capabilitiesUrl);
+		Deployment deployment = new Deployment(deploymentId, dataResource.getDataId(), geoServerClient.getHost(), geoServerClient.getPort(),
+				tableName, geoServerClient.getWfsCapabilitiesUrl());
 
 		// Return the newly created Deployment
 		return deployment;
 	}
 
 	/**
-	 * Deploys a GeoTIFF resource to GeoServer. This will create a new GeoServer data store and layer. This will upload
-	 * the file directly to GeoServer using the GeoServer REST API.
+	 * Deploys a GeoTIFF resource to GeoServer. This will create a new GeoServer data store and layer. If enabled, the
+	 * file is first rewritten as a tiled, compressed GeoTIFF with internal overviews. If mosaics are enabled, the file is
+	 * instead added as a granule to a shared ImageMosaic, see {@link MosaicDeployer}. If raster staging is enabled, the
+	 * file is staged onto the volume shared with GeoServer and registered by its path. Otherwise, the file is uploaded
+	 * directly to GeoServer using the GeoServer REST API; it is streamed from local disk or S3 as it is uploaded, with
+	 * its Content-Length, so it is never held in memory.
 	 * 
 	 * @param dataResource
 	 *            The DataResource to deploy.
 	 * @return The Deployment
 	 */
 	private Deployment deployRaster(DataResource dataResource) throws Exception {
-		// Get the File Bytes of the Raster to be uploaded
-		byte[] fileBytes = accessUtilities.getBytesForDataResource(dataResource);
-
-		// Create the Request that will upload the File
-		HttpHeaders headers = getGeoServerHeaders();
-		headers.add("Content-type", "image/tiff");
-		HttpEntity<byte[]> request = new HttpEntity<byte[]>(fileBytes, headers);
-
-		// Send the Request
-		String url = String.format("http://%s:%s/geoserver/rest/workspaces/piazza/coveragestores/%s/file.geotiff", GEOSERVER_HOST,
-				GEOSERVER_PORT, dataResource.getDataId());
+		// Rewrite the Raster in a tiled layout with overviews, if enabled
+		File optimizedFile = rasterOptimizer.isEnabled() ? rasterOptimizer.optimize(dataResource) : null;
 		try {
-			restTemplate.exchange(url, HttpMethod.PUT, request, String.class);
-		} catch (HttpClientErrorException | HttpServerErrorException exception) {
-			if (exception.getStatusCode() == HttpStatus.METHOD_NOT_ALLOWED) {
-				// If 405 NOT ALLOWED is encountered, then the layer may already exist on the GeoServer. Check if it
-				// exists already. If it does, then use this layer for the Deployment.
-				if (doesGeoServerLayerExist(dataResource.getDataId()) == false) {
-					// If it doesn't exist, throw an error. Something went wrong.
+			if (mosaicDeployer.isEnabled()) {
+				// Add the Raster to the shared mosaic for its CRS and bands, rather than to a Coverage Store of its own
+				return mosaicDeployer.deploy(dataResource, optimizedFile);
+			}
+			HttpHeaders headers = geoServerClient.getHeaders(null);
+			HttpEntity<?> request;
+			String url;
+			String operation;
+			if (rasterStager.isEnabled()) {
+				// Stage the File on the shared volume, and point GeoServer at it
+				String path = rasterStager.stage(dataResource, optimizedFile);
+				headers.setContentType(MediaType.TEXT_PLAIN);
+				request = new HttpEntity<String>(String.format("file:%s", path), headers);
+				url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "/external.geotiff", dataResource.getDataId());
+				operation = "registerGeoTiff";
+			} else {
+				// Get the File of the Raster to be uploaded
+				Resource file = (optimizedFile != null) ? new FileSystemResource(optimizedFile)
+						: accessUtilities.getFileResource(dataResource);
+
+				// Create the Request that will upload the File
+				headers.add("Content-type", "image/tiff");
+				headers.setContentLength(file.contentLength());
+				request = new HttpEntity<Resource>(file, headers);
+				url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "/file.geotiff", dataResource.getDataId());
+				operation = "uploadGeoTiff";
+			}
+
+			// Send the Request
+			try {
+				geoServerClient.exchange(operation, url, HttpMethod.PUT, request);
+			} catch (HttpClientErrorException | HttpServerErrorException exception) {
+				if (exception.getStatusCode() == HttpStatus.METHOD_NOT_ALLOWED) {
+					// If 405 NOT ALLOWED is encountered, then the layer may already exist on the GeoServer. Check if it
+					// exists already. If it does, then use this layer for the Deployment.
+					if (doesGeoServerLayerExist(dataResource.getDataId()) == false) {
+						// If it doesn't exist, throw an error. Something went wrong.
+						String error = String.format(
+								"GeoServer would not allow for layer creation, despite an existing layer not being present: %s", url,
+								exception.getStatusCode().toString(), exception.getResponseBodyAsString());
+						logger.log(error, PiazzaLogger.ERROR);
+						throw new Exception(error);
+					}
+				} else if ((exception.getStatusCode() == HttpStatus.INTERNAL_SERVER_ERROR)
+						&& (exception.getResponseBodyAsString().contains("Error persisting"))) {
+					// If a 500 is received, then it's possible that GeoServer is processing this layer already via a
+					// simultaneous POST, and there is a collision. Add this information to the response. Jobs in Piazza
+					// deploy a Data Id one at a time, under the DeploymentLocker, so the POST was made by other means.
 					String error = String.format(
-							"GeoServer would not allow for layer creation, despite an existing layer not being present: %s", url,
+							"Creating Layer on GeoServer at URL %s returned HTTP Status %s with Body: %s. This may be the result of GeoServer processing this Data Id simultaneously by another request. Please try again.",
+							url, exception.getStatusCode().toString(), exception.getResponseBodyAsString());
+					logger.log(error, PiazzaLogger.ERROR);
+					throw new Exception(error);
+				} else {
+					// For any other errors, report back this error to the user and fail the job.
+					String error = String.format("Creating Layer on GeoServer at URL %s returned HTTP Status %s with Body: %s", url,
 							exception.getStatusCode().toString(), exception.getResponseBodyAsString());
 					logger.log(error, PiazzaLogger.ERROR);
 					throw new Exception(error);
 				}
-			} else if ((exception.getStatusCode() == HttpStatus.INTERNAL_SERVER_ERROR)
-					&& (exception.getResponseBodyAsString().contains("Error persisting"))) {
-				// If a 500 is received, then it's possible that GeoServer is processing this layer already via a
-				// simultaneous POST, and there is a collision. Add this information to the response.
-				// TODO: In the future, we should persist a lookup table where only one Data ID is persisted at a time
-				// to GeoServer, to avoid this collision.
-				String error = String.format(
-						"Creating Layer on GeoServer at URL %s returned HTTP Status %s with Body: %s. This may be the result of GeoServer processing this Data Id simultaneously by another request. Please try again.",
-						url, exception.getStatusCode().toString(), exception.getResponseBodyAsString());
-				logger.log(error, PiazzaLogger.ERROR);
-				throw new Exception(error);
-			} else {
-				// For any other errors, report back this error to the user and fail the job.
-				String error = String.format("Creating Layer on GeoServer at URL %s returned HTTP Status %s with Body: %s", url,
-						exception.getStatusCode().toString(), exception.getResponseBodyAsString());
-				logger.log(error, PiazzaLogger.ERROR);
-				throw new Exception(error);
+			}
+		} finally {
+			if (optimizedFile != null) {
+				Files.deleteIfExists(optimizedFile.toPath());
 			}
 		}
 
 		// Create a Deployment for this Resource
 		String deploymentId = uuidFactory.getUUID();
-		String capabilitiesUrl = String.format(HOST_ADDRESS, GEOSERVER_HOST, GEOSERVER_PORT, CAPABILITIES_URL);
 		String deploymentLayerName = dataResource.getDataId();
-		Deployment deployment = new Deployment(deploymentId, dataResource.getDataId(), GEOSERVER_HOST, GEOSERVER_PORT, deploymentLayerName,
-				capabilitiesUrl);
+		Deployment deployment = new Deployment(deploymentId, dataResource.getDataId(), geoServerClient.getHost(), geoServerClient.getPort(),
+				deploymentLayerName, geoServerClient.getWfsCapabilitiesUrl());
 
 		// Return the newly Created Deployment
 		return deployment;
@@ -239,7 +290,7 @@ public class Deployer {
 
 	/**
 	 * Deletes a deployment, as specified by its Id. This will remove the Deployment from GeoServer, delete the lease
-	 * and the deployment from the Database.
+	 * and the deployment from the Database, and drop the exports cached for its Data and any raster staged for it.
 	 * 
 	 * @param deploymentId
 	 *            The Id of the deployment.
@@ -252,77 +303,81 @@ public class Deployer {
 		if (deployment == null) {
 			throw new Exception("Deployment does not exist matching Id " + deploymentId);
 		}
-		// Delete the Deployment Layer from GeoServer
-		HttpHeaders headers = getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		HttpEntity<String> request = new HttpEntity<String>(headers);
-		String url = String.format("http://%s:%s/geoserver/rest/layers/%s", GEOSERVER_HOST, GEOSERVER_PORT, deployment.getLayer());
-		try {
-			restTemplate.exchange(url, HttpMethod.DELETE, request, String.class);
-		} catch (HttpClientErrorException | HttpServerErrorException exception) {
-			// Check the status code. If it's a 404, then the layer has likely
-			// already been deleted by some other means.
-			if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
-				logger.log(String.format(
-						"Attempted to undeploy GeoServer layer %s while deleting the Deployment Id %s, but the layer was already deleted from GeoServer. This layer may have been removed by some other means. If this was a Vector Source, then this message can be safely ignored.",
-						deployment.getLayer(), deploymentId), PiazzaLogger.WARNING);
-			} else {
-				// Some other exception occurred. Bubble it up.
-				String error = String.format("Error deleting GeoServer Layer for Deployment %s via request %s: Code %s with Error %s",
-						deploymentId, url, exception.getStatusCode(), exception.getResponseBodyAsString());
-				logger.log(error, PiazzaLogger.ERROR);
-				throw new Exception(error);
+		if (MosaicDeployer.isMosaicDeployment(deployment)) {
+			// Remove the granule from its mosaic. The mosaic remains for the other Deployments in it.
+			mosaicDeployer.undeploy(deployment);
+		} else {
+			// Delete the Deployment Layer from GeoServer
+			String url = geoServerClient.getRestUrl(GeoServerClient.LAYER_PATH, deployment.getLayer());
+			try {
+				geoServerClient.exchange("deleteLayer", url, HttpMethod.DELETE);
+			} catch (HttpClientErrorException | HttpServerErrorException exception) {
+				// Check the status code. If it's a 404, then the layer has likely
+				// already been deleted by some other means.
+				if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
+					logger.log(String.format(
+							"Attempted to undeploy GeoServer layer %s while deleting the Deployment Id %s, but the layer was already deleted from GeoServer. This layer may have been removed by some other means. If this was a Vector Source, then this message can be safely ignored.",
+							deployment.getLayer(), deploymentId), PiazzaLogger.WARNING);
+				} else {
+					// Some other exception occurred. Bubble it up.
+					String error = String.format("Error deleting GeoServer Layer for Deployment %s via request %s: Code %s with Error %s",
+							deploymentId, url, exception.getStatusCode(), exception.getResponseBodyAsString());
+					logger.log(error, PiazzaLogger.ERROR);
+					throw new Exception(error);
+				}
 			}
-		}
 
-		// If this was a Raster dataset that contained its own unique data store, then delete that Coverage Store.
-		url = String.format("http://%s:%s/geoserver/rest/workspaces/piazza/coveragestores/%s?purge=all&recurse=true", GEOSERVER_HOST,
-				GEOSERVER_PORT, deployment.getDataId());
-		try {
-			restTemplate.exchange(url, HttpMethod.DELETE, request, String.class);
-		} catch (HttpClientErrorException | HttpServerErrorException exception) {
-			// Check the status code. If it's a 404, then the layer has likely
-			// already been deleted by some other means.
-			if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
-				logger.log(String.format(
-						"Attempted to delete Coverage Store for GeoServer %s while deleting the Deployment Id %s, but the Coverage Store was already deleted from GeoServer. This Store may have been removed by some other means.",
-						deployment.getLayer(), deploymentId), PiazzaLogger.WARNING);
-			} else {
-				// Some other exception occurred. Bubble it up.
-				String error = String.format(
-						"Error deleting GeoServer Coverage Store for Deployment %s via request %s: Code %s with Error: %s", deploymentId,
-						url, exception.getStatusCode(), exception.getResponseBodyAsString());
-				logger.log(error, PiazzaLogger.ERROR);
-				throw new Exception(error);
+			// If this was a Raster dataset that contained its own unique data store, then delete that Coverage Store.
+			url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "?purge=all&recurse=true", deployment.getDataId());
+			try {
+				geoServerClient.exchange("deleteCoverageStore", url, HttpMethod.DELETE);
+			} catch (HttpClientErrorException | HttpServerErrorException exception) {
+				// Check the status code. If it's a 404, then the layer has likely
+				// already been deleted by some other means.
+				if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
+					logger.log(String.format(
+							"Attempted to delete Coverage Store for GeoServer %s while deleting the Deployment Id %s, but the Coverage Store was already deleted from GeoServer. This Store may have been removed by some other means.",
+							deployment.getLayer(), deploymentId), PiazzaLogger.WARNING);
+				} else {
+					// Some other exception occurred. Bubble it up.
+					String error = String.format(
+							"Error deleting GeoServer Coverage Store for Deployment %s via request %s: Code %s with Error: %s",
+							deploymentId, url, exception.getStatusCode(), exception.getResponseBodyAsString());
+					logger.log(error, PiazzaLogger.ERROR);
+					throw new Exception(error);
+				}
 			}
 		}
 
 		// Remove the Deployment from the Database
 		accessor.deleteDeployment(deployment);
+		// Drop the exports and tiles cached for the Data, so that they are built again from the current table
+		exportCache.remove(deployment.getDataId());
+		tileGenerator.remove(deployment.getDataId());
+		// Remove the raster staged for GeoServer, if any
+		rasterStager.remove(deployment.getDataId());
 	}
 
 	/**
 	 * Executes the POST request to GeoServer to create the FeatureType as a Layer.
 	 * 
 	 * @param featureType
-	 *            The JSON Payload of the POST request
+	 *            The XML Payload of the POST request
 	 * @return The HTTP Status code of the request to GeoServer for adding the layer. GeoServer will typically not
 	 *         return any payload in the response, so the HTTP Status is the best we can do in order to check for
 	 *         success.
 	 */
-	private HttpStatus postGeoServerFeatureType(String restURL, String featureType) throws Exception {
+	private HttpStatus postGeoServerFeatureType(String featureType) throws Exception {
 		// Construct the URL for the Service
-		String url = String.format(HOST_ADDRESS, GEOSERVER_HOST, GEOSERVER_PORT, restURL);
-		System.out.println(String.format("Attempting to push a GeoServer Featuretype %s to URL %s", featureType, url));
+		String url = geoServerClient.getRestUrl(GeoServerClient.FEATURE_TYPES_PATH);
+		logger.log(String.format("Attempting to push a GeoServer Featuretype %s to URL %s", featureType, url), PiazzaLogger.INFO);
 
 		// Create the Request template and execute
-		HttpHeaders headers = getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_XML);
-		HttpEntity<String> request = new HttpEntity<String>(featureType, headers);
+		HttpEntity<String> request = new HttpEntity<String>(featureType, geoServerClient.getHeaders(MediaType.APPLICATION_XML));
 
 		ResponseEntity<String> response = null;
 		try {
-			response = restTemplate.exchange(url, HttpMethod.POST, request, String.class);
+			response = geoServerClient.exchange("createFeatureType", url, HttpMethod.POST, request);
 		} catch (Exception exception) {
 			String error = String.format("There was an error creating the Coverage Layer to URL %s with errors %s", url,
 					exception.getMessage());
@@ -342,12 +397,9 @@ public class Deployer {
 	 * @return True if the layer exists on GeoServer, false if not.
 	 */
 	public boolean doesGeoServerLayerExist(String layerId) throws Exception {
-		HttpHeaders headers = getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		HttpEntity<String> request = new HttpEntity<String>(headers);
-		String url = String.format("http://%s:%s/geoserver/rest/layers/%s.json", GEOSERVER_HOST, GEOSERVER_PORT, layerId);
+		String url = geoServerClient.getRestUrl(GeoServerClient.LAYER_PATH + ".json", layerId);
 		try {
-			ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, request, String.class);
+			ResponseEntity<String> response = geoServerClient.exchange("getLayer", url, HttpMethod.GET);
 			if (response.getStatusCode().equals(HttpStatus.OK)) {
 				return true;
 			} else {
@@ -367,23 +419,6 @@ public class Deployer {
 		}
 	}
 
-	/**
-	 * Gets the headers for a typical GeoServer request. This include the "application/XML" content, and the encoded
-	 * basic credentials.
-	 * 
-	 * @return
-	 */
-	public HttpHeaders getGeoServerHeaders() {
-		// Get the Basic authentication Headers for GeoServer
-		String plainCredentials = String.format("%s:%s", GEOSERVER_USERNAME, GEOSERVER_PASSWORD);
-		byte[] credentialBytes = plainCredentials.getBytes();
-		byte[] encodedCredentials = Base64.encodeBase64(credentialBytes);
-		String credentials = new String(encodedCredentials);
-		HttpHeaders headers = new HttpHeaders();
-		headers.add("Authorization", "Basic " + credentials);
-		return headers;
-	}
-
 	/**
 	 * Checks to see if the DataResource currently has a deployment in the system or not.
 	 * 
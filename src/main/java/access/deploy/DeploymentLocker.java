@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.deploy;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import access.database.Accessor;
+import util.PiazzaLogger;
+
+/**
+ * Serializes the deployment of each Data Id, so that concurrent Jobs for the same Data do not publish it to GeoServer
+ * twice. The first Job to lock a Data Id deploys it; the others block until it is done, and then find and reuse its
+ * Deployment.
+ * 
+ * <p>
+ * The lock has two levels. Jobs in this instance of Access first take a local lock on the Data Id, so that they wait
+ * without polling the database, and without holding up Jobs for other Data. The holder of the local lock then takes the
+ * cluster-wide lock, a document in Mongo keyed by the Data Id, which is taken atomically and lapses after a lease time,
+ * so a lock held by an instance that died is eventually freed. The lease of every lock held is renewed periodically
+ * while its deployment runs, and {@link #verify(DeploymentLock)} checks that it is still held before the Deployment is
+ * saved.
+ * </p>
+ */
+@Component
+public class DeploymentLocker {
+	@Value("${deployment.lock.lease.seconds}")
+	private long LEASE_SECONDS;
+	@Value("${deployment.lock.wait.seconds}")
+	private long WAIT_SECONDS;
+	@Value("${deployment.lock.poll.millis}")
+	private long POLL_MILLIS;
+
+	// Local locks by Data Id, removed once no Job holds or waits for them
+	private final ConcurrentHashMap<String, LocalLock> localLocks = new ConcurrentHashMap<String, LocalLock>();
+	private final Set<DeploymentLock> heldLocks = ConcurrentHashMap.newKeySet();
+
+	@Autowired
+	private Accessor accessor;
+	@Autowired
+	private PiazzaLogger logger;
+
+	/**
+	 * Locks the deployment of a Data Id, blocking while another Job holds the lock. The lock must be released with
+	 * {@link #unlock(DeploymentLock)}, in a finally block.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 * @return The lock
+	 */
+	public DeploymentLock lock(String dataId) throws Exception {
+		long deadline = System.currentTimeMillis() + WAIT_SECONDS * 1000;
+		LocalLock localLock = localLocks.compute(dataId, (key, existing) -> {
+			LocalLock joined = (existing != null) ? existing : new LocalLock();
+			joined.users++;
+			return joined;
+		});
+		boolean locked = false;
+		try {
+			if (!localLock.lock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				throw getTimeoutException(dataId);
+			}
+			locked = true;
+			String owner = UUID.randomUUID().toString();
+			boolean waited = false;
+			while (!accessor.acquireDeploymentLock(dataId, owner, LEASE_SECONDS * 1000)) {
+				if (System.currentTimeMillis() > deadline) {
+					throw getTimeoutException(dataId);
+				}
+				if (!waited) {
+					logger.log(String.format("Waiting for another Job to finish deploying Data %s", dataId), PiazzaLogger.INFO);
+					waited = true;
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+			DeploymentLock lock = new DeploymentLock(dataId, owner, localLock);
+			heldLocks.add(lock);
+			return lock;
+		} catch (Exception exception) {
+			releaseLocalLock(dataId, localLock, locked);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Checks that a lock is still held, renewing its lease. To be called before the results of the deployment are saved,
+	 * as the lease may have lapsed, and the lock been taken by another Job, if renewals failed.
+	 * 
+	 * @param lock
+	 *            The lock
+	 */
+	public void verify(DeploymentLock lock) throws Exception {
+		if (lock.lost || !accessor.renewDeploymentLock(lock.dataId, lock.owner, LEASE_SECONDS * 1000)) {
+			lock.lost = true;
+			throw new Exception(String.format("The Deployment lock for Data %s lapsed, and may be held by another Job. Please try again.",
+					lock.dataId));
+		}
+	}
+
+	/**
+	 * Releases the lock on the deployment of a Data Id.
+	 * 
+	 * @param lock
+	 *            The lock. Ignored if null.
+	 */
+	public void unlock(DeploymentLock lock) {
+		if (lock == null) {
+			return;
+		}
+		heldLocks.remove(lock);
+		try {
+			accessor.releaseDeploymentLock(lock.dataId, lock.owner);
+		} catch (Exception exception) {
+			// The lock lapses at the end of its lease regardless
+			logger.log(String.format("Could not release the Deployment lock for Data %s: %s", lock.dataId, exception.getMessage()),
+					PiazzaLogger.WARNING);
+		} finally {
+			releaseLocalLock(lock.dataId, lock.localLock, true);
+		}
+	}
+
+	/**
+	 * Renews the leases of the locks held by this instance, so that they do not lapse during long deployments. A lock
+	 * that is found to have lapsed is marked as lost, and fails its next {@link #verify(DeploymentLock)}.
+	 */
+	@Scheduled(fixedDelayString = "${deployment.lock.heartbeat.millis}")
+	public void renewLocks() {
+		for (DeploymentLock lock : heldLocks) {
+			try {
+				if (!accessor.renewDeploymentLock(lock.dataId, lock.owner, LEASE_SECONDS * 1000)) {
+					lock.lost = true;
+					heldLocks.remove(lock);
+					logger.log(String.format("The Deployment lock for Data %s lapsed while it was held.", lock.dataId),
+							PiazzaLogger.WARNING);
+				}
+			} catch (Exception exception) {
+				// Tried again on the next renewal, while the lease lasts
+				logger.log(String.format("Could not renew the Deployment lock for Data %s: %s", lock.dataId, exception.getMessage()),
+						PiazzaLogger.WARNING);
+			}
+		}
+	}
+
+	/**
+	 * Unlocks a local lock if it was locked, and drops it once no other Job holds or waits for it.
+	 */
+	private void releaseLocalLock(String dataId, LocalLock localLock, boolean locked) {
+		if (locked) {
+			localLock.lock.unlock();
+		}
+		localLocks.computeIfPresent(dataId, (key, existing) -> (--existing.users == 0) ? null : existing);
+	}
+
+	private Exception getTimeoutException(String dataId) {
+		return new Exception(String.format(
+				"Timed out after %s seconds waiting for another Job to finish deploying Data %s. Please try again.", WAIT_SECONDS,
+				dataId));
+	}
+
+	/**
+	 * The local lock on a Data Id, with the number of Jobs holding or waiting for it. The count is only changed within
+	 * the atomic updates of the map of local locks.
+	 */
+	private static class LocalLock {
+		private final ReentrantLock lock = new ReentrantLock();
+		private int users;
+	}
+
+	/**
+	 * A lock held on the deployment of a Data Id.
+	 */
+	public static class DeploymentLock {
+		private final String dataId;
+		private final String owner;
+		private final LocalLock localLock;
+		private volatile boolean lost;
+
+		private DeploymentLock(String dataId, String owner, LocalLock localLock) {
+			this.dataId = dataId;
+			this.owner = owner;
+			this.localLock = localLock;
+		}
+
+		public String getDataId() {
+			return dataId;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.deploy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.tomcat.util.codec.binary.Base64;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Client for the GeoServer REST API, through which all traffic from Access to GeoServer is sent.
+ * 
+ * <p>
+ * The client owns a connection pool of its own, separate from the shared RestTemplate, so that slow GeoServer requests
+ * such as raster uploads cannot exhaust connections needed elsewhere. Connections are kept alive between requests,
+ * for as long as GeoServer allows, and idle connections are evicted in the background. The Basic credentials, the
+ * base URLs and the request templates are computed once, at startup, rather than for every request.
+ * </p>
+ * 
+ * <p>
+ * The latency of each REST operation is recorded under the operation's name, and reported with the state of the
+ * connection pool in the administrative statistics.
+ * </p>
+ */
+@Component
+public class GeoServerClient {
+	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.hostname}")
+	private String GEOSERVER_HOST;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.port}")
+	private String GEOSERVER_PORT;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.username}")
+	private String GEOSERVER_USERNAME;
+	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.password}")
+	private String GEOSERVER_PASSWORD;
+	@Value("${geoserver.http.max.connections}")
+	private int MAX_CONNECTIONS;
+	@Value("${geoserver.http.keepalive.seconds}")
+	private long KEEPALIVE_SECONDS;
+	@Value("${geoserver.http.idle.seconds}")
+	private long IDLE_SECONDS;
+
+	/**
+	 * The REST path of the Feature Types of the PostGIS data store
+	 */
+	public static final String FEATURE_TYPES_PATH = "/workspaces/piazza/datastores/piazza/featuretypes/";
+	/**
+	 * The REST path format of a Coverage Store, by name
+	 */
+	public static final String COVERAGE_STORE_PATH = "/workspaces/piazza/coveragestores/%s";
+	/**
+	 * The REST path format of a Layer, by name
+	 */
+	public static final String LAYER_PATH = "/layers/%s";
+	/**
+	 * The REST path format of a Layer Group, by name
+	 */
+	public static final String LAYER_GROUP_PATH = "/workspaces/piazza/layergroups/%s";
+	/**
+	 * The REST path of the Layer Groups
+	 */
+	public static final String LAYER_GROUPS_PATH = "/workspaces/piazza/layergroups.json";
+	private static final String WFS_CAPABILITIES_PATH = "/geoserver/piazza/wfs?service=wfs&version=2.0.0&request=GetCapabilities";
+	private static final String WMS_CAPABILITIES_PATH = "/geoserver/piazza/wms?service=wms&version=1.3.0&request=GetCapabilities";
+	private static final String FEATURE_TYPE_TEMPLATE = "templates/featureTypeRequest.xml";
+
+	private String authorization;
+	private String restUrl;
+	private String wfsCapabilitiesUrl;
+	private String wmsCapabilitiesUrl;
+	private String featureTypeTemplate;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private CloseableHttpClient httpClient;
+	private RestTemplate restTemplate;
+	private final Map<String, OperationStatistics> operations = new ConcurrentHashMap<String, OperationStatistics>();
+
+	@PostConstruct
+	private void initialize() throws IOException {
+		String plainCredentials = String.format("%s:%s", GEOSERVER_USERNAME, GEOSERVER_PASSWORD);
+		authorization = "Basic " + new String(Base64.encodeBase64(plainCredentials.getBytes(StandardCharsets.UTF_8)));
+		String baseUrl = String.format("http://%s:%s", GEOSERVER_HOST, GEOSERVER_PORT);
+		restUrl = baseUrl + "/geoserver/rest";
+		wfsCapabilitiesUrl = baseUrl + WFS_CAPABILITIES_PATH;
+		wmsCapabilitiesUrl = baseUrl + WMS_CAPABILITIES_PATH;
+		try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream(FEATURE_TYPE_TEMPLATE)) {
+			featureTypeTemplate = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+		}
+
+		// All connections go to the one GeoServer host, so the pool has a single route
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(MAX_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+		httpClient = HttpClientBuilder.create().setConnectionManager(connectionManager)
+				.setKeepAliveStrategy((response, context) -> {
+					// Keep a connection alive for as long as GeoServer allows, up to the configured time
+					long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+					return (keepAlive > 0) ? Math.min(keepAlive, KEEPALIVE_SECONDS * 1000) : KEEPALIVE_SECONDS * 1000;
+				}).evictExpiredConnections().evictIdleConnections(IDLE_SECONDS, TimeUnit.SECONDS).build();
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+		// Stream request bodies rather than buffering them, so that uploads of large files are not held in memory
+		requestFactory.setBufferRequestBody(false);
+		restTemplate = new RestTemplate(requestFactory);
+	}
+
+	@PreDestroy
+	private void close() throws IOException {
+		if (httpClient != null) {
+			httpClient.close();
+		}
+	}
+
+	/**
+	 * @return The host name of GeoServer, for Deployments
+	 */
+	public String getHost() {
+		return GEOSERVER_HOST;
+	}
+
+	/**
+	 * @return The port of GeoServer, for Deployments
+	 */
+	public String getPort() {
+		return GEOSERVER_PORT;
+	}
+
+	/**
+	 * @return The WFS GetCapabilities URL of the Piazza workspace, for Deployments of whole layers
+	 */
+	public String getWfsCapabilitiesUrl() {
+		return wfsCapabilitiesUrl;
+	}
+
+	/**
+	 * @return The WMS GetCapabilities URL of the Piazza workspace, for Deployments of granules of mosaics
+	 */
+	public String getWmsCapabilitiesUrl() {
+		return wmsCapabilitiesUrl;
+	}
+
+	/**
+	 * @return The template of the request body that creates a Feature Type from a PostGIS table
+	 */
+	public String getFeatureTypeTemplate() {
+		return featureTypeTemplate;
+	}
+
+	/**
+	 * Gets the URL of a GeoServer REST resource.
+	 * 
+	 * @param pathFormat
+	 *            The path of the resource under /geoserver/rest, such as {@link #LAYER_PATH}, as a format string
+	 * @param arguments
+	 *            The arguments of the format string
+	 * @return The URL
+	 */
+	public String getRestUrl(String pathFormat, Object... arguments) {
+		return restUrl + String.format(pathFormat, arguments);
+	}
+
+	/**
+	 * Gets the headers for a GeoServer request, with the Basic credentials.
+	 * 
+	 * @param contentType
+	 *            The content type of the request body, or null if there is none
+	 * @return The headers, which the caller may add to
+	 */
+	public HttpHeaders getHeaders(MediaType contentType) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.AUTHORIZATION, authorization);
+		if (contentType != null) {
+			headers.setContentType(contentType);
+		}
+		return headers;
+	}
+
+	/**
+	 * Sends a request to GeoServer, and records its latency under the name of the operation.
+	 * 
+	 * @param operation
+	 *            The name of the REST operation, for statistics, such as "deleteLayer"
+	 * @param url
+	 *            The URL, from {@link #getRestUrl(String, Object...)}
+	 * @param method
+	 *            The HTTP method
+	 * @param request
+	 *            The request, with headers from {@link #getHeaders(MediaType)}
+	 * @return The response. Error statuses are thrown as HttpClientErrorException or HttpServerErrorException, as by
+	 *         RestTemplate.
+	 */
+	public ResponseEntity<String> exchange(String operation, String url, HttpMethod method, HttpEntity<?> request) {
+		OperationStatistics statistics = operations.computeIfAbsent(operation, name -> new OperationStatistics());
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			ResponseEntity<String> response = restTemplate.exchange(url, method, request, String.class);
+			succeeded = true;
+			return response;
+		} finally {
+			statistics.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), succeeded);
+		}
+	}
+
+	/**
+	 * Sends a request without a body to GeoServer, and records its latency under the name of the operation.
+	 * 
+	 * @param operation
+	 *            The name of the REST operation, for statistics
+	 * @param url
+	 *            The URL, from {@link #getRestUrl(String, Object...)}
+	 * @param method
+	 *            The HTTP method
+	 * @return The response
+	 */
+	public ResponseEntity<String> exchange(String operation, String url, HttpMethod method) {
+		return exchange(operation, url, method, new HttpEntity<String>(getHeaders(MediaType.APPLICATION_JSON)));
+	}
+
+	/**
+	 * Gets the latency of each REST operation, and the state of the connection pool.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> operationStatistics = new HashMap<String, Object>();
+		for (Map.Entry<String, OperationStatistics> entry : operations.entrySet()) {
+			operationStatistics.put(entry.getKey(), entry.getValue().toMap());
+		}
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("operations", operationStatistics);
+		if (connectionManager != null) {
+			PoolStats poolStats = connectionManager.getTotalStats();
+			Map<String, Object> pool = new HashMap<String, Object>();
+			pool.put("leased", poolStats.getLeased());
+			pool.put("available", poolStats.getAvailable());
+			pool.put("pending", poolStats.getPending());
+			pool.put("max", poolStats.getMax());
+			statistics.put("pool", pool);
+		}
+		return statistics;
+	}
+
+	/**
+	 * The counts and latency of one REST operation.
+	 */
+	private static class OperationStatistics {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong totalMillis = new AtomicLong();
+		private final AtomicLong maxMillis = new AtomicLong();
+
+		private void record(long millis, boolean succeeded) {
+			count.incrementAndGet();
+			if (!succeeded) {
+				errors.incrementAndGet();
+			}
+			totalMillis.addAndGet(millis);
+			maxMillis.accumulateAndGet(millis, Math::max);
+		}
+
+		private Map<String, Object> toMap() {
+			long requests = count.get();
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("count", requests);
+			map.put("errors", errors.get());
+			map.put("meanMillis", (requests > 0) ? totalMillis.get() / requests : 0);
+			map.put("maxMillis", maxMillis.get());
+			return map;
+		}
+	}
+}
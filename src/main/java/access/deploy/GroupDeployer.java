@@ -18,7 +18,6 @@ package access.deploy;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -29,7 +28,6 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.HttpStatusCodeException;
-import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -61,17 +59,7 @@ public class GroupDeployer {
 	@Autowired
 	private Accessor accessor;
 	@Autowired
-	private Deployer deployer;
-	@Autowired
-	private RestTemplate restTemplate;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.hostname}")
-	private String GEOSERVER_HOST;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.port}")
-	private String GEOSERVER_PORT;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.username}")
-	private String GEOSERVER_USERNAME;
-	@Value("${vcap.services.pz-geoserver-efs.credentials.geoserver.password}")
-	private String GEOSERVER_PASSWORD;
+	private GeoServerClient geoServerClient;
 
 	/**
 	 * Creates a new Deployment Group, without specifying any initial Data Layers to be added. This will create the
@@ -96,12 +84,14 @@ public class GroupDeployer {
 	 * layer to the Layer Group.
 	 * 
 	 * @param deployments
-	 *            The list of Layers to add to the group.
+	 *            The list of Layers to add to the group. Deployments of granules in a mosaic cannot be grouped.
 	 * @param createdBy
 	 *            The user who requests this creation
 	 * @return Deployment Group, containing an Id that can be used for future reference.
 	 */
 	public DeploymentGroup createDeploymentGroup(List<Deployment> deployments, String createdBy) throws Exception {
+		checkGroupable(deployments);
+
 		// Create the Group.
 		DeploymentGroup deploymentGroup = new DeploymentGroup(uuidFactory.getUUID(), createdBy);
 
@@ -145,9 +135,11 @@ public class GroupDeployer {
 	 * @param deploymentGroup
 	 *            The layer group to concatenate Layers to.
 	 * @param deployments
-	 *            The deployments to add to the Layer Group.
+	 *            The deployments to add to the Layer Group. Deployments of granules in a mosaic cannot be grouped.
 	 */
 	public void updateDeploymentGroup(DeploymentGroup deploymentGroup, List<Deployment> deployments) throws Exception {
+		checkGroupable(deployments);
+
 		// Check if the Layer Group exists. If it doesn't, then create it. If it
 		// does, then Grab the Model to edit.
 		LayerGroupModel layerGroupModel;
@@ -195,6 +187,24 @@ public class GroupDeployer {
 		}
 	}
 
+	/**
+	 * Checks that each Deployment's layer can be added to a Layer Group. The layer of a granule's Deployment is the
+	 * whole mosaic, which a Layer Group would publish without the Data Id filter that selects the granule, so such
+	 * Deployments are rejected.
+	 * 
+	 * @param deployments
+	 *            The Deployments to add to a group
+	 */
+	private void checkGroupable(List<Deployment> deployments) {
+		for (Deployment deployment : deployments) {
+			if (MosaicDeployer.isMosaicDeployment(deployment)) {
+				throw new IllegalArgumentException(String.format("Data %s is deployed as a granule of mosaic %s, and cannot be added to "
+						+ "a Deployment Group. Request the mosaic with the CQL_FILTER=dataId='%s' WMS parameter instead.",
+						deployment.getDataId(), deployment.getLayer(), deployment.getDataId()));
+			}
+		}
+	}
+
 	/**
 	 * Deletes a Deployment Group. This will remove the corresponding Layer
 	 * 
@@ -202,15 +212,11 @@ public class GroupDeployer {
 	 */
 	public void deleteDeploymentGroup(DeploymentGroup deploymentGroup) throws Exception {
 		// Create Request
-		HttpHeaders headers = deployer.getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		HttpEntity<String> request = new HttpEntity<String>(headers);
-		String url = String.format("http://%s:%s/geoserver/rest/workspaces/piazza/layergroups/%s.json", GEOSERVER_HOST, GEOSERVER_PORT,
-				deploymentGroup.deploymentGroupId);
+		String url = geoServerClient.getRestUrl(GeoServerClient.LAYER_GROUP_PATH + ".json", deploymentGroup.deploymentGroupId);
 
 		// Execute
 		try {
-			restTemplate.exchange(url, HttpMethod.DELETE, request, String.class);
+			geoServerClient.exchange("deleteLayerGroup", url, HttpMethod.DELETE);
 		} catch (HttpClientErrorException | HttpServerErrorException exception) {
 			// If the delete to GeoServer failed, then check why. Perhaps it's
 			// already been deleted? It might not be an error we're concerned
@@ -242,18 +248,14 @@ public class GroupDeployer {
 	 * @return The Layer Group Model
 	 */
 	private LayerGroupModel getLayerGroupFromGeoServer(String deploymentGroupId) throws Exception {
-		HttpHeaders headers = deployer.getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		HttpEntity<String> request = new HttpEntity<String>(headers);
 		// Note that XML format is used. This is a work-around because JSON currently has a bug with GeoServer that
 		// prevents a correct response from returning when Layer count is above 5.
-		String url = String.format("http://%s:%s/geoserver/rest/workspaces/piazza/layergroups/%s.xml", GEOSERVER_HOST, GEOSERVER_PORT,
-				deploymentGroupId);
+		String url = geoServerClient.getRestUrl(GeoServerClient.LAYER_GROUP_PATH + ".xml", deploymentGroupId);
 
 		// Execute the request to get the Layer Group
 		ResponseEntity<String> response;
 		try {
-			response = restTemplate.exchange(url, HttpMethod.GET, request, String.class);
+			response = geoServerClient.exchange("getLayerGroup", url, HttpMethod.GET);
 		} catch (HttpStatusCodeException exception) {
 			throw new Exception(String.format("Could not fetch Layer Group %s. Status code %s was returned by GeoServer with error: %s",
 					deploymentGroupId, exception.getStatusCode().toString(), exception.getMessage()));
@@ -303,8 +305,7 @@ public class GroupDeployer {
 	 */
 	private void sendGeoServerLayerGroup(LayerGroupModel layerGroup, HttpMethod method) throws Exception {
 		// Create the Request
-		HttpHeaders headers = deployer.getGeoServerHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
+		HttpHeaders headers = geoServerClient.getHeaders(MediaType.APPLICATION_JSON);
 		HttpEntity<String> request = null;
 		String payload = null;
 		try {
@@ -314,15 +315,15 @@ public class GroupDeployer {
 			throw new Exception(
 					String.format("Error serializing Request Body to GeoServer for updating Layer Group: %s", exception.getMessage()));
 		}
-		String url = String.format(
-				method.equals(HttpMethod.PUT) ? "http://%s:%s/geoserver/rest/workspaces/piazza/layergroups/%s.json"
-						: "http://%s:%s/geoserver/rest/workspaces/piazza/layergroups.json",
-				GEOSERVER_HOST, GEOSERVER_PORT, layerGroup.layerGroup.name);
+		String url = method.equals(HttpMethod.PUT)
+				? geoServerClient.getRestUrl(GeoServerClient.LAYER_GROUP_PATH + ".json", layerGroup.layerGroup.name)
+				: geoServerClient.getRestUrl(GeoServerClient.LAYER_GROUPS_PATH);
 
 		// Send
 		ResponseEntity<String> response = null;
 		try {
-			response = restTemplate.exchange(url, method, request, String.class);
+			response = geoServerClient.exchange(method.equals(HttpMethod.PUT) ? "updateLayerGroup" : "createLayerGroup", url, method,
+					request);
 		} catch (HttpClientErrorException | HttpServerErrorException exception) {
 			String error = String.format("Error sending Layer Group %s to GeoServer HTTP %s to %s. Server responded with: %s",
 					layerGroup.layerGroup.name, method.toString(), url, exception.getResponseBodyAsString());
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.deploy;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import access.deploy.DeploymentLocker.DeploymentLock;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+import model.data.DataResource;
+import model.data.deployment.Deployment;
+import util.PiazzaLogger;
+import util.UUIDFactory;
+
+/**
+ * Deploys rasters as granules of a few shared GeoServer ImageMosaic stores, rather than as a coverage store each, so
+ * that the GeoServer catalog stays small however many rasters are deployed. Rasters are partitioned into mosaics by
+ * their CRS and band layout (the number of bands and their data type), as the granules of a mosaic must share both.
+ * 
+ * <p>
+ * The Deployment of a granule names the mosaic as its layer. Each granule is indexed with its Data Id, so its
+ * Deployment is a filtered view of the mosaic: clients select the raster with the CQL_FILTER=dataId='{Data Id}' WMS
+ * parameter. Undeploying removes only the granule; the mosaic remains for the other Deployments in it.
+ * </p>
+ * 
+ * <p>
+ * Mosaics live on the volume shared with GeoServer, so raster staging must be enabled. A mosaic is created by its
+ * first granule; later granules are harvested into it. Creating a mosaic harvests every granule in its directory, so
+ * granules are moved into a mosaic and harvested under a {@link DeploymentLocker} lock keyed by the mosaic's name;
+ * otherwise the granule of a concurrent deployment could be harvested by the creation, and then again on its own.
+ * </p>
+ */
+@Component
+public class MosaicDeployer {
+	@Value("${geoserver.raster.mosaic.enabled}")
+	private boolean ENABLED;
+
+	/**
+	 * The prefix of the names of mosaics, which tells the Deployments of granules apart from those of whole layers.
+	 */
+	public static final String MOSAIC_PREFIX = "piazza_mosaic_";
+	private static final String DATA_ID_ATTRIBUTE = "dataId";
+
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private UUIDFactory uuidFactory;
+	@Autowired
+	private RasterStager rasterStager;
+	@Autowired
+	private GeoServerClient geoServerClient;
+	@Autowired
+	private DeploymentLocker deploymentLocker;
+
+	/**
+	 * @return True if rasters are deployed as granules of mosaics
+	 */
+	public boolean isEnabled() {
+		return ENABLED && rasterStager.isEnabled();
+	}
+
+	/**
+	 * Determines if a Deployment is of a granule in a mosaic.
+	 * 
+	 * @param deployment
+	 *            The Deployment
+	 * @return True if the Deployment's layer is a mosaic
+	 */
+	public static boolean isMosaicDeployment(Deployment deployment) {
+		return (deployment.getLayer() != null) && deployment.getLayer().startsWith(MOSAIC_PREFIX);
+	}
+
+	/**
+	 * Deploys a raster as a granule of the mosaic for its CRS and band layout.
+	 * 
+	 * @param dataResource
+	 *            The raster Data Resource
+	 * @param localFile
+	 *            A local file to deploy in place of the Data Resource's own file, such as a rewrite of it, or null
+	 * @return The Deployment, whose layer is the mosaic
+	 */
+	public Deployment deploy(DataResource dataResource, File localFile) throws Exception {
+		String dataId = dataResource.getDataId();
+		File stagedFile = rasterStager.stageFile(dataResource, localFile);
+		String mosaicName = getMosaicName(dataResource, stagedFile);
+
+		// Harvest the granule into the mosaic, or create the mosaic around it
+		DeploymentLock mosaicLock = deploymentLocker.lock(mosaicName);
+		try {
+			File granule = rasterStager.moveToMosaic(dataId, stagedFile, mosaicName);
+			if (doesStoreExist(mosaicName)) {
+				harvest(mosaicName, granule);
+			} else {
+				writeIndexerConfiguration(mosaicName);
+				putMosaic(mosaicName);
+			}
+		} finally {
+			deploymentLocker.unlock(mosaicLock);
+		}
+		logger.log(String.format("Deployed raster for Data %s as a granule of mosaic %s", dataId, mosaicName), PiazzaLogger.INFO);
+
+		return new Deployment(uuidFactory.getUUID(), dataId, geoServerClient.getHost(), geoServerClient.getPort(), mosaicName,
+				geoServerClient.getWmsCapabilitiesUrl());
+	}
+
+	/**
+	 * Removes the granule of a Deployment from its mosaic, and deletes the granule's file. The mosaic itself is kept.
+	 * 
+	 * @param deployment
+	 *            The Deployment of the granule
+	 */
+	public void undeploy(Deployment deployment) throws Exception {
+		String mosaicName = deployment.getLayer();
+		String url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "/coverages/%s/index/granules.json?filter=%s='%s'",
+				mosaicName, mosaicName, DATA_ID_ATTRIBUTE, deployment.getDataId());
+		try {
+			geoServerClient.exchange("deleteGranule", url, HttpMethod.DELETE);
+		} catch (HttpClientErrorException | HttpServerErrorException exception) {
+			if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
+				logger.log(String.format("Attempted to remove the granule of Data %s from mosaic %s, but the mosaic was not found.",
+						deployment.getDataId(), mosaicName), PiazzaLogger.WARNING);
+			} else {
+				String error = String.format("Error removing the granule of Data %s from mosaic %s: Code %s with Error %s",
+						deployment.getDataId(), mosaicName, exception.getStatusCode(), exception.getResponseBodyAsString());
+				logger.log(error, PiazzaLogger.ERROR);
+				throw new Exception(error);
+			}
+		}
+		rasterStager.removeGranule(deployment.getDataId(), mosaicName);
+	}
+
+	/**
+	 * Gets the name of the mosaic for a raster, from its EPSG code and the layout of its bands.
+	 */
+	private String getMosaicName(DataResource dataResource, File file) throws IOException {
+		Integer epsgCode = (dataResource.getSpatialMetadata() != null) ? dataResource.getSpatialMetadata().getEpsgCode() : null;
+		if (epsgCode == null) {
+			throw new IllegalArgumentException(
+					String.format("Data %s has no EPSG code, so it cannot be added to a mosaic.", dataResource.getDataId()));
+		}
+		ImageReader reader = new TIFFImageReaderSpi().createReaderInstance();
+		try (ImageInputStream inputStream = ImageIO.createImageInputStream(file)) {
+			reader.setInput(inputStream);
+			SampleModel sampleModel = reader.getRawImageType(0).getSampleModel();
+			return String.format("%s%s_%sb_%s", MOSAIC_PREFIX, epsgCode, sampleModel.getNumBands(),
+					getDataTypeName(sampleModel.getDataType()));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private static String getDataTypeName(int dataType) {
+		switch (dataType) {
+		case DataBuffer.TYPE_BYTE:
+			return "byte";
+		case DataBuffer.TYPE_USHORT:
+			return "uint16";
+		case DataBuffer.TYPE_SHORT:
+			return "int16";
+		case DataBuffer.TYPE_INT:
+			return "int32";
+		case DataBuffer.TYPE_FLOAT:
+			return "float32";
+		case DataBuffer.TYPE_DOUBLE:
+			return "float64";
+		default:
+			return "other";
+		}
+	}
+
+	/**
+	 * Writes the configuration that makes a mosaic index its granules by Data Id, taken from their file names.
+	 */
+	private void writeIndexerConfiguration(String mosaicName) throws IOException {
+		File directory = rasterStager.getMosaicDirectory(mosaicName);
+		String indexer = String.format("Name=%s%nSchema=*the_geom:Polygon,location:String,%s:String%n"
+				+ "PropertyCollectors=StringFileNameExtractorSPI[dataidregex](%s)%nAbsolutePath=false%nCaching=false%n", mosaicName,
+				DATA_ID_ATTRIBUTE, DATA_ID_ATTRIBUTE);
+		// The Data Id is the file name without its extension
+		String regex = String.format("regex=.+(?=\\\\.[^.]+$)%n");
+		Files.write(new File(directory, "indexer.properties").toPath(), indexer.getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(directory, "dataidregex.properties").toPath(), regex.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates a mosaic from its directory on the shared volume, harvesting the granules in it.
+	 */
+	private void putMosaic(String mosaicName) {
+		String path = rasterStager.getGeoServerPath(rasterStager.getMosaicDirectory(mosaicName));
+		String url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "/external.imagemosaic?configure=all", mosaicName);
+		geoServerClient.exchange("createMosaic", url, HttpMethod.PUT,
+				new HttpEntity<String>(String.format("file:%s", path), geoServerClient.getHeaders(MediaType.TEXT_PLAIN)));
+	}
+
+	/**
+	 * Harvests one granule into an existing mosaic.
+	 */
+	private void harvest(String mosaicName, File granule) throws Exception {
+		String url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + "/external.imagemosaic", mosaicName);
+		String body = String.format("file:%s", rasterStager.getGeoServerPath(granule));
+		try {
+			geoServerClient.exchange("harvestGranule", url, HttpMethod.POST,
+					new HttpEntity<String>(body, geoServerClient.getHeaders(MediaType.TEXT_PLAIN)));
+		} catch (HttpClientErrorException | HttpServerErrorException exception) {
+			String error = String.format("Harvesting granule %s into mosaic %s returned HTTP Status %s with Body: %s", granule.getName(),
+					mosaicName, exception.getStatusCode(), exception.getResponseBodyAsString());
+			logger.log(error, PiazzaLogger.ERROR);
+			throw new Exception(error);
+		}
+	}
+
+	/**
+	 * Checks GeoServer to determine if a coverage store exists.
+	 */
+	private boolean doesStoreExist(String storeName) throws Exception {
+		String url = geoServerClient.getRestUrl(GeoServerClient.COVERAGE_STORE_PATH + ".json", storeName);
+		try {
+			geoServerClient.exchange("getCoverageStore", url, HttpMethod.GET);
+			return true;
+		} catch (HttpClientErrorException | HttpServerErrorException exception) {
+			if (exception.getStatusCode() == HttpStatus.NOT_FOUND) {
+				return false;
+			}
+			String error = String.format("Error while checking status of Coverage Store %s. GeoServer returned with Code %s and error %s",
+					storeName, exception.getStatusCode(), exception.getResponseBodyAsString());
+			logger.log(error, PiazzaLogger.ERROR);
+			throw new Exception(error);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.deploy;
+
+import java.awt.RenderingHints;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.util.AccessUtilities;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageWriteParam;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import util.PiazzaLogger;
+
+/**
+ * Rewrites raster files before they are deployed to GeoServer in a cloud-optimized layout: internally tiled,
+ * compressed, and with internal overviews, each half the size of the one before, down to a single tile. GeoServer then
+ * renders any zoom level from a few tiles of the nearest overview, rather than from every strip of the full image.
+ * 
+ * <p>
+ * The rewrite streams tile by tile. The source is read lazily through a tiled JAI ImageRead operation, and each
+ * overview is a JAI operation on the level above it, so the writer pulls one tile at a time through the chain and
+ * memory is bounded by the JAI tile cache rather than by the size of the raster. The GeoTIFF tags of the source (its
+ * georeferencing) are carried over to the full-resolution image unchanged.
+ * </p>
+ */
+@Component
+public class RasterOptimizer {
+	@Value("${geoserver.raster.optimize.enabled}")
+	private boolean ENABLED;
+	@Value("${geoserver.raster.optimize.directory}")
+	private String WORK_DIRECTORY;
+	@Value("${geoserver.raster.optimize.tile.size}")
+	private int TILE_SIZE;
+	@Value("${geoserver.raster.optimize.compression}")
+	private String COMPRESSION;
+
+	// Files that may grow past 4 GB are written as BigTIFF
+	private static final long BIG_TIFF_BYTES = 3L * 1024 * 1024 * 1024;
+	private static final int NEW_SUBFILE_TYPE_TAG = 254;
+	private static final int REDUCED_RESOLUTION = 1;
+
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private AccessUtilities accessUtilities;
+
+	@PostConstruct
+	private void initialize() throws IOException {
+		if (ENABLED) {
+			Files.createDirectories(new File(WORK_DIRECTORY).toPath());
+		}
+	}
+
+	/**
+	 * @return True if rasters are rewritten before they are deployed
+	 */
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Rewrites the file of a raster Data Resource in the optimized layout, unless it is already tiled with overviews.
+	 * 
+	 * @param dataResource
+	 *            The Data Resource, which must be a GeoTIFF file
+	 * @return The rewritten file, in the work directory, or null if the file is already optimized. The caller must
+	 *         delete the file once it has been deployed.
+	 */
+	public File optimize(DataResource dataResource) throws Exception {
+		String dataId = dataResource.getDataId();
+		FileLocation fileLocation = ((FileRepresentation) dataResource.getDataType()).getLocation();
+		File download = null;
+		File sourceFile = accessUtilities.getLocalFile(dataId, fileLocation);
+		if (sourceFile == null) {
+			// The file cannot be held in the Content Cache, so it is read from a download of its own
+			download = File.createTempFile(dataId, ".source.tif", new File(WORK_DIRECTORY));
+			try (InputStream inputStream = accessUtilities.getFileStream(fileLocation);
+					OutputStream outputStream = Files.newOutputStream(download.toPath())) {
+				AccessUtilities.copyStream(inputStream, outputStream);
+			} catch (Exception exception) {
+				Files.deleteIfExists(download.toPath());
+				throw exception;
+			}
+			sourceFile = download;
+		}
+		File optimizedFile = File.createTempFile(dataId, ".tif", new File(WORK_DIRECTORY));
+		boolean written = false;
+		try {
+			long start = System.currentTimeMillis();
+			written = rewrite(sourceFile, optimizedFile);
+			if (written) {
+				logger.log(String.format("Rewrote raster for Data %s as a tiled GeoTIFF with overviews in %s ms; %s bytes to %s bytes",
+						dataId, System.currentTimeMillis() - start, sourceFile.length(), optimizedFile.length()), PiazzaLogger.INFO);
+			}
+			return written ? optimizedFile : null;
+		} finally {
+			if (!written) {
+				Files.deleteIfExists(optimizedFile.toPath());
+			}
+			if (download != null) {
+				Files.deleteIfExists(download.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Rewrites a GeoTIFF in the optimized layout.
+	 * 
+	 * @return False if the source is already tiled with overviews, and was not rewritten
+	 */
+	private boolean rewrite(File sourceFile, File targetFile) throws IOException {
+		ImageReader reader = new TIFFImageReaderSpi().createReaderInstance();
+		ImageWriter writer = new TIFFImageWriterSpi().createWriterInstance();
+		try (ImageInputStream inputStream = ImageIO.createImageInputStream(sourceFile)) {
+			reader.setInput(inputStream);
+			if (reader.isImageTiled(0) && (reader.getNumImages(true) > 1)) {
+				return false;
+			}
+			IIOMetadata sourceMetadata = reader.getImageMetadata(0);
+
+			// Read the source lazily, in tiles of the target's size
+			RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT,
+					new ImageLayout().setTileWidth(TILE_SIZE).setTileHeight(TILE_SIZE).setTileGridXOffset(0).setTileGridYOffset(0));
+			ParameterBlockJAI readParameters = new ParameterBlockJAI("ImageRead");
+			readParameters.setParameter("Input", inputStream);
+			readParameters.setParameter("Reader", reader);
+			RenderedImage image = JAI.create("ImageRead", readParameters, hints);
+
+			// Each overview is half the size of the level above it, until the whole image fits in one tile
+			List<RenderedImage> overviews = new ArrayList<RenderedImage>();
+			RenderedImage level = image;
+			while ((level.getWidth() > TILE_SIZE) || (level.getHeight() > TILE_SIZE)) {
+				ParameterBlockJAI scaleParameters = new ParameterBlockJAI("Scale");
+				scaleParameters.addSource(level);
+				scaleParameters.setParameter("xScale", 0.5f);
+				scaleParameters.setParameter("yScale", 0.5f);
+				scaleParameters.setParameter("interpolation", Interpolation.getInstance(Interpolation.INTERP_NEAREST));
+				level = JAI.create("Scale", scaleParameters, hints);
+				overviews.add(level);
+			}
+
+			TIFFImageWriteParam writeParameters = (TIFFImageWriteParam) writer.getDefaultWriteParam();
+			writeParameters.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+			writeParameters.setTiling(TILE_SIZE, TILE_SIZE, 0, 0);
+			writeParameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			writeParameters.setCompressionType(COMPRESSION);
+			long imageBytes = (long) image.getWidth() * image.getHeight() * image.getSampleModel().getNumBands()
+					* ((image.getSampleModel().getSampleSize(0) + 7) / 8);
+			writeParameters.setForceToBigTIFF(imageBytes > BIG_TIFF_BYTES);
+
+			Files.deleteIfExists(targetFile.toPath());
+			try (ImageOutputStream outputStream = new FileImageOutputStream(targetFile)) {
+				writer.setOutput(outputStream);
+				writer.prepareWriteSequence(null);
+				writer.writeToSequence(new IIOImage(image, null, sourceMetadata), writeParameters);
+				for (RenderedImage overview : overviews) {
+					writer.writeToSequence(new IIOImage(overview, null, getOverviewMetadata(writer, overview, writeParameters)),
+							writeParameters);
+				}
+				writer.endWriteSequence();
+			}
+			return true;
+		} finally {
+			reader.dispose();
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Gets the metadata of an overview, which marks it as a reduced-resolution version of the full image.
+	 */
+	private IIOMetadata getOverviewMetadata(ImageWriter writer, RenderedImage overview, ImageWriteParam writeParameters)
+			throws IOException {
+		IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(overview), writeParameters);
+		String formatName = metadata.getNativeMetadataFormatName();
+		IIOMetadataNode value = new IIOMetadataNode("TIFFLong");
+		value.setAttribute("value", Integer.toString(REDUCED_RESOLUTION));
+		IIOMetadataNode values = new IIOMetadataNode("TIFFLongs");
+		values.appendChild(value);
+		IIOMetadataNode field = new IIOMetadataNode("TIFFField");
+		field.setAttribute("number", Integer.toString(NEW_SUBFILE_TYPE_TAG));
+		field.setAttribute("name", "NewSubfileType");
+		field.appendChild(values);
+		IIOMetadataNode directory = new IIOMetadataNode("TIFFIFD");
+		directory.appendChild(field);
+		IIOMetadataNode root = new IIOMetadataNode(formatName);
+		root.appendChild(directory);
+		metadata.mergeTree(formatName, root);
+		return metadata;
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.deploy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.cache.CachedContent;
+import access.cache.ContentCache;
+import access.util.AccessUtilities;
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.FolderShare;
+import util.PiazzaLogger;
+
+/**
+ * Stages raster files onto the volume shared with GeoServer, so that they can be registered with GeoServer as external
+ * files by path rather than uploaded over HTTP.
+ * 
+ * <p>
+ * Each file is staged once, to a directory named after its Data Id. A file already on local disk is hard linked where
+ * the staging directory is on the same file system, and otherwise copied; a file in S3 is streamed to the volume. The
+ * file is written under a temporary name and moved into place once it is complete, so GeoServer never sees a partial
+ * file.
+ * </p>
+ */
+@Component
+public class RasterStager {
+	@Value("${geoserver.raster.staging.enabled}")
+	private boolean ENABLED;
+	@Value("${geoserver.raster.staging.directory}")
+	private String STAGING_DIRECTORY;
+	@Value("${geoserver.raster.staging.geoserver.directory}")
+	private String GEOSERVER_DIRECTORY;
+
+	// The directory under the staging directory that holds the ImageMosaics
+	private static final String MOSAIC_DIRECTORY = "mosaics";
+
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private AccessUtilities accessUtilities;
+	@Autowired
+	private ContentCache contentCache;
+
+	/**
+	 * @return True if rasters are deployed by staging them onto the shared volume
+	 */
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Stages the file of a raster Data Resource onto the shared volume, unless it is already staged.
+	 * 
+	 * @param dataResource
+	 *            The Data Resource, which must be a file
+	 * @return The path of the staged file, as seen by GeoServer
+	 */
+	public String stage(DataResource dataResource) throws Exception {
+		return stage(dataResource, null);
+	}
+
+	/**
+	 * Stages a local file in place of the file of a raster Data Resource, such as a rewrite of it, unless it is already
+	 * staged.
+	 * 
+	 * @param dataResource
+	 *            The Data Resource, which must be a file
+	 * @param localFile
+	 *            The file to stage, or null to stage the Data Resource's own file
+	 * @return The path of the staged file, as seen by GeoServer
+	 */
+	public String stage(DataResource dataResource, File localFile) throws Exception {
+		return getGeoServerPath(stageFile(dataResource, localFile));
+	}
+
+	/**
+	 * Stages the file of a raster Data Resource, or a local file in its place, unless it is already staged.
+	 * 
+	 * @param dataResource
+	 *            The Data Resource, which must be a file
+	 * @param localFile
+	 *            The file to stage, or null to stage the Data Resource's own file
+	 * @return The staged file
+	 */
+	public File stageFile(DataResource dataResource, File localFile) throws Exception {
+		String dataId = dataResource.getDataId();
+		FileLocation fileLocation = ((FileRepresentation) dataResource.getDataType()).getLocation();
+		String fileName = FilenameUtils.getName(fileLocation.getFileName());
+		if (fileName.isEmpty()) {
+			fileName = String.format("%s.tif", dataId);
+		}
+		File directory = new File(STAGING_DIRECTORY, dataId);
+		File stagedFile = new File(directory, fileName);
+		File sourceFile = (localFile != null) ? localFile : getLocalFile(dataId, fileLocation);
+		long length = (sourceFile != null) ? sourceFile.length() : accessUtilities.getFileInfo(fileLocation).getLength();
+		if (stagedFile.exists() && (stagedFile.length() == length)) {
+			logger.log(String.format("Raster for Data %s is already staged at %s", dataId, stagedFile.getPath()), PiazzaLogger.INFO);
+		} else {
+			Files.createDirectories(directory.toPath());
+			Path partial = Files.createTempFile(directory.toPath(), fileName, ".partial");
+			try {
+				long start = System.currentTimeMillis();
+				String method = writeFile(sourceFile, fileLocation, partial);
+				Files.move(partial, stagedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				logger.log(String.format("Staged raster for Data %s at %s by %s in %s ms", dataId, stagedFile.getPath(), method,
+						System.currentTimeMillis() - start), PiazzaLogger.INFO);
+			} finally {
+				Files.deleteIfExists(partial);
+			}
+		}
+		return stagedFile;
+	}
+
+	/**
+	 * Moves a staged file into the directory of an ImageMosaic, where it is a granule named after its Data Id. The move
+	 * is a rename within the shared volume, so it takes no time.
+	 * 
+	 * @param dataId
+	 *            The Data Id of the file
+	 * @param stagedFile
+	 *            The file, as staged by {@link #stageFile(DataResource, File)}
+	 * @param mosaicName
+	 *            The name of the mosaic
+	 * @return The granule
+	 */
+	public File moveToMosaic(String dataId, File stagedFile, String mosaicName) throws IOException {
+		File directory = getMosaicDirectory(mosaicName);
+		Files.createDirectories(directory.toPath());
+		File granule = new File(directory, String.format("%s.%s", dataId, FilenameUtils.getExtension(stagedFile.getName())));
+		Files.move(stagedFile.toPath(), granule.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileUtils.deleteQuietly(stagedFile.getParentFile());
+		return granule;
+	}
+
+	/**
+	 * Removes the granule of a Data Id from the directory of an ImageMosaic.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 * @param mosaicName
+	 *            The name of the mosaic
+	 */
+	public void removeGranule(String dataId, String mosaicName) {
+		File[] granules = getMosaicDirectory(mosaicName).listFiles((directory, name) -> dataId.equals(FilenameUtils.getBaseName(name)));
+		if (granules == null) {
+			return;
+		}
+		for (File granule : granules) {
+			if (!FileUtils.deleteQuietly(granule)) {
+				logger.log(String.format("Could not remove the granule of Data %s at %s", dataId, granule.getPath()), PiazzaLogger.WARNING);
+			}
+		}
+	}
+
+	/**
+	 * Gets the directory of an ImageMosaic on the shared volume.
+	 * 
+	 * @param mosaicName
+	 *            The name of the mosaic
+	 * @return The directory, which may not exist yet
+	 */
+	public File getMosaicDirectory(String mosaicName) {
+		return new File(new File(STAGING_DIRECTORY, MOSAIC_DIRECTORY), mosaicName);
+	}
+
+	/**
+	 * Gets the path GeoServer sees a staged file or directory at. The shared volume may be mounted at different paths
+	 * by Access and by GeoServer.
+	 * 
+	 * @param stagedFile
+	 *            A file or directory under the staging directory
+	 * @return The path of the file on GeoServer
+	 */
+	public String getGeoServerPath(File stagedFile) {
+		Path relativePath = new File(STAGING_DIRECTORY).getAbsoluteFile().toPath().relativize(stagedFile.getAbsoluteFile().toPath());
+		String directory = GEOSERVER_DIRECTORY.endsWith("/") ? GEOSERVER_DIRECTORY : GEOSERVER_DIRECTORY + "/";
+		return directory + FilenameUtils.separatorsToUnix(relativePath.toString());
+	}
+
+	/**
+	 * Removes the staged file of a Data Id, if there is one.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 */
+	public void remove(String dataId) {
+		if (!ENABLED) {
+			return;
+		}
+		File directory = new File(STAGING_DIRECTORY, dataId);
+		if (directory.exists() && !FileUtils.deleteQuietly(directory)) {
+			logger.log(String.format("Could not remove the staged raster for Data %s at %s", dataId, directory.getPath()),
+					PiazzaLogger.WARNING);
+		}
+	}
+
+	/**
+	 * Writes the file into the staging directory, by the cheapest means available.
+	 * 
+	 * @param localFile
+	 *            The file on local disk, or null if the file must be fetched
+	 * @return A description of how the file was written, for logging
+	 */
+	private String writeFile(File localFile, FileLocation fileLocation, Path target) throws Exception {
+		if (localFile != null) {
+			try {
+				// A hard link takes no time and no space, but only works within one file system
+				Files.delete(target);
+				Files.createLink(target, localFile.toPath());
+				return "hard link";
+			} catch (IOException | UnsupportedOperationException exception) {
+				// The file is on another file system, or the file system does not support links
+			}
+			try (FileChannel source = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+					FileChannel destination = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				AccessUtilities.transferFile(source, 0, source.size(), destination);
+			}
+			return "copy";
+		}
+		try (InputStream inputStream = accessUtilities.getFileStream(fileLocation);
+				OutputStream outputStream = Files.newOutputStream(target)) {
+			AccessUtilities.copyStream(inputStream, outputStream);
+		}
+		return "streamed copy";
+	}
+
+	/**
+	 * Gets the file on local disk, in a folder share or the Content Cache, if there is one.
+	 */
+	private File getLocalFile(String dataId, FileLocation fileLocation) {
+		if (fileLocation instanceof FolderShare) {
+			return new File(((FolderShare) fileLocation).filePath);
+		}
+		CachedContent cachedContent = contentCache.get(dataId, fileLocation);
+		return (cachedContent != null) ? cachedContent.getFile() : null;
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import access.util.AccessUtilities;
+
+/**
+ * Buffers the output of the GeoJSON encoder, ignoring the flush that the encoder issues after each feature, so that the
+ * output stream is written in large blocks. FeatureJSON writes to a BufferedWriter as given, rather than wrapping it in
+ * a new one for every feature.
+ */
+class EncoderWriter extends BufferedWriter {
+	public EncoderWriter(OutputStream outputStream) {
+		super(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), AccessUtilities.STREAM_BUFFER_SIZE);
+	}
+
+	@Override
+	public void flush() {
+		// Flushed only by flushThrough()
+	}
+
+	/**
+	 * Writes all buffered output to the stream.
+	 */
+	public void flushThrough() throws IOException {
+		super.flush();
+	}
+}
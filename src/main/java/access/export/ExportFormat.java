@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The formats that vector data can be exported in.
+ */
+public enum ExportFormat {
+	/**
+	 * A single GeoJSON FeatureCollection.
+	 */
+	GEOJSON("geojson", "application/json", "geojson"),
+	/**
+	 * Newline-delimited GeoJSON Features.
+	 */
+	NDJSON("ndjson", "application/x-ndjson", "ndjson"),
+	/**
+	 * GeoJSON Text Sequences (RFC 8142): newline-delimited GeoJSON Features, each preceded by the record separator.
+	 */
+	GEOJSONSEQ("geojsonseq", "application/geo+json-seq", "geojsons"),
+	/**
+	 * FlatGeobuf, optionally with a packed Hilbert R-tree index.
+	 */
+	FLATGEOBUF("flatgeobuf", "application/flatgeobuf", "fgb"),
+	/**
+	 * An OGC GeoPackage holding one feature table.
+	 */
+	GPKG("gpkg", "application/geopackage+sqlite3", "gpkg");
+
+	// The number of decimal places GeoJSON coordinates are written with, unless a precision is requested
+	private static final int DEFAULT_DECIMALS = 4;
+
+	private final String name;
+	private final String contentType;
+	private final String extension;
+
+	private ExportFormat(String name, String contentType, String extension) {
+		this.name = name;
+		this.contentType = contentType;
+		this.extension = extension;
+	}
+
+	/**
+	 * @return The media type of the format
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return The file extension of the format, without the dot
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * Creates a writer of this format. If the options ask for geometries to be reprojected, simplified, or rounded in
+	 * a binary format, the writer transforms each feature before encoding it. GeoJSON coordinates are rounded by the
+	 * encoder as it writes them.
+	 * 
+	 * @param outputStream
+	 *            The stream to write to
+	 * @param exportOptions
+	 *            The export options, for options specific to the format. May be null.
+	 * @param reprojector
+	 *            The reprojection of the geometries into the requested CRS, or null if none was requested
+	 * @return The writer
+	 */
+	public FeatureWriter createWriter(OutputStream outputStream, ExportOptions exportOptions, GeometryReprojector reprojector) {
+		ExportOptions options = (exportOptions != null) ? exportOptions : new ExportOptions();
+		int decimals = (options.getPrecision() != null) ? options.getPrecision() : DEFAULT_DECIMALS;
+		FeatureWriter writer;
+		boolean roundsCoordinates = true;
+		switch (this) {
+		case FLATGEOBUF:
+			writer = new FlatGeobufWriter(outputStream, options.isIndexed());
+			roundsCoordinates = false;
+			break;
+		case GPKG:
+			writer = new GeoPackageWriter(outputStream);
+			roundsCoordinates = false;
+			break;
+		case NDJSON:
+			writer = new GeoJsonSeqWriter(outputStream, false, decimals);
+			break;
+		case GEOJSONSEQ:
+			writer = new GeoJsonSeqWriter(outputStream, true, decimals);
+			break;
+		default:
+			writer = new GeoJsonWriter(outputStream, decimals);
+		}
+		// Reproject before simplifying, so that the tolerance is in the units of the requested CRS
+		List<FeatureTransform> transforms = new ArrayList<FeatureTransform>();
+		if (reprojector != null) {
+			transforms.add(reprojector);
+		}
+		GeometryReducer reducer = options.getGeometryReducer(!roundsCoordinates);
+		if (reducer != null) {
+			transforms.add(reducer);
+		}
+		return transforms.isEmpty() ? writer : new TransformingFeatureWriter(writer, transforms);
+	}
+
+	/**
+	 * Gets a format by the name used in the format request parameter.
+	 * 
+	 * @param name
+	 *            The name of the format, case insensitive. GeoJSON if null or empty.
+	 * @return The format
+	 * @throws IllegalArgumentException
+	 *             If there is no format of that name
+	 */
+	public static ExportFormat fromName(String name) {
+		if ((name == null) || name.trim().isEmpty()) {
+			return GEOJSON;
+		}
+		for (ExportFormat format : values()) {
+			if (format.name.equalsIgnoreCase(name.trim())) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException(String.format("Unsupported format: %s", name));
+	}
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * The request parameters that select which features of a PostGIS table are exported. They are translated into a
+ * GeoTools Query, so that the filtering is done by the database (using its spatial index) rather than in Access.
+ * 
+ * <ul>
+ * <li>bbox: minX,minY,maxX,maxY, optionally followed by the SRS of the coordinates. Defaults to the table's SRS.</li>
+ * <li>filter: a CQL or ECQL filter expression.</li>
+ * <li>properties: comma-separated names of the attributes to export.</li>
+ * <li>maxFeatures: the maximum number of features to export.</li>
+ * <li>startIndex: the number of features to skip, for paging.</li>
+ * <li>format: the format to export in; see {@link ExportFormat}. Defaults to GeoJSON.</li>
+ * <li>index: true to include a spatial index, for formats that support one (FlatGeobuf).</li>
+ * <li>precision: the number of decimal places to write coordinates with, from 0 to 15.</li>
+ * <li>crs: the coordinate reference system to reproject geometries into, such as EPSG:3857. Defaults to the table's
+ * CRS.</li>
+ * <li>simplify: the tolerance to simplify geometries to, in the units of the exported coordinate reference
+ * system.</li>
+ * <li>preserveTopology: true to keep simplified polygons valid. Slower than the default simplification.</li>
+ * <li>ordered: false to allow the features of large tables to be returned out of key order, as they are read in
+ * parallel. Defaults to true.</li>
+ * </ul>
+ */
+public class ExportOptions {
+	private static final FilterFactory2 FILTER_FACTORY = CommonFactoryFinder.getFilterFactory2();
+
+	private String bbox;
+	private String filter;
+	private String properties;
+	private Integer maxFeatures;
+	private Integer startIndex;
+	private String format;
+	private Boolean index;
+	private Boolean ordered;
+	private Integer precision;
+	private String crs;
+	private Double simplify;
+	private Boolean preserveTopology;
+
+	public String getBbox() {
+		return bbox;
+	}
+
+	public void setBbox(String bbox) {
+		this.bbox = bbox;
+	}
+
+	public String getFilter() {
+		return filter;
+	}
+
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+
+	public String getProperties() {
+		return properties;
+	}
+
+	public void setProperties(String properties) {
+		this.properties = properties;
+	}
+
+	public Integer getMaxFeatures() {
+		return maxFeatures;
+	}
+
+	public void setMaxFeatures(Integer maxFeatures) {
+		this.maxFeatures = maxFeatures;
+	}
+
+	public Integer getStartIndex() {
+		return startIndex;
+	}
+
+	public void setStartIndex(Integer startIndex) {
+		this.startIndex = startIndex;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	public Boolean getIndex() {
+		return index;
+	}
+
+	public void setIndex(Boolean index) {
+		this.index = index;
+	}
+
+	public Boolean getOrdered() {
+		return ordered;
+	}
+
+	public void setOrdered(Boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	public Integer getPrecision() {
+		return precision;
+	}
+
+	public void setPrecision(Integer precision) {
+		this.precision = precision;
+	}
+
+	public String getCrs() {
+		return crs;
+	}
+
+	public void setCrs(String crs) {
+		this.crs = crs;
+	}
+
+	public Double getSimplify() {
+		return simplify;
+	}
+
+	public void setSimplify(Double simplify) {
+		this.simplify = simplify;
+	}
+
+	public Boolean getPreserveTopology() {
+		return preserveTopology;
+	}
+
+	public void setPreserveTopology(Boolean preserveTopology) {
+		this.preserveTopology = preserveTopology;
+	}
+
+	/**
+	 * @return True if a spatial index was requested
+	 */
+	public boolean isIndexed() {
+		return Boolean.TRUE.equals(index);
+	}
+
+	/**
+	 * @return True unless unordered output was requested
+	 */
+	public boolean isOrdered() {
+		return !Boolean.FALSE.equals(ordered);
+	}
+
+	/**
+	 * @return The requested export format
+	 * @throws IllegalArgumentException
+	 *             If the format is not supported
+	 */
+	public ExportFormat getExportFormat() {
+		return ExportFormat.fromName(format);
+	}
+
+	/**
+	 * Gets the reduction to apply to the geometries of each feature.
+	 * 
+	 * @param round
+	 *            True if coordinates should be rounded to the requested precision; false if the encoder rounds them
+	 * @return The reduction, or null if geometries are exported as they are
+	 */
+	public GeometryReducer getGeometryReducer(boolean round) {
+		boolean simplified = (simplify != null) && (simplify > 0);
+		boolean rounded = round && (precision != null);
+		if (!simplified && !rounded) {
+			return null;
+		}
+		return new GeometryReducer(simplified ? simplify : 0, Boolean.TRUE.equals(preserveTopology), rounded ? precision : null);
+	}
+
+	/**
+	 * Gets the key of the output these options produce, for the Export Cache. Every option that changes the output is
+	 * part of the key; options that are not set are left out, so that equivalent requests share a key.
+	 * 
+	 * @return The key
+	 * @throws IllegalArgumentException
+	 *             If the format is not supported
+	 */
+	public String getCacheKey() {
+		StringBuilder key = new StringBuilder(getExportFormat().name());
+		appendKey(key, "bbox", bbox);
+		appendKey(key, "filter", filter);
+		appendKey(key, "properties", properties);
+		appendKey(key, "maxFeatures", maxFeatures);
+		appendKey(key, "startIndex", startIndex);
+		appendKey(key, "index", isIndexed() ? Boolean.TRUE : null);
+		appendKey(key, "ordered", isOrdered() ? null : Boolean.FALSE);
+		appendKey(key, "precision", precision);
+		appendKey(key, "crs", crs);
+		appendKey(key, "simplify", simplify);
+		appendKey(key, "preserveTopology", Boolean.TRUE.equals(preserveTopology) ? Boolean.TRUE : null);
+		return key.toString();
+	}
+
+	private static void appendKey(StringBuilder key, String name, Object value) {
+		if ((value != null) && !value.toString().trim().isEmpty()) {
+			key.append('\n').append(name).append('=').append(value.toString().trim());
+		}
+	}
+
+	/**
+	 * Builds the Query for these options against a feature type.
+	 * 
+	 * @param schema
+	 *            The feature type of the table being exported
+	 * @return The Query. Selects all features if no options are set.
+	 * @throws IllegalArgumentException
+	 *             If an option is malformed, or names an attribute the feature type does not have
+	 */
+	public Query toQuery(SimpleFeatureType schema) {
+		List<Filter> filters = new ArrayList<Filter>();
+		if ((bbox != null) && !bbox.trim().isEmpty()) {
+			filters.add(getBboxFilter(schema));
+		}
+		if ((filter != null) && !filter.trim().isEmpty()) {
+			try {
+				filters.add(ECQL.toFilter(filter));
+			} catch (CQLException exception) {
+				throw new IllegalArgumentException(String.format("Invalid filter: %s", exception.getMessage()), exception);
+			}
+		}
+		Filter queryFilter = Filter.INCLUDE;
+		if (filters.size() == 1) {
+			queryFilter = filters.get(0);
+		} else if (filters.size() > 1) {
+			queryFilter = FILTER_FACTORY.and(filters);
+		}
+
+		Query query = new Query(schema.getTypeName(), queryFilter);
+		if ((properties != null) && !properties.trim().isEmpty()) {
+			List<String> propertyNames = new ArrayList<String>();
+			for (String propertyName : properties.split(",")) {
+				propertyName = propertyName.trim();
+				if (schema.getDescriptor(propertyName) == null) {
+					throw new IllegalArgumentException(String.format("Unknown property: %s", propertyName));
+				}
+				propertyNames.add(propertyName);
+			}
+			query.setPropertyNames(propertyNames);
+		}
+		if (maxFeatures != null) {
+			if (maxFeatures < 1) {
+				throw new IllegalArgumentException("maxFeatures must be at least 1.");
+			}
+			query.setMaxFeatures(maxFeatures);
+		}
+		if (startIndex != null) {
+			if (startIndex < 0) {
+				throw new IllegalArgumentException("startIndex must not be negative.");
+			}
+			// Without an explicit sort, the data store pages in primary key order
+			query.setStartIndex(startIndex);
+		}
+		if ((precision != null) && ((precision < 0) || (precision > 15))) {
+			throw new IllegalArgumentException("precision must be from 0 to 15.");
+		}
+		if ((simplify != null) && ((simplify < 0) || simplify.isNaN() || simplify.isInfinite())) {
+			throw new IllegalArgumentException("simplify must be a tolerance of at least 0.");
+		}
+		return query;
+	}
+
+	/**
+	 * Builds the bounding box filter on the default geometry of the feature type.
+	 */
+	private Filter getBboxFilter(SimpleFeatureType schema) {
+		if (schema.getGeometryDescriptor() == null) {
+			throw new IllegalArgumentException("bbox cannot be used; the data has no geometry.");
+		}
+		String[] parts = bbox.split(",");
+		if ((parts.length != 4) && (parts.length != 5)) {
+			throw new IllegalArgumentException("bbox must be minX,minY,maxX,maxY with an optional SRS.");
+		}
+		double[] bounds = new double[4];
+		for (int i = 0; i < 4; i++) {
+			try {
+				bounds[i] = Double.parseDouble(parts[i].trim());
+			} catch (NumberFormatException exception) {
+				throw new IllegalArgumentException(String.format("Invalid bbox coordinate: %s", parts[i]));
+			}
+		}
+		if ((bounds[0] > bounds[2]) || (bounds[1] > bounds[3])) {
+			throw new IllegalArgumentException("bbox minimums must not exceed its maximums.");
+		}
+		String srs = (parts.length == 5) ? parts[4].trim() : null;
+		return FILTER_FACTORY.bbox(FILTER_FACTORY.property(schema.getGeometryDescriptor().getLocalName()), bounds[0], bounds[1],
+				bounds[2], bounds[3], srs);
+	}
+}
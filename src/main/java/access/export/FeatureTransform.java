@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Changes each exported feature before it is encoded. Transforms are applied as the features are streamed, and may be
+ * called from several threads at once.
+ */
+public interface FeatureTransform {
+	/**
+	 * Gets the feature type of the transformed features.
+	 * 
+	 * @param schema
+	 *            The feature type of the features before the transform
+	 * @return The feature type after the transform
+	 */
+	public SimpleFeatureType transform(SimpleFeatureType schema);
+
+	/**
+	 * Transforms one feature.
+	 * 
+	 * @param feature
+	 *            The feature, which is not changed
+	 * @return The transformed copy of the feature
+	 */
+	public SimpleFeature transform(SimpleFeature feature) throws IOException;
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes features to a stream in an export format, one feature at a time, so that an export is never held in memory.
+ * {@link #close()} releases any resources the writer holds, whether or not the export completed; it does not close the
+ * stream.
+ * 
+ * <p>
+ * Formats that allow it can also be written in fragments: runs of features encoded apart from the export, for example
+ * by other threads, and then added to it in turn.
+ * </p>
+ */
+public interface FeatureWriter extends Closeable {
+	/**
+	 * Writes whatever precedes the features in the format.
+	 * 
+	 * @param schema
+	 *            The feature type of the features to be written
+	 */
+	public void writeStart(SimpleFeatureType schema) throws IOException;
+
+	/**
+	 * Writes one feature.
+	 * 
+	 * @param feature
+	 *            The feature
+	 */
+	public void writeFeature(SimpleFeature feature) throws IOException;
+
+	/**
+	 * Writes whatever follows the features in the format, and flushes all buffered output to the stream.
+	 */
+	public void writeEnd() throws IOException;
+
+	/**
+	 * Creates a writer of a fragment of this export. Only {@link #writeFeature(SimpleFeature)} and {@link #writeEnd()}
+	 * are called on the fragment writer; the features it writes are later added to this export with
+	 * {@link #writeFragment(InputStream)}. May be called from any thread once {@link #writeStart(SimpleFeatureType)}
+	 * has been called.
+	 * 
+	 * @param outputStream
+	 *            The stream to write the fragment to
+	 * @return The fragment writer, or null if the format cannot be written in fragments
+	 */
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) throws IOException;
+
+	/**
+	 * Adds the features of a fragment to this export, after the features already written.
+	 * 
+	 * @param fragment
+	 *            The contents of a fragment written by a writer from {@link #createFragmentWriter(OutputStream)}
+	 */
+	public void writeFragment(InputStream fragment) throws IOException;
+}
@@ -0,0 +1,515 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+import access.util.AccessUtilities;
+
+/**
+ * Writes features in the FlatGeobuf binary format: a header describing the schema, an optional packed Hilbert R-tree
+ * index, and then each feature as a size-prefixed FlatBuffer.
+ * 
+ * <p>
+ * Without an index, the features are written to the stream as they are read, and the header does not state the number
+ * of features. With an index, the features are encoded into a temporary file as they are read, since the index must
+ * precede them, and are written in index order once all have been read.
+ * </p>
+ * 
+ * <p>
+ * Only exports without an index can be written in fragments, since an index must be built over all the features.
+ * </p>
+ * 
+ * <p>
+ * Geometries are written in two dimensions. Dates are written as ISO-8601 instants.
+ * </p>
+ */
+public class FlatGeobufWriter implements FeatureWriter {
+	private static final byte[] MAGIC = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+	private static final int INDEX_NODE_SIZE = 16;
+
+	// Geometry types
+	private static final byte UNKNOWN = 0;
+	private static final byte POINT = 1;
+	private static final byte LINESTRING = 2;
+	private static final byte POLYGON = 3;
+	private static final byte MULTIPOINT = 4;
+	private static final byte MULTILINESTRING = 5;
+	private static final byte MULTIPOLYGON = 6;
+	private static final byte GEOMETRYCOLLECTION = 7;
+
+	// Column types
+	private static final byte BYTE = 0;
+	private static final byte BOOL = 2;
+	private static final byte SHORT = 3;
+	private static final byte INT = 5;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 9;
+	private static final byte DOUBLE = 10;
+	private static final byte STRING = 11;
+	private static final byte DATETIME = 13;
+	private static final byte BINARY = 14;
+
+	private final OutputStream outputStream;
+	private final boolean indexed;
+	private final FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+	private final ByteArrayOutputStream properties = new ByteArrayOutputStream();
+	private final byte[] scratch = new byte[8];
+	private SimpleFeatureType schema;
+	private int[] columnAttributes;
+	private byte[] columnTypes;
+
+	// Features held back until the index can be written
+	private File spoolFile;
+	private OutputStream spoolStream;
+	private long spoolLength = 0;
+	private final List<PackedRTree.Item> items = new ArrayList<PackedRTree.Item>();
+
+	/**
+	 * @param outputStream
+	 *            The stream to write to. Not closed by this writer.
+	 * @param indexed
+	 *            True to write a spatial index before the features
+	 */
+	public FlatGeobufWriter(OutputStream outputStream, boolean indexed) {
+		this.outputStream = new BufferedOutputStream(outputStream, AccessUtilities.STREAM_BUFFER_SIZE);
+		this.indexed = indexed;
+	}
+
+	/**
+	 * Creates a writer of a fragment, encoding features with the columns of its parent.
+	 */
+	private FlatGeobufWriter(OutputStream outputStream, FlatGeobufWriter parent) {
+		this(outputStream, false);
+		this.schema = parent.schema;
+		this.columnAttributes = parent.columnAttributes;
+		this.columnTypes = parent.columnTypes;
+	}
+
+	@Override
+	public void writeStart(SimpleFeatureType schema) throws IOException {
+		this.schema = schema;
+		// Every attribute but the default geometry becomes a column
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		List<Integer> attributes = new ArrayList<Integer>();
+		for (int i = 0; i < schema.getAttributeCount(); i++) {
+			if (schema.getDescriptor(i) != geometryDescriptor) {
+				attributes.add(i);
+			}
+		}
+		columnAttributes = new int[attributes.size()];
+		columnTypes = new byte[attributes.size()];
+		for (int i = 0; i < attributes.size(); i++) {
+			columnAttributes[i] = attributes.get(i);
+			columnTypes[i] = getColumnType(schema.getDescriptor(attributes.get(i)).getType().getBinding());
+		}
+
+		if (indexed) {
+			spoolFile = File.createTempFile("export", ".fgb");
+			spoolStream = new BufferedOutputStream(new FileOutputStream(spoolFile), AccessUtilities.STREAM_BUFFER_SIZE);
+		} else {
+			outputStream.write(MAGIC);
+			outputStream.write(encodeHeader(0, 0, null));
+			outputStream.flush();
+		}
+	}
+
+	@Override
+	public void writeFeature(SimpleFeature feature) throws IOException {
+		byte[] encoded = encodeFeature(feature);
+		if (!indexed) {
+			outputStream.write(encoded);
+			return;
+		}
+		spoolStream.write(encoded);
+		Geometry geometry = (Geometry) feature.getDefaultGeometry();
+		Envelope envelope = (geometry != null) ? geometry.getEnvelopeInternal() : new Envelope();
+		if (envelope.isNull()) {
+			// Features without a geometry are indexed at the origin
+			envelope = new Envelope(0, 0, 0, 0);
+		}
+		items.add(new PackedRTree.Item(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), spoolLength,
+				encoded.length));
+		spoolLength += encoded.length;
+	}
+
+	@Override
+	public void writeEnd() throws IOException {
+		if (indexed) {
+			spoolStream.close();
+			outputStream.write(MAGIC);
+			if (items.isEmpty()) {
+				outputStream.write(encodeHeader(0, 0, null));
+			} else {
+				double[] extent = PackedRTree.getExtent(items);
+				PackedRTree.hilbertSort(items, extent);
+				outputStream.write(encodeHeader(items.size(), INDEX_NODE_SIZE, extent));
+				PackedRTree.write(items, INDEX_NODE_SIZE, outputStream);
+				// Copy the features in index order
+				try (RandomAccessFile spool = new RandomAccessFile(spoolFile, "r")) {
+					byte[] buffer = new byte[AccessUtilities.STREAM_BUFFER_SIZE];
+					for (PackedRTree.Item item : items) {
+						if (item.getLength() > buffer.length) {
+							buffer = new byte[item.getLength()];
+						}
+						spool.seek(item.getSpoolOffset());
+						spool.readFully(buffer, 0, item.getLength());
+						outputStream.write(buffer, 0, item.getLength());
+					}
+				}
+			}
+		}
+		outputStream.flush();
+	}
+
+	@Override
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) {
+		return indexed ? null : new FlatGeobufWriter(outputStream, this);
+	}
+
+	@Override
+	public void writeFragment(InputStream fragment) throws IOException {
+		AccessUtilities.copyStream(fragment, outputStream);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (spoolStream != null) {
+			spoolStream.close();
+		}
+		if (spoolFile != null) {
+			spoolFile.delete();
+		}
+	}
+
+	/**
+	 * Encodes the header as a size-prefixed FlatBuffer.
+	 * 
+	 * @param featuresCount
+	 *            The number of features, or 0 if not known
+	 * @param indexNodeSize
+	 *            The node size of the index, or 0 if there is no index
+	 * @param extent
+	 *            The extent of all features, or null if not known
+	 */
+	private byte[] encodeHeader(long featuresCount, int indexNodeSize, double[] extent) {
+		FlatBufferBuilder headerBuilder = new FlatBufferBuilder(1024);
+		int name = headerBuilder.createString(schema.getTypeName());
+
+		int[] columns = new int[columnAttributes.length];
+		for (int i = 0; i < columns.length; i++) {
+			int columnName = headerBuilder.createString(schema.getDescriptor(columnAttributes[i]).getLocalName());
+			headerBuilder.startTable(11);
+			headerBuilder.addOffset(0, columnName, 0);
+			headerBuilder.addByte(1, columnTypes[i], 0);
+			columns[i] = headerBuilder.endTable();
+		}
+		int columnsVector = createOffsetVector(headerBuilder, columns);
+
+		int envelope = 0;
+		if (extent != null) {
+			headerBuilder.startVector(8, extent.length, 8);
+			for (int i = extent.length - 1; i >= 0; i--) {
+				headerBuilder.addDouble(extent[i]);
+			}
+			envelope = headerBuilder.endVector();
+		}
+
+		int crs = 0;
+		Integer epsgCode = getEpsgCode(schema.getCoordinateReferenceSystem());
+		if (epsgCode != null) {
+			int organization = headerBuilder.createString("EPSG");
+			headerBuilder.startTable(6);
+			headerBuilder.addOffset(0, organization, 0);
+			headerBuilder.addInt(1, epsgCode, 0);
+			crs = headerBuilder.endTable();
+		}
+
+		headerBuilder.startTable(14);
+		headerBuilder.addLong(8, featuresCount, 0);
+		headerBuilder.addOffset(0, name, 0);
+		if (envelope != 0) {
+			headerBuilder.addOffset(1, envelope, 0);
+		}
+		headerBuilder.addOffset(7, columnsVector, 0);
+		if (crs != 0) {
+			headerBuilder.addOffset(10, crs, 0);
+		}
+		headerBuilder.addShort(9, (short) indexNodeSize, INDEX_NODE_SIZE);
+		headerBuilder.addByte(2, getHeaderGeometryType(), UNKNOWN);
+		headerBuilder.finishSizePrefixed(headerBuilder.endTable());
+		return headerBuilder.sizedByteArray();
+	}
+
+	/**
+	 * Encodes a feature as a size-prefixed FlatBuffer.
+	 */
+	private byte[] encodeFeature(SimpleFeature feature) throws IOException {
+		builder.clear();
+		Geometry geometry = (Geometry) feature.getDefaultGeometry();
+		int geometryOffset = ((geometry != null) && !geometry.isEmpty()) ? encodeGeometry(geometry) : 0;
+		byte[] encodedProperties = encodeProperties(feature);
+		int propertiesOffset = (encodedProperties.length > 0) ? builder.createByteVector(encodedProperties) : 0;
+
+		builder.startTable(3);
+		if (geometryOffset != 0) {
+			builder.addOffset(0, geometryOffset, 0);
+		}
+		if (propertiesOffset != 0) {
+			builder.addOffset(1, propertiesOffset, 0);
+		}
+		builder.finishSizePrefixed(builder.endTable());
+		return builder.sizedByteArray();
+	}
+
+	/**
+	 * Encodes a geometry. Points, lines and polygons, and collections of one of them, are encoded as one coordinate
+	 * array with the end of each part; other collections are encoded as a list of parts.
+	 */
+	private int encodeGeometry(Geometry geometry) {
+		byte type = getGeometryType(geometry.getClass());
+		if ((geometry instanceof MultiPolygon)
+				|| ((type == GEOMETRYCOLLECTION) && !(geometry instanceof MultiPoint) && !(geometry instanceof MultiLineString))) {
+			int[] parts = new int[geometry.getNumGeometries()];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = encodeGeometry(geometry.getGeometryN(i));
+			}
+			int partsVector = createOffsetVector(builder, parts);
+			builder.startTable(8);
+			builder.addOffset(7, partsVector, 0);
+			builder.addByte(6, type, UNKNOWN);
+			return builder.endTable();
+		}
+
+		List<Coordinate[]> sequences = new ArrayList<Coordinate[]>();
+		if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			sequences.add(polygon.getExteriorRing().getCoordinates());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				sequences.add(polygon.getInteriorRingN(i).getCoordinates());
+			}
+		} else if (geometry instanceof MultiLineString) {
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				sequences.add(geometry.getGeometryN(i).getCoordinates());
+			}
+		} else {
+			// Points, lines and multi-points are a single sequence
+			sequences.add(geometry.getCoordinates());
+		}
+
+		int numCoordinates = 0;
+		for (Coordinate[] sequence : sequences) {
+			numCoordinates += sequence.length;
+		}
+		builder.startVector(8, numCoordinates * 2, 8);
+		for (int i = sequences.size() - 1; i >= 0; i--) {
+			Coordinate[] sequence = sequences.get(i);
+			for (int j = sequence.length - 1; j >= 0; j--) {
+				builder.addDouble(sequence[j].y);
+				builder.addDouble(sequence[j].x);
+			}
+		}
+		int xy = builder.endVector();
+
+		int ends = 0;
+		if (sequences.size() > 1) {
+			int[] partEnds = new int[sequences.size()];
+			int end = 0;
+			for (int i = 0; i < sequences.size(); i++) {
+				end += sequences.get(i).length;
+				partEnds[i] = end;
+			}
+			builder.startVector(4, partEnds.length, 4);
+			for (int i = partEnds.length - 1; i >= 0; i--) {
+				builder.addInt(partEnds[i]);
+			}
+			ends = builder.endVector();
+		}
+
+		builder.startTable(8);
+		if (ends != 0) {
+			builder.addOffset(0, ends, 0);
+		}
+		builder.addOffset(1, xy, 0);
+		builder.addByte(6, type, UNKNOWN);
+		return builder.endTable();
+	}
+
+	/**
+	 * Encodes the attributes of a feature as a sequence of column index and value pairs. Null values are omitted.
+	 */
+	private byte[] encodeProperties(SimpleFeature feature) throws IOException {
+		properties.reset();
+		for (int column = 0; column < columnAttributes.length; column++) {
+			Object value = feature.getAttribute(columnAttributes[column]);
+			if (value == null) {
+				continue;
+			}
+			LittleEndian.putShort(scratch, 0, column);
+			properties.write(scratch, 0, 2);
+			switch (columnTypes[column]) {
+			case BYTE:
+				properties.write(((Number) value).byteValue());
+				break;
+			case BOOL:
+				properties.write(((Boolean) value) ? 1 : 0);
+				break;
+			case SHORT:
+				LittleEndian.putShort(scratch, 0, ((Number) value).shortValue());
+				properties.write(scratch, 0, 2);
+				break;
+			case INT:
+				LittleEndian.putInt(scratch, 0, ((Number) value).intValue());
+				properties.write(scratch, 0, 4);
+				break;
+			case LONG:
+				LittleEndian.putLong(scratch, 0, ((Number) value).longValue());
+				properties.write(scratch, 0, 8);
+				break;
+			case FLOAT:
+				LittleEndian.putInt(scratch, 0, Float.floatToIntBits(((Number) value).floatValue()));
+				properties.write(scratch, 0, 4);
+				break;
+			case DOUBLE:
+				LittleEndian.putLong(scratch, 0, Double.doubleToLongBits(((Number) value).doubleValue()));
+				properties.write(scratch, 0, 8);
+				break;
+			case DATETIME:
+				writeBytes(Instant.ofEpochMilli(((Date) value).getTime()).toString().getBytes(StandardCharsets.UTF_8));
+				break;
+			case BINARY:
+				writeBytes((byte[]) value);
+				break;
+			default:
+				writeBytes(value.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return properties.toByteArray();
+	}
+
+	/**
+	 * Writes a length-prefixed value to the encoded properties.
+	 */
+	private void writeBytes(byte[] bytes) throws IOException {
+		LittleEndian.putInt(scratch, 0, bytes.length);
+		properties.write(scratch, 0, 4);
+		properties.write(bytes);
+	}
+
+	private static int createOffsetVector(FlatBufferBuilder builder, int[] offsets) {
+		builder.startVector(4, offsets.length, 4);
+		for (int i = offsets.length - 1; i >= 0; i--) {
+			builder.addOffset(offsets[i]);
+		}
+		return builder.endVector();
+	}
+
+	/**
+	 * Gets the geometry type of the header. Schemas with a generic geometry type are declared Unknown, and each feature
+	 * then carries its own type.
+	 */
+	private byte getHeaderGeometryType() {
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		return (geometryDescriptor != null) ? getGeometryType(geometryDescriptor.getType().getBinding()) : UNKNOWN;
+	}
+
+	private static byte getGeometryType(Class<?> binding) {
+		if (Point.class.isAssignableFrom(binding)) {
+			return POINT;
+		} else if (LineString.class.isAssignableFrom(binding)) {
+			return LINESTRING;
+		} else if (Polygon.class.isAssignableFrom(binding)) {
+			return POLYGON;
+		} else if (MultiPoint.class.isAssignableFrom(binding)) {
+			return MULTIPOINT;
+		} else if (MultiLineString.class.isAssignableFrom(binding)) {
+			return MULTILINESTRING;
+		} else if (MultiPolygon.class.isAssignableFrom(binding)) {
+			return MULTIPOLYGON;
+		} else if (GeometryCollection.class.isAssignableFrom(binding)) {
+			return GEOMETRYCOLLECTION;
+		}
+		return UNKNOWN;
+	}
+
+	private static byte getColumnType(Class<?> binding) {
+		if (Byte.class.isAssignableFrom(binding)) {
+			return BYTE;
+		} else if (Boolean.class.isAssignableFrom(binding)) {
+			return BOOL;
+		} else if (Short.class.isAssignableFrom(binding)) {
+			return SHORT;
+		} else if (Integer.class.isAssignableFrom(binding)) {
+			return INT;
+		} else if (Long.class.isAssignableFrom(binding) || BigInteger.class.isAssignableFrom(binding)) {
+			return LONG;
+		} else if (Float.class.isAssignableFrom(binding)) {
+			return FLOAT;
+		} else if (Number.class.isAssignableFrom(binding)) {
+			return DOUBLE;
+		} else if (Date.class.isAssignableFrom(binding)) {
+			return DATETIME;
+		} else if (byte[].class.equals(binding)) {
+			return BINARY;
+		}
+		return STRING;
+	}
+
+	/**
+	 * Gets the EPSG code of a coordinate reference system, or null if it has none.
+	 */
+	private static Integer getEpsgCode(CoordinateReferenceSystem crs) {
+		if (crs == null) {
+			return null;
+		}
+		try {
+			return CRS.lookupEpsgCode(crs, false);
+		} catch (Exception exception) {
+			return null;
+		}
+	}
+}
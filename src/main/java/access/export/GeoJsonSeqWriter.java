@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import access.util.AccessUtilities;
+
+/**
+ * Writes each feature as a GeoJSON Feature on its own line, so that consumers can process an export incrementally, and
+ * split it between workers, without parsing a whole document.
+ * 
+ * <p>
+ * Two framings are supported: newline-delimited JSON, where each line is a Feature, and GeoJSON Text Sequences (RFC
+ * 8142), where each Feature is also preceded by the ASCII record separator.
+ * </p>
+ */
+public class GeoJsonSeqWriter implements FeatureWriter {
+	private static final char RECORD_SEPARATOR = 0x1E;
+
+	private final FeatureJSON featureJSON;
+	private final int decimals;
+	private final OutputStream outputStream;
+	private final EncoderWriter writer;
+	private final boolean recordSeparator;
+
+	/**
+	 * @param outputStream
+	 *            The stream to write the features to. Not closed by this writer.
+	 * @param recordSeparator
+	 *            True to precede each Feature with the record separator, as RFC 8142 requires
+	 * @param decimals
+	 *            The number of decimal places to write coordinates with
+	 */
+	public GeoJsonSeqWriter(OutputStream outputStream, boolean recordSeparator, int decimals) {
+		this.featureJSON = new FeatureJSON(new GeometryJSON(decimals));
+		this.decimals = decimals;
+		this.outputStream = outputStream;
+		this.writer = new EncoderWriter(outputStream);
+		this.recordSeparator = recordSeparator;
+	}
+
+	@Override
+	public void writeStart(SimpleFeatureType schema) throws IOException {
+		// A sequence has no header
+	}
+
+	@Override
+	public void writeFeature(SimpleFeature feature) throws IOException {
+		if (recordSeparator) {
+			writer.write(RECORD_SEPARATOR);
+		}
+		featureJSON.writeFeature(feature, writer);
+		writer.write('\n');
+	}
+
+	@Override
+	public void writeEnd() throws IOException {
+		writer.flushThrough();
+	}
+
+	@Override
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) {
+		return new GeoJsonSeqWriter(outputStream, recordSeparator, decimals);
+	}
+
+	@Override
+	public void writeFragment(InputStream fragment) throws IOException {
+		writer.flushThrough();
+		AccessUtilities.copyStream(fragment, outputStream);
+	}
+
+	@Override
+	public void close() {
+		// Holds nothing but the stream, which belongs to the caller
+	}
+}
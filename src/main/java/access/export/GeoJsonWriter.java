@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import access.util.AccessUtilities;
+
+/**
+ * Writes a GeoJSON FeatureCollection to a stream one feature at a time, so the collection is never held in memory and
+ * the first features reach the client while the rest are still being read.
+ * 
+ * <p>
+ * One encoder is used for all features. The encoder flushes its output after every feature; those flushes are ignored,
+ * so that the output stream is written in large blocks.
+ * </p>
+ * 
+ * <p>
+ * Each feature of a fragment is preceded by a comma. The comma of the first fragment is dropped when it is added to
+ * the collection, if no feature precedes it.
+ * </p>
+ */
+public class GeoJsonWriter implements FeatureWriter {
+	private final FeatureJSON featureJSON;
+	private final int decimals;
+	private final OutputStream outputStream;
+	private final EncoderWriter writer;
+	private final boolean fragment;
+	private boolean firstFeature = true;
+
+	/**
+	 * @param outputStream
+	 *            The stream to write the collection to. Not closed by this writer.
+	 * @param decimals
+	 *            The number of decimal places to write coordinates with
+	 */
+	public GeoJsonWriter(OutputStream outputStream, int decimals) {
+		this(outputStream, decimals, false);
+	}
+
+	private GeoJsonWriter(OutputStream outputStream, int decimals, boolean fragment) {
+		this.featureJSON = new FeatureJSON(new GeometryJSON(decimals));
+		this.decimals = decimals;
+		this.outputStream = outputStream;
+		this.writer = new EncoderWriter(outputStream);
+		this.fragment = fragment;
+	}
+
+	/**
+	 * Writes the opening of the FeatureCollection, and sends it to the client straight away.
+	 */
+	@Override
+	public void writeStart(SimpleFeatureType schema) throws IOException {
+		writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+		writer.flushThrough();
+	}
+
+	@Override
+	public void writeFeature(SimpleFeature feature) throws IOException {
+		if (!firstFeature || fragment) {
+			writer.write(',');
+		}
+		firstFeature = false;
+		featureJSON.writeFeature(feature, writer);
+	}
+
+	@Override
+	public void writeEnd() throws IOException {
+		if (!fragment) {
+			writer.write("]}");
+		}
+		writer.flushThrough();
+	}
+
+	@Override
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) {
+		return new GeoJsonWriter(outputStream, decimals, true);
+	}
+
+	@Override
+	public void writeFragment(InputStream fragment) throws IOException {
+		int first = fragment.read();
+		if (first == -1) {
+			return;
+		}
+		writer.flushThrough();
+		if (!firstFeature) {
+			outputStream.write(first);
+		}
+		firstFeature = false;
+		AccessUtilities.copyStream(fragment, outputStream);
+	}
+
+	@Override
+	public void close() {
+		// Holds nothing but the stream, which belongs to the caller
+	}
+}
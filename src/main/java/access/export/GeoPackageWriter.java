@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureWriter;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes features into a GeoPackage. A GeoPackage is a SQLite database, which cannot be written to a stream as it is
+ * built, so the features are written into a temporary file, in a single transaction, and the file is copied to the
+ * stream once all features have been written.
+ */
+public class GeoPackageWriter implements FeatureWriter {
+	private final OutputStream outputStream;
+	private File file;
+	private GeoPackage geoPackage;
+	private Transaction transaction;
+	private SimpleFeatureWriter writer;
+
+	/**
+	 * @param outputStream
+	 *            The stream to write the GeoPackage to. Not closed by this writer.
+	 */
+	public GeoPackageWriter(OutputStream outputStream) {
+		this.outputStream = outputStream;
+	}
+
+	/**
+	 * Creates the GeoPackage, with one feature table named after the feature type.
+	 */
+	@Override
+	public void writeStart(SimpleFeatureType schema) throws IOException {
+		file = File.createTempFile("export", ".gpkg");
+		geoPackage = new GeoPackage(file);
+		geoPackage.init();
+		FeatureEntry featureEntry = new FeatureEntry();
+		featureEntry.setTableName(schema.getTypeName());
+		geoPackage.create(featureEntry, schema);
+		transaction = new DefaultTransaction();
+		writer = geoPackage.writer(featureEntry, true, null, transaction);
+	}
+
+	@Override
+	public void writeFeature(SimpleFeature feature) throws IOException {
+		SimpleFeature next = writer.next();
+		for (int i = 0; i < feature.getAttributeCount(); i++) {
+			next.setAttribute(feature.getFeatureType().getDescriptor(i).getLocalName(), feature.getAttribute(i));
+		}
+		writer.write();
+	}
+
+	@Override
+	public void writeEnd() throws IOException {
+		writer.close();
+		writer = null;
+		transaction.commit();
+		geoPackage.close();
+		geoPackage = null;
+		Files.copy(file.toPath(), outputStream);
+		outputStream.flush();
+	}
+
+	/**
+	 * GeoPackages cannot be written in fragments, as all features go into one database file.
+	 */
+	@Override
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) {
+		return null;
+	}
+
+	@Override
+	public void writeFragment(InputStream fragment) {
+		throw new UnsupportedOperationException("GeoPackages cannot be written in fragments.");
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (writer != null) {
+				writer.close();
+			}
+			if (transaction != null) {
+				transaction.close();
+			}
+		} finally {
+			if (geoPackage != null) {
+				geoPackage.close();
+			}
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+}
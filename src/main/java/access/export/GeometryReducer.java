@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateFilter;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Reduces the geometries of exported features: simplifies them to a distance tolerance, and rounds their coordinates
+ * to a number of decimal places. Features are copied rather than changed, since a data store may hand out the
+ * features it holds.
+ */
+public class GeometryReducer implements FeatureTransform {
+	private final double tolerance;
+	private final boolean preserveTopology;
+	private final PrecisionModel precisionModel;
+
+	/**
+	 * @param tolerance
+	 *            The simplification tolerance, in the units of the coordinate reference system. 0 to not simplify.
+	 * @param preserveTopology
+	 *            True to keep simplified polygons valid and their rings from crossing, at a higher cost
+	 * @param precision
+	 *            The number of decimal places to round coordinates to, or null to not round
+	 */
+	public GeometryReducer(double tolerance, boolean preserveTopology, Integer precision) {
+		this.tolerance = tolerance;
+		this.preserveTopology = preserveTopology;
+		this.precisionModel = (precision != null) ? new PrecisionModel(Math.pow(10, precision)) : null;
+	}
+
+	@Override
+	public SimpleFeatureType transform(SimpleFeatureType schema) {
+		return schema;
+	}
+
+	/**
+	 * Reduces the geometries of a feature.
+	 * 
+	 * @param feature
+	 *            The feature
+	 * @return A copy of the feature with reduced geometries
+	 */
+	@Override
+	public SimpleFeature transform(SimpleFeature feature) {
+		List<Object> attributes = new ArrayList<Object>(feature.getAttributes());
+		for (int i = 0; i < attributes.size(); i++) {
+			if (attributes.get(i) instanceof Geometry) {
+				attributes.set(i, reduce((Geometry) attributes.get(i)));
+			}
+		}
+		return SimpleFeatureBuilder.build(feature.getFeatureType(), attributes, feature.getID());
+	}
+
+	private Geometry reduce(Geometry geometry) {
+		Geometry reduced;
+		if (tolerance > 0) {
+			reduced = preserveTopology ? TopologyPreservingSimplifier.simplify(geometry, tolerance)
+					: DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+		} else {
+			reduced = (Geometry) geometry.clone();
+		}
+		if (precisionModel != null) {
+			reduced.apply(new CoordinateFilter() {
+				@Override
+				public void filter(Coordinate coordinate) {
+					precisionModel.makePrecise(coordinate);
+				}
+			});
+			reduced.geometryChanged();
+		}
+		return reduced;
+	}
+}
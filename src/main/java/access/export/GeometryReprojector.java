@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Reprojects the geometries of exported features into another coordinate reference system. The transform is looked
+ * up once per export, rather than once per feature or per partition.
+ * 
+ * <p>
+ * The reprojected feature type is kept for the last feature type seen, which is shared by the features read from one
+ * query, so it is only rebuilt when the feature type changes. It is replaced without locking, so that the partitions of
+ * an export can be encoded concurrently without contending for it.
+ * </p>
+ */
+public class GeometryReprojector implements FeatureTransform {
+	private final CoordinateReferenceSystem targetCrs;
+	private final MathTransform mathTransform;
+	private volatile Retyping retyping;
+
+	/**
+	 * @param targetCrs
+	 *            The coordinate reference system to reproject into
+	 * @param mathTransform
+	 *            The transform from the coordinate reference system of the features to the target
+	 */
+	public GeometryReprojector(CoordinateReferenceSystem targetCrs, MathTransform mathTransform) {
+		this.targetCrs = targetCrs;
+		this.mathTransform = mathTransform;
+	}
+
+	@Override
+	public SimpleFeatureType transform(SimpleFeatureType schema) {
+		Retyping current = retyping;
+		if ((current == null) || (current.sourceSchema != schema)) {
+			// Threads that race here retype the same schema, so whichever is kept is correct
+			current = new Retyping(schema, SimpleFeatureTypeBuilder.retype(schema, targetCrs));
+			retyping = current;
+		}
+		return current.targetSchema;
+	}
+
+	@Override
+	public SimpleFeature transform(SimpleFeature feature) throws IOException {
+		List<Object> attributes = new ArrayList<Object>(feature.getAttributes());
+		for (int i = 0; i < attributes.size(); i++) {
+			if (attributes.get(i) instanceof Geometry) {
+				try {
+					attributes.set(i, JTS.transform((Geometry) attributes.get(i), mathTransform));
+				} catch (Exception exception) {
+					throw new IOException(String.format("Could not reproject feature %s: %s", feature.getID(), exception.getMessage()),
+							exception);
+				}
+			}
+		}
+		return SimpleFeatureBuilder.build(transform(feature.getFeatureType()), attributes, feature.getID());
+	}
+
+	/**
+	 * A feature type and its reprojection, replaced together so that they are always read as a pair.
+	 */
+	private static class Retyping {
+		private final SimpleFeatureType sourceSchema;
+		private final SimpleFeatureType targetSchema;
+
+		private Retyping(SimpleFeatureType sourceSchema, SimpleFeatureType targetSchema) {
+			this.sourceSchema = sourceSchema;
+			this.targetSchema = targetSchema;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+/**
+ * Writes little-endian values into byte arrays, as the binary export formats require.
+ */
+class LittleEndian {
+	private LittleEndian() {
+	}
+
+	public static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+	}
+
+	public static void putInt(byte[] bytes, int offset, int value) {
+		for (int i = 0; i < 4; i++) {
+			bytes[offset + i] = (byte) (value >> (i * 8));
+		}
+	}
+
+	public static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			bytes[offset + i] = (byte) (value >> (i * 8));
+		}
+	}
+}
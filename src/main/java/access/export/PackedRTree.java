@@ -0,0 +1,244 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the packed Hilbert R-tree index of a FlatGeobuf file. Items are sorted along a Hilbert curve over the extent
+ * of all items, and the tree is packed bottom-up from the sorted leaves and written root first.
+ * 
+ * <p>
+ * Each node is written as its bounds (minX, minY, maxX, maxY) followed by an offset, all little-endian. The offset of a
+ * leaf is the byte offset of its feature in the feature section; the offset of any other node is the index of its first
+ * child node.
+ * </p>
+ */
+class PackedRTree {
+	public static final int NODE_ITEM_BYTES = 40;
+	private static final int HILBERT_MAX = (1 << 16) - 1;
+
+	/**
+	 * A feature to be indexed: its bounds, and where its encoding is held until the features are written in index
+	 * order.
+	 */
+	public static class Item {
+		private final double minX;
+		private final double minY;
+		private final double maxX;
+		private final double maxY;
+		private final long spoolOffset;
+		private final int length;
+		private long hilbert;
+
+		public Item(double minX, double minY, double maxX, double maxY, long spoolOffset, int length) {
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.spoolOffset = spoolOffset;
+			this.length = length;
+		}
+
+		public long getSpoolOffset() {
+			return spoolOffset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Gets the extent of all items.
+	 * 
+	 * @return minX, minY, maxX, maxY
+	 */
+	public static double[] getExtent(List<Item> items) {
+		double[] extent = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (Item item : items) {
+			extent[0] = Math.min(extent[0], item.minX);
+			extent[1] = Math.min(extent[1], item.minY);
+			extent[2] = Math.max(extent[2], item.maxX);
+			extent[3] = Math.max(extent[3], item.maxY);
+		}
+		return extent;
+	}
+
+	/**
+	 * Sorts items along the Hilbert curve, by the centres of their bounds.
+	 * 
+	 * @param items
+	 *            The items, sorted in place
+	 * @param extent
+	 *            The extent of all items
+	 */
+	public static void hilbertSort(List<Item> items, double[] extent) {
+		double width = extent[2] - extent[0];
+		double height = extent[3] - extent[1];
+		for (Item item : items) {
+			int x = (width == 0) ? 0 : (int) Math.floor(HILBERT_MAX * ((item.minX + item.maxX) / 2 - extent[0]) / width);
+			int y = (height == 0) ? 0 : (int) Math.floor(HILBERT_MAX * ((item.minY + item.maxY) / 2 - extent[1]) / height);
+			item.hilbert = hilbert(x, y);
+		}
+		items.sort((first, second) -> Long.compare(second.hilbert, first.hilbert));
+	}
+
+	/**
+	 * Writes the index of the items, root first.
+	 * 
+	 * @param items
+	 *            The items, in the order their features are written
+	 * @param nodeSize
+	 *            The number of children of each node
+	 * @param outputStream
+	 *            The stream to write to
+	 */
+	public static void write(List<Item> items, int nodeSize, OutputStream outputStream) throws IOException {
+		List<long[]> levelBounds = getLevelBounds(items.size(), nodeSize);
+		int numNodes = (int) levelBounds.get(0)[1];
+		double[] bounds = new double[numNodes * 4];
+		long[] offsets = new long[numNodes];
+
+		// The leaves are at the end, in feature order; each points at its feature
+		int leafStart = (int) levelBounds.get(0)[0];
+		long featureOffset = 0;
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			int node = leafStart + i;
+			bounds[node * 4] = item.minX;
+			bounds[node * 4 + 1] = item.minY;
+			bounds[node * 4 + 2] = item.maxX;
+			bounds[node * 4 + 3] = item.maxY;
+			offsets[node] = featureOffset;
+			featureOffset += item.length;
+		}
+
+		// Each level above covers up to nodeSize nodes of the level below
+		for (int level = 0; level < levelBounds.size() - 1; level++) {
+			int position = (int) levelBounds.get(level)[0];
+			int end = (int) levelBounds.get(level)[1];
+			int parent = (int) levelBounds.get(level + 1)[0];
+			while (position < end) {
+				offsets[parent] = position;
+				bounds[parent * 4] = Double.POSITIVE_INFINITY;
+				bounds[parent * 4 + 1] = Double.POSITIVE_INFINITY;
+				bounds[parent * 4 + 2] = Double.NEGATIVE_INFINITY;
+				bounds[parent * 4 + 3] = Double.NEGATIVE_INFINITY;
+				for (int child = 0; (child < nodeSize) && (position < end); child++, position++) {
+					bounds[parent * 4] = Math.min(bounds[parent * 4], bounds[position * 4]);
+					bounds[parent * 4 + 1] = Math.min(bounds[parent * 4 + 1], bounds[position * 4 + 1]);
+					bounds[parent * 4 + 2] = Math.max(bounds[parent * 4 + 2], bounds[position * 4 + 2]);
+					bounds[parent * 4 + 3] = Math.max(bounds[parent * 4 + 3], bounds[position * 4 + 3]);
+				}
+				parent++;
+			}
+		}
+
+		byte[] node = new byte[NODE_ITEM_BYTES];
+		for (int i = 0; i < numNodes; i++) {
+			for (int j = 0; j < 4; j++) {
+				LittleEndian.putLong(node, j * 8, Double.doubleToLongBits(bounds[i * 4 + j]));
+			}
+			LittleEndian.putLong(node, 32, offsets[i]);
+			outputStream.write(node);
+		}
+	}
+
+	/**
+	 * Gets the start and end node of each level of the tree, leaves first. The root is node 0.
+	 */
+	private static List<long[]> getLevelBounds(int numItems, int nodeSize) {
+		List<Long> levelNumNodes = new ArrayList<Long>();
+		long n = numItems;
+		long numNodes = n;
+		levelNumNodes.add(n);
+		do {
+			n = (n + nodeSize - 1) / nodeSize;
+			numNodes += n;
+			levelNumNodes.add(n);
+		} while (n != 1);
+
+		List<long[]> levelBounds = new ArrayList<long[]>();
+		n = numNodes;
+		for (long size : levelNumNodes) {
+			levelBounds.add(new long[] { n - size, n });
+			n -= size;
+		}
+		return levelBounds;
+	}
+
+	/**
+	 * Gets the position of a point along the Hilbert curve filling a 65536 by 65536 grid.
+	 */
+	private static long hilbert(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int A = a | (b >> 1);
+		int B = (a >> 1) ^ a;
+		int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+		int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+		a = A;
+		b = B;
+		c = C;
+		d = D;
+		A = ((a & (a >> 2)) ^ (b & (b >> 2)));
+		B = ((a & (b >> 2)) ^ (b & ((a ^ b) >> 2)));
+		C ^= ((a & (c >> 2)) ^ (b & (d >> 2)));
+		D ^= ((b & (c >> 2)) ^ ((a ^ b) & (d >> 2)));
+
+		a = A;
+		b = B;
+		c = C;
+		d = D;
+		A = ((a & (a >> 4)) ^ (b & (b >> 4)));
+		B = ((a & (b >> 4)) ^ (b & ((a ^ b) >> 4)));
+		C ^= ((a & (c >> 4)) ^ (b & (d >> 4)));
+		D ^= ((b & (c >> 4)) ^ ((a ^ b) & (d >> 4)));
+
+		a = A;
+		b = B;
+		c = C;
+		d = D;
+		C ^= ((a & (c >> 8)) ^ (b & (d >> 8)));
+		D ^= ((b & (c >> 8)) ^ ((a ^ b) & (d >> 8)));
+
+		a = C ^ (C >> 1);
+		b = D ^ (D >> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+
+		i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+		i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+		i0 = (i0 | (i0 << 2)) & 0x33333333;
+		i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+		i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+		i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+		i1 = (i1 | (i1 << 2)) & 0x33333333;
+		i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+		return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.RegexpValidator;
+import org.geotools.jdbc.VirtualTable;
+import org.geotools.jdbc.VirtualTableParameter;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import access.util.AccessUtilities;
+
+/**
+ * Exports large PostGIS tables by reading and encoding ranges of the primary key concurrently.
+ * 
+ * <p>
+ * A table with a single integer primary key is split into key ranges of roughly equal width. Each range is read on its
+ * own connection and encoded into a temporary file by a fragment writer (see
+ * {@link FeatureWriter#createFragmentWriter(OutputStream)}), on a fork-join pool shared by all exports. The fragments
+ * are added to the export in key order as they complete, or in order of completion if the client does not need the
+ * features ordered. The size of the pool bounds the connections taken by partitions across all exports, and should
+ * be kept well within the PostGIS connection pool.
+ * </p>
+ * 
+ * <p>
+ * Only a few more partitions than there are threads are submitted at a time; the next is submitted as each fragment is
+ * written. This bounds the fragments an export spools to disk ahead of a slow client, and keeps one export from
+ * queueing all of its partitions ahead of those of other exports.
+ * </p>
+ * 
+ * <p>
+ * Each range is read through a parameterized virtual table over the table, so the export options still apply to each
+ * partition and are passed to the database. If the features are to be written in key order, each range is also sorted
+ * by the key, which the database reads in order from the primary key index.
+ * </p>
+ */
+@Component
+public class ParallelExporter {
+	@Value("${export.parallel.threads}")
+	private int THREADS;
+	@Value("${export.parallel.partition.rows}")
+	private long PARTITION_ROWS;
+	@Value("${export.parallel.max.partitions}")
+	private int MAX_PARTITIONS;
+
+	private static final String PARTITION_TABLE_PREFIX = "partition_of_";
+	private static final String LOWER_PARAMETER = "lower";
+	private static final String UPPER_PARAMETER = "upper";
+	private static final String INTEGER_PATTERN = "^-?[0-9]+$";
+	private static final List<String> INTEGER_TYPES = Arrays.asList("smallint", "integer", "bigint");
+	// Partitions submitted beyond the threads of the pool, so that a thread is not left idle while a fragment is written
+	private static final int PARTITION_WINDOW = 2;
+	private static final FilterFactory2 FILTER_FACTORY = CommonFactoryFinder.getFilterFactory2();
+
+	private ForkJoinPool pool;
+
+	@PostConstruct
+	private void initialize() {
+		if (THREADS > 1) {
+			pool = new ForkJoinPool(THREADS);
+		}
+	}
+
+	@PreDestroy
+	private void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the features of a table selected by a query, in partitions read concurrently, if the table and the
+	 * export allow it. The caller writes the start and the end of the export.
+	 * 
+	 * @param dataStore
+	 *            The data store holding the table
+	 * @param tableName
+	 *            The name of the table
+	 * @param query
+	 *            The query selecting the features to write
+	 * @param featureWriter
+	 *            The writer of the export, on which writeStart has been called
+	 * @param ordered
+	 *            True to write the features in key order; false to write each partition as soon as it is read
+	 * @return True if the features were written. False if the export cannot be partitioned, in which case nothing has
+	 *         been written, and the caller should write the features itself.
+	 */
+	public boolean write(DataStore dataStore, String tableName, Query query, FeatureWriter featureWriter, boolean ordered)
+			throws IOException {
+		if ((pool == null) || !(dataStore instanceof JDBCDataStore) || (query.getMaxFeatures() != Query.DEFAULT_MAX)
+				|| (query.getStartIndex() != null) || ((query.getSortBy() != null) && (query.getSortBy().length > 0))) {
+			// Paging and sorting apply to the whole table, not to each partition
+			return false;
+		}
+		try (FeatureWriter probe = featureWriter.createFragmentWriter(new ByteArrayOutputStream())) {
+			if (probe == null) {
+				// The format cannot be written in fragments
+				return false;
+			}
+		}
+		JDBCDataStore jdbcDataStore = (JDBCDataStore) dataStore;
+		List<Query> partitions = getPartitions(jdbcDataStore, tableName, query, ordered);
+		if (partitions == null) {
+			return false;
+		}
+
+		AtomicBoolean cancelled = new AtomicBoolean();
+		CompletionService<File> completionService = new ExecutorCompletionService<File>(pool);
+		// The partitions submitted so far, in key order
+		List<Future<File>> futures = new ArrayList<Future<File>>();
+		int written = 0;
+		try {
+			for (int i = 0; i < partitions.size(); i++) {
+				// Keep the window of partitions ahead of the fragment being written full
+				while ((futures.size() < partitions.size()) && (futures.size() < i + THREADS + PARTITION_WINDOW)) {
+					Query partition = partitions.get(futures.size());
+					futures.add(completionService.submit(new Partition(jdbcDataStore, tableName, partition, featureWriter, cancelled)));
+				}
+				Future<File> future = ordered ? futures.get(i) : completionService.take();
+				File fragment = future.get();
+				try (InputStream fragmentStream = new FileInputStream(fragment)) {
+					featureWriter.writeFragment(fragmentStream);
+				} finally {
+					fragment.delete();
+				}
+				written++;
+			}
+			return true;
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while exporting %s.", tableName), exception);
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof IOException) {
+				throw (IOException) exception.getCause();
+			}
+			throw new IOException(exception.getCause());
+		} finally {
+			if (written < futures.size()) {
+				cancel(futures, cancelled, ordered ? written : 0);
+			}
+		}
+	}
+
+	/**
+	 * Gets statistics of the pool: the number of threads and of partitions running and queued.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("threads", THREADS);
+		if (pool != null) {
+			statistics.put("active", pool.getActiveThreadCount());
+			statistics.put("queued", pool.getQueuedSubmissionCount());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Stops the partitions of a failed export, and deletes the fragments that were not written. Partitions stop at the
+	 * next feature they read, so waiting for them is brief.
+	 */
+	private void cancel(List<Future<File>> futures, AtomicBoolean cancelled, int firstUnwritten) {
+		cancelled.set(true);
+		for (int i = firstUnwritten; i < futures.size(); i++) {
+			try {
+				File fragment = futures.get(i).get();
+				if (fragment != null) {
+					fragment.delete();
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException exception) {
+				// The partition failed, and deleted its own fragment
+			}
+		}
+	}
+
+	/**
+	 * Splits a query on a table into queries on ranges of its primary key.
+	 * 
+	 * @param ordered
+	 *            True to sort each partition by the key
+	 * @return The query of each partition, in key order. Null if the table has no single integer primary key, or is
+	 *         too small to be worth partitioning.
+	 */
+	private List<Query> getPartitions(JDBCDataStore dataStore, String tableName, Query query, boolean ordered)
+			throws IOException {
+		String qualifiedName = quote(dataStore.getDatabaseSchema()) + "." + quote(tableName);
+		String keyColumn;
+		long minimum;
+		long maximum;
+		try (Connection connection = dataStore.getDataSource().getConnection()) {
+			keyColumn = getIntegerKeyColumn(connection, qualifiedName);
+			if (keyColumn == null) {
+				return null;
+			}
+			try (Statement statement = connection.createStatement();
+					ResultSet resultSet = statement.executeQuery(String.format("SELECT min(%s), max(%s) FROM %s", quote(keyColumn),
+							quote(keyColumn), qualifiedName))) {
+				resultSet.next();
+				minimum = resultSet.getLong(1);
+				if (resultSet.wasNull()) {
+					// The table is empty
+					return null;
+				}
+				maximum = resultSet.getLong(2);
+			}
+		} catch (SQLException exception) {
+			throw new IOException(String.format("Could not find the key range of %s: %s", tableName, exception.getMessage()),
+					exception);
+		}
+
+		double span = (double) maximum - minimum + 1;
+		int count = (int) Math.min(MAX_PARTITIONS, Math.ceil(span / PARTITION_ROWS));
+		if (count < 2) {
+			return null;
+		}
+		String partitionTableName = getPartitionTable(dataStore, tableName, qualifiedName, keyColumn);
+		List<Query> partitions = new ArrayList<Query>();
+		long width = (long) Math.ceil(span / count);
+		for (long lower = minimum; lower <= maximum; lower += width) {
+			// The upper bound is exclusive; the last partition ends past the maximum key
+			long upper = (maximum - lower < width) ? maximum + 1 : lower + width;
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put(LOWER_PARAMETER, Long.toString(lower));
+			parameters.put(UPPER_PARAMETER, Long.toString(upper));
+			Query partition = new Query(query);
+			partition.setTypeName(partitionTableName);
+			partition.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, parameters));
+			if (ordered) {
+				partition.setSortBy(new SortBy[] { FILTER_FACTORY.sort(keyColumn, SortOrder.ASCENDING) });
+			}
+			partitions.add(partition);
+			if (upper > maximum) {
+				break;
+			}
+		}
+		return partitions;
+	}
+
+	/**
+	 * Gets the primary key column of a table, if the key is a single integer column.
+	 */
+	private String getIntegerKeyColumn(Connection connection, String qualifiedName) throws SQLException {
+		String sql = "SELECT a.attname, format_type(a.atttypid, a.atttypmod) FROM pg_index i "
+				+ "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY(i.indkey) "
+				+ "WHERE i.indrelid = ?::regclass AND i.indisprimary";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setString(1, qualifiedName);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				String column = resultSet.getString(1);
+				String type = resultSet.getString(2);
+				if (resultSet.next() || !INTEGER_TYPES.contains(type)) {
+					// Composite or non-integer keys cannot be split into ranges
+					return null;
+				}
+				return column;
+			}
+		}
+	}
+
+	/**
+	 * Gets the name of the virtual table that selects a range of keys of a table, creating it if needed.
+	 */
+	private synchronized String getPartitionTable(JDBCDataStore dataStore, String tableName, String qualifiedName, String keyColumn)
+			throws IOException {
+		String partitionTableName = PARTITION_TABLE_PREFIX + tableName;
+		if (dataStore.getVirtualTables().containsKey(partitionTableName)) {
+			return partitionTableName;
+		}
+		VirtualTable virtualTable = new VirtualTable(partitionTableName,
+				String.format("SELECT * FROM %s WHERE %s >= %%%s%% AND %s < %%%s%%", qualifiedName, quote(keyColumn),
+						LOWER_PARAMETER, quote(keyColumn), UPPER_PARAMETER));
+		virtualTable.addParameter(new VirtualTableParameter(LOWER_PARAMETER, "0", new RegexpValidator(INTEGER_PATTERN)));
+		virtualTable.addParameter(new VirtualTableParameter(UPPER_PARAMETER, "0", new RegexpValidator(INTEGER_PATTERN)));
+		virtualTable.setPrimaryKeyColumns(Arrays.asList(keyColumn));
+		// Describe the geometries as the table does, rather than having them guessed from a sample
+		SimpleFeatureType schema = dataStore.getSchema(tableName);
+		for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+			if (descriptor instanceof GeometryDescriptor) {
+				virtualTable.addGeometryMetadatata(descriptor.getLocalName(),
+						descriptor.getType().getBinding().asSubclass(Geometry.class), getSrid((GeometryDescriptor) descriptor));
+			}
+		}
+		dataStore.createVirtualTable(virtualTable);
+		return partitionTableName;
+	}
+
+	private static int getSrid(GeometryDescriptor descriptor) {
+		Object nativeSrid = descriptor.getUserData().get(JDBCDataStore.JDBC_NATIVE_SRID);
+		if (nativeSrid instanceof Integer) {
+			return (Integer) nativeSrid;
+		}
+		try {
+			Integer code = CRS.lookupEpsgCode(descriptor.getCoordinateReferenceSystem(), false);
+			return (code != null) ? code : -1;
+		} catch (Exception exception) {
+			return -1;
+		}
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Reads one partition and encodes it into a temporary file.
+	 */
+	private static class Partition implements Callable<File> {
+		private final JDBCDataStore dataStore;
+		private final String tableName;
+		private final Query query;
+		private final FeatureWriter featureWriter;
+		private final AtomicBoolean cancelled;
+
+		private Partition(JDBCDataStore dataStore, String tableName, Query query, FeatureWriter featureWriter,
+				AtomicBoolean cancelled) {
+			this.dataStore = dataStore;
+			this.tableName = tableName;
+			this.query = query;
+			this.featureWriter = featureWriter;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public File call() throws IOException {
+			if (cancelled.get()) {
+				return null;
+			}
+			File fragment = File.createTempFile("partition", ".tmp");
+			boolean complete = false;
+			try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(fragment),
+					AccessUtilities.STREAM_BUFFER_SIZE);
+					FeatureWriter fragmentWriter = featureWriter.createFragmentWriter(outputStream)) {
+				// Closing the iterator returns its connection to the pool
+				SimpleFeatureIterator iterator = dataStore.getFeatureSource(query.getTypeName()).getFeatures(query).features();
+				try {
+					while (iterator.hasNext() && !cancelled.get()) {
+						fragmentWriter.writeFeature(withTableId(iterator.next()));
+					}
+				} finally {
+					iterator.close();
+				}
+				fragmentWriter.writeEnd();
+				complete = !cancelled.get();
+			} finally {
+				if (!complete) {
+					fragment.delete();
+				}
+			}
+			return complete ? fragment : null;
+		}
+
+		/**
+		 * Gives a feature read through the virtual table the Id it has when read from the table itself.
+		 */
+		private SimpleFeature withTableId(SimpleFeature feature) {
+			String id = feature.getID();
+			int separator = id.indexOf('.');
+			if (separator == -1) {
+				return feature;
+			}
+			return SimpleFeatureBuilder.build(feature.getFeatureType(), feature.getAttributes(), tableName + id.substring(separator));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Transforms each feature before passing it to another writer, so that the transforms are applied as the features are
+ * streamed, and in each partition of a parallel export.
+ */
+class TransformingFeatureWriter implements FeatureWriter {
+	private final FeatureWriter writer;
+	private final List<FeatureTransform> transforms;
+
+	/**
+	 * @param writer
+	 *            The writer to pass the transformed features to
+	 * @param transforms
+	 *            The transforms to apply, in order
+	 */
+	public TransformingFeatureWriter(FeatureWriter writer, List<FeatureTransform> transforms) {
+		this.writer = writer;
+		this.transforms = transforms;
+	}
+
+	@Override
+	public void writeStart(SimpleFeatureType schema) throws IOException {
+		SimpleFeatureType transformedSchema = schema;
+		for (FeatureTransform transform : transforms) {
+			transformedSchema = transform.transform(transformedSchema);
+		}
+		writer.writeStart(transformedSchema);
+	}
+
+	@Override
+	public void writeFeature(SimpleFeature feature) throws IOException {
+		SimpleFeature transformedFeature = feature;
+		for (FeatureTransform transform : transforms) {
+			transformedFeature = transform.transform(transformedFeature);
+		}
+		writer.writeFeature(transformedFeature);
+	}
+
+	@Override
+	public void writeEnd() throws IOException {
+		writer.writeEnd();
+	}
+
+	@Override
+	public FeatureWriter createFragmentWriter(OutputStream outputStream) throws IOException {
+		FeatureWriter fragmentWriter = writer.createFragmentWriter(outputStream);
+		return (fragmentWriter != null) ? new TransformingFeatureWriter(fragmentWriter, transforms) : null;
+	}
+
+	@Override
+	public void writeFragment(InputStream fragment) throws IOException {
+		writer.writeFragment(fragment);
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
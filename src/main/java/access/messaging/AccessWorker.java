@@ -33,6 +33,8 @@ import com.mongodb.MongoInterruptedException;
 
 import access.database.Accessor;
 import access.deploy.Deployer;
+import access.deploy.DeploymentLocker;
+import access.deploy.DeploymentLocker.DeploymentLock;
 import access.deploy.GroupDeployer;
 import access.deploy.Leaser;
 import messaging.job.JobMessageFactory;
@@ -68,6 +70,8 @@ public class AccessWorker {
 	@Autowired
 	private Leaser leaser;
 	@Autowired
+	private DeploymentLocker deploymentLocker;
+	@Autowired
 	private PiazzaLogger logger;
 	@Value("${SPACE}")
 	private String SPACE;
@@ -120,16 +124,31 @@ public class AccessWorker {
 					deployment = accessor.getDeploymentByDataId(accessJob.getDataId());
 					leaser.renewDeploymentLease(deployment, accessJob.getDurationDays());
 				} else {
-					System.out.println("Creating a new Deployment and lease for " + accessJob.getDataId());
-					// Obtain the Data to be deployed
-					DataResource dataToDeploy = accessor.getData(accessJob.getDataId());
-					if (dataToDeploy == null) {
-						throw new Exception(String.format("Data with Id %s does not exist.", accessJob.getDataId()));
+					// Lock the Data, so that only one Job deploys it. Other Jobs for the Data wait here, and then reuse the
+					// Deployment created by the first.
+					DeploymentLock lock = deploymentLocker.lock(accessJob.getDataId());
+					try {
+						deployment = accessor.getDeploymentByDataId(accessJob.getDataId());
+						if (deployment != null) {
+							logger.log(String.format("Reusing the Deployment created by another Job for %s", accessJob.getDataId()),
+									PiazzaLogger.INFO);
+							leaser.renewDeploymentLease(deployment, accessJob.getDurationDays());
+						} else {
+							logger.log(String.format("Creating a new Deployment and lease for %s", accessJob.getDataId()),
+									PiazzaLogger.INFO);
+							// Obtain the Data to be deployed
+							DataResource dataToDeploy = accessor.getData(accessJob.getDataId());
+							if (dataToDeploy == null) {
+								throw new Exception(String.format("Data with Id %s does not exist.", accessJob.getDataId()));
+							}
+							// Create the Deployment
+							deployment = deployer.createDeployment(dataToDeploy, lock);
+							// Create a new Lease for this Deployment
+							leaser.createDeploymentLease(deployment, accessJob.getDurationDays());
+						}
+					} finally {
+						deploymentLocker.unlock(lock);
 					}
-					// Create the Deployment
-					deployment = deployer.createDeployment(dataToDeploy);
-					// Create a new Lease for this Deployment
-					leaser.createDeploymentLease(deployment, accessJob.getDurationDays());
 				}
 
 				if (Thread.interrupted()) {
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.tile;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.geotools.data.DataStore;
+import org.geotools.jdbc.JDBCDataStore;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import access.cache.TileCache;
+
+/**
+ * Builds Mapbox Vector Tiles from PostGIS tables, in the Web Mercator tiling scheme. Tiles are encoded by the database
+ * (ST_AsMVT), and only the features intersecting the tile are read, using the spatial index of the table.
+ * 
+ * <p>
+ * Geometries are simplified to a tolerance of a fraction of a pixel of the tile grid, so that the detail of a tile
+ * matches its zoom level, and are then clipped to the tile and its buffer. Encoded tiles are kept in a bounded
+ * in-memory cache.
+ * </p>
+ */
+@Component
+public class TileGenerator {
+	@Value("${tiles.cache.max.bytes}")
+	private long CACHE_MAX_BYTES;
+	@Value("${tiles.max.zoom}")
+	private int MAX_ZOOM;
+	@Value("${tiles.extent}")
+	private int EXTENT;
+	@Value("${tiles.buffer}")
+	private int BUFFER;
+	@Value("${tiles.simplify.pixels}")
+	private double SIMPLIFY_PIXELS;
+
+	private static final double WEB_MERCATOR_HALF_WIDTH = 20037508.342789244;
+	private static final String TILE_GEOMETRY = "mvt_geom";
+
+	private TileCache tileCache;
+
+	@PostConstruct
+	private void initialize() {
+		tileCache = new TileCache(CACHE_MAX_BYTES);
+	}
+
+	/**
+	 * Determines if a tile is within the tiling scheme.
+	 * 
+	 * @return True if the zoom level is supported, and the column and row exist at that zoom level
+	 */
+	public boolean isValidTile(int z, int x, int y) {
+		if ((z < 0) || (z > MAX_ZOOM)) {
+			return false;
+		}
+		long tiles = 1L << z;
+		return (x >= 0) && (x < tiles) && (y >= 0) && (y < tiles);
+	}
+
+	/**
+	 * Gets a vector tile of a PostGIS table.
+	 * 
+	 * @param dataStore
+	 *            The PostGIS data store holding the table
+	 * @param dataId
+	 *            The Data Id of the table, which keys the cached tiles
+	 * @param tableName
+	 *            The name of the table
+	 * @param z
+	 *            The zoom level
+	 * @param x
+	 *            The column of the tile, from the west
+	 * @param y
+	 *            The row of the tile, from the north
+	 * @return The encoded tile, with one layer named after the table. Empty if no features intersect the tile.
+	 */
+	public byte[] getTile(DataStore dataStore, String dataId, String tableName, int z, int x, int y) throws IOException {
+		byte[] tile = tileCache.get(dataId, z, x, y);
+		if (tile != null) {
+			return tile;
+		}
+		if (!(dataStore instanceof JDBCDataStore)) {
+			throw new IOException("Vector tiles can only be built from PostGIS.");
+		}
+		tile = buildTile((JDBCDataStore) dataStore, tableName, z, x, y);
+		tileCache.put(dataId, z, x, y, tile);
+		return tile;
+	}
+
+	/**
+	 * Drops the cached tiles of a Data Id, so that they are built again from its current table.
+	 * 
+	 * @param dataId
+	 *            The Data Id
+	 */
+	public void remove(String dataId) {
+		tileCache.remove(dataId);
+	}
+
+	/**
+	 * @return The statistics of the tile cache
+	 */
+	public Map<String, Object> getStatistics() {
+		return tileCache.getStatistics();
+	}
+
+	/**
+	 * Builds a tile in the database.
+	 */
+	private byte[] buildTile(JDBCDataStore dataStore, String tableName, int z, int x, int y) throws IOException {
+		SimpleFeatureType schema = dataStore.getSchema(tableName);
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		if (geometryDescriptor == null) {
+			throw new IOException(String.format("Table %s has no geometry.", tableName));
+		}
+		String schemaName = (dataStore.getDatabaseSchema() != null) ? dataStore.getDatabaseSchema() : "public";
+		String geometryColumn = quote(geometryDescriptor.getLocalName());
+		StringBuilder columns = new StringBuilder();
+		for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+			if (!(descriptor instanceof GeometryDescriptor)) {
+				columns.append(", t.").append(quote(descriptor.getLocalName()));
+			}
+		}
+
+		// The bounds of the tile in Web Mercator
+		double tileWidth = (2 * WEB_MERCATOR_HALF_WIDTH) / (1L << z);
+		double minX = -WEB_MERCATOR_HALF_WIDTH + (x * tileWidth);
+		double maxY = WEB_MERCATOR_HALF_WIDTH - (y * tileWidth);
+		double tolerance = (tileWidth / EXTENT) * SIMPLIFY_PIXELS;
+
+		String sql = String.format("WITH bounds AS (SELECT ST_MakeEnvelope(?, ?, ?, ?, 3857) AS geom) "
+				+ "SELECT ST_AsMVT(tile, ?, ?, '%1$s') FROM ("
+				+ "SELECT ST_AsMVTGeom(ST_Simplify(ST_Transform(t.%2$s, 3857), ?, true), bounds.geom, ?, ?, true) AS %1$s%3$s "
+				+ "FROM %4$s.%5$s t, bounds "
+				+ "WHERE t.%2$s && ST_Transform(bounds.geom, Find_SRID(?, ?, ?))"
+				+ ") AS tile WHERE %1$s IS NOT NULL", TILE_GEOMETRY, geometryColumn, columns, quote(schemaName), quote(tableName));
+		try (Connection connection = dataStore.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(sql)) {
+			int parameter = 1;
+			statement.setDouble(parameter++, minX);
+			statement.setDouble(parameter++, maxY - tileWidth);
+			statement.setDouble(parameter++, minX + tileWidth);
+			statement.setDouble(parameter++, maxY);
+			statement.setString(parameter++, tableName);
+			statement.setInt(parameter++, EXTENT);
+			statement.setDouble(parameter++, tolerance);
+			statement.setInt(parameter++, EXTENT);
+			statement.setInt(parameter++, BUFFER);
+			statement.setString(parameter++, schemaName);
+			statement.setString(parameter++, tableName);
+			statement.setString(parameter++, geometryDescriptor.getLocalName());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				byte[] tile = resultSet.next() ? resultSet.getBytes(1) : null;
+				return (tile != null) ? tile : new byte[0];
+			}
+		} catch (SQLException exception) {
+			throw new IOException(String.format("Could not build tile %s/%s/%s of %s: %s", z, x, y, tableName, exception.getMessage()),
+					exception);
+		}
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+}
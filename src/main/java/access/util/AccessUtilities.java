@@ -15,14 +15,39 @@
  **/
 package access.util;
 
-import org.apache.commons.io.IOUtils;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import access.cache.CachedContent;
+import access.cache.ContentCache;
 import model.data.DataResource;
+import model.data.FileRepresentation;
 import model.data.location.FileAccessFactory;
 import model.data.location.FileLocation;
-import model.data.type.RasterDataType;
+import model.data.location.FolderShare;
+import model.data.location.S3FileStore;
 
 /**
  * Utility class to handle common functionality required by access components
@@ -32,22 +57,293 @@ import model.data.type.RasterDataType;
  */
 @Component
 public class AccessUtilities {
+	/**
+	 * Size of the buffer used when copying file streams to a client or to GeoServer.
+	 */
+	public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Pool of heap buffers for copies between streams. Holds at most 16 MB.
+	 */
+	public static final BufferPool STREAM_BUFFERS = new BufferPool(STREAM_BUFFER_SIZE, 256, false);
+	/**
+	 * Pool of direct buffers for copies that read from or write to a file channel. Holds at most 4 MB.
+	 */
+	public static final BufferPool FILE_BUFFERS = new BufferPool(STREAM_BUFFER_SIZE, 64, true);
+
 	@Value("${vcap.services.pz-blobstore.credentials.access_key_id}")
 	private String AMAZONS3_ACCESS_KEY;
 	@Value("${vcap.services.pz-blobstore.credentials.secret_access_key}")
 	private String AMAZONS3_PRIVATE_KEY;
+	@Autowired
+	private ContentCache contentCache;
+	private AmazonS3 s3Client;
 
 	/**
-	 * Gets the Bytes for a Data Resource
+	 * Gets the file of a Data Resource as a Resource that is read as it is sent, so that the file is never held in
+	 * memory. A file already on local disk, in a folder share or the Content Cache, is read from disk; otherwise it is
+	 * streamed from S3. The length of the file is known up front in both cases.
 	 * 
 	 * @param dataResource
-	 *            The Data Resource
-	 * @return The byte array for the file
+	 *            The Data Resource, which must be a file
+	 * @return The file. Its stream may only be read once.
+	 */
+	public Resource getFileResource(final DataResource dataResource) throws Exception {
+		final FileLocation fileLocation = ((FileRepresentation) dataResource.getDataType()).getLocation();
+		File localFile = null;
+		if (fileLocation instanceof FolderShare) {
+			localFile = new File(((FolderShare) fileLocation).filePath);
+		} else {
+			CachedContent cachedContent = contentCache.get(dataResource.getDataId(), fileLocation);
+			localFile = (cachedContent != null) ? cachedContent.getFile() : null;
+		}
+		if (localFile != null) {
+			return new FileSystemResource(localFile);
+		}
+		final long length = getFileInfo(fileLocation).getLength();
+		return new AbstractResource() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				// Opened only once the request is sent, by the message converter, which closes it
+				try {
+					return getFileStream(fileLocation);
+				} catch (IOException exception) {
+					throw exception;
+				} catch (Exception exception) {
+					throw new IOException(exception);
+				}
+			}
+
+			@Override
+			public long contentLength() {
+				return length;
+			}
+
+			@Override
+			public String getFilename() {
+				return fileLocation.getFileName();
+			}
+
+			@Override
+			public String getDescription() {
+				return String.format("File %s of Data %s", fileLocation.getFileName(), dataResource.getDataId());
+			}
+		};
+	}
+
+	/**
+	 * Gets a copy of the file on local disk. Files in a local folder share are returned directly. S3 files are read
+	 * through the Content Cache; if the file is not cached yet, it is downloaded into the cache first, or, if another
+	 * caller is already downloading it, that download is waited for.
+	 * 
+	 * @param dataId
+	 *            The Data Id the file belongs to
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The local file, or null if the file cannot be held locally (for instance, it is larger than the cache)
+	 */
+	public File getLocalFile(String dataId, FileLocation fileLocation) throws Exception {
+		if (fileLocation instanceof FolderShare) {
+			return new File(((FolderShare) fileLocation).filePath);
+		}
+		CachedContent cachedContent = contentCache.get(dataId, fileLocation);
+		if (cachedContent == null) {
+			cachedContent = contentCache.await(dataId, fileLocation);
+		}
+		if (cachedContent != null) {
+			return cachedContent.getFile();
+		}
+		StoredFileInfo fileInfo = getFileInfo(fileLocation);
+		if (!contentCache.isCacheable(fileLocation, fileInfo)) {
+			return null;
+		}
+		ContentCache.Flight flight = contentCache.lead(dataId, fileLocation);
+		if (flight == null) {
+			// Another caller started fetching the file in the meantime
+			cachedContent = contentCache.await(dataId, fileLocation);
+			return (cachedContent != null) ? cachedContent.getFile() : null;
+		}
+		InputStream inputStream;
+		try {
+			inputStream = getFileStream(fileLocation);
+		} catch (Exception exception) {
+			flight.fail(exception);
+			throw exception;
+		}
+		try {
+			return contentCache.fill(flight, fileInfo, inputStream, null).getFile();
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Describes the stored file without reading its contents. For S3 files, the object metadata is read, and the S3
+	 * ETag (the object checksum) is used as the entity tag. For local files, the entity tag is derived from the size
+	 * and modification time.
+	 * 
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The length, entity tag and modification time of the file
+	 */
+	public StoredFileInfo getFileInfo(FileLocation fileLocation) throws Exception {
+		if (fileLocation instanceof S3FileStore) {
+			S3FileStore s3Location = (S3FileStore) fileLocation;
+			ObjectMetadata metadata = getS3Client().getObjectMetadata(s3Location.getBucketName(), s3Location.getFileName());
+			long lastModified = (metadata.getLastModified() != null) ? metadata.getLastModified().getTime() : -1;
+			return new StoredFileInfo(metadata.getContentLength(), String.format("\"%s\"", metadata.getETag()), lastModified);
+		} else if (fileLocation instanceof FolderShare) {
+			File file = new File(((FolderShare) fileLocation).filePath);
+			if (!file.exists()) {
+				throw new FileNotFoundException(String.format("File %s does not exist.", file.getPath()));
+			}
+			return new StoredFileInfo(file.length(), String.format("\"%x-%x\"", file.length(), file.lastModified()),
+					file.lastModified());
+		} else {
+			throw new UnsupportedOperationException(
+					"Cannot describe files in the following location: " + fileLocation.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Opens a stream to the entire contents of the file.
+	 * 
+	 * @param fileLocation
+	 *            The location of the file
+	 * @return The stream of file bytes. The caller is responsible for closing it.
 	 */
-	public byte[] getBytesForDataResource(DataResource dataResource) throws Exception {
-		FileLocation fileLocation = ((RasterDataType) dataResource.getDataType()).getLocation();
+	public InputStream getFileStream(FileLocation fileLocation) throws Exception {
 		FileAccessFactory fileAccessFactory = new FileAccessFactory(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
-		byte[] fileBytes = IOUtils.toByteArray(fileAccessFactory.getFile(fileLocation));
-		return fileBytes;
+		return fileAccessFactory.getFile(fileLocation);
+	}
+
+	/**
+	 * Opens a stream to a byte range of the file. For S3 files, a ranged GET is issued so that only the requested
+	 * bytes are transferred. For local files, the stream is positioned at the start of the range.
+	 * 
+	 * @param fileLocation
+	 *            The location of the file
+	 * @param start
+	 *            The first byte of the range, inclusive
+	 * @param end
+	 *            The last byte of the range, inclusive
+	 * @return The stream of the bytes in the range. The caller is responsible for closing it.
+	 */
+	public InputStream getFileStream(FileLocation fileLocation, long start, long end) throws Exception {
+		if (fileLocation instanceof S3FileStore) {
+			S3FileStore s3Location = (S3FileStore) fileLocation;
+			GetObjectRequest request = new GetObjectRequest(s3Location.getBucketName(), s3Location.getFileName());
+			request.setRange(start, end);
+			return getS3Client().getObject(request).getObjectContent();
+		} else {
+			InputStream inputStream = getFileStream(fileLocation);
+			try {
+				// Local file streams seek on skip. Other streams must discard the bytes before the range.
+				long skipped = 0;
+				while (skipped < start) {
+					long count = inputStream.skip(start - skipped);
+					if (count <= 0) {
+						throw new EOFException(String.format("Range start %s is beyond the end of the file.", start));
+					}
+					skipped += count;
+				}
+			} catch (IOException exception) {
+				inputStream.close();
+				throw exception;
+			}
+			return new BoundedInputStream(inputStream, end - start + 1);
+		}
+	}
+
+	/**
+	 * Gets the S3 client used for metadata and ranged requests. The client is thread safe and shared between requests.
+	 * 
+	 * @return The S3 client
+	 */
+	private synchronized AmazonS3 getS3Client() {
+		if (s3Client == null) {
+			s3Client = new AmazonS3Client(new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY));
+		}
+		return s3Client;
+	}
+
+	/**
+	 * Copies the input stream to the output stream through a single fixed-size buffer, taken from
+	 * {@link #STREAM_BUFFERS}. Neither stream is closed.
+	 * 
+	 * @param inputStream
+	 *            The stream to read from
+	 * @param outputStream
+	 *            The stream to write to
+	 * @return The number of bytes copied
+	 */
+	public static long copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
+		ByteBuffer pooledBuffer = STREAM_BUFFERS.acquire();
+		try {
+			byte[] buffer = pooledBuffer.array();
+			long count = 0;
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				outputStream.write(buffer, 0, read);
+				count += read;
+			}
+			return count;
+		} finally {
+			STREAM_BUFFERS.release(pooledBuffer);
+		}
+	}
+
+	/**
+	 * Computes the CRC-32 checksum of a file. The file is read into a direct buffer, taken from {@link #FILE_BUFFERS},
+	 * so that its bytes are never copied into the JVM heap. The file is read from its start, without moving the
+	 * channel's position, so that the same channel can then be used to copy the file.
+	 * 
+	 * @param fileChannel
+	 *            The open file
+	 * @return The checksum
+	 */
+	public static long getChecksum(FileChannel fileChannel) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = FILE_BUFFERS.acquire();
+		try {
+			long position = 0;
+			int read;
+			while ((read = fileChannel.read(buffer, position)) != -1) {
+				position += read;
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			FILE_BUFFERS.release(buffer);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Transfers a region of a file to the target channel with {@link FileChannel#transferTo}, which lets the operating
+	 * system move the bytes without copying them through the JVM heap where the target allows it.
+	 * 
+	 * @param fileChannel
+	 *            The file to read from
+	 * @param position
+	 *            The offset of the first byte to transfer
+	 * @param count
+	 *            The number of bytes to transfer
+	 * @param target
+	 *            The channel to write to
+	 */
+	public static void transferFile(FileChannel fileChannel, long position, long count, WritableByteChannel target) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			long transferred = fileChannel.transferTo(position, remaining, target);
+			if (transferred <= 0) {
+				if (position >= fileChannel.size()) {
+					throw new EOFException(String.format("File ended with %s bytes left to transfer.", remaining));
+				}
+				continue;
+			}
+			position += transferred;
+			remaining -= transferred;
+		}
 	}
 }
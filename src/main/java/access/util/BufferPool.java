@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.util;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of reusable, fixed-size byte buffers for the copy loops of downloads and uploads, so that a copy in
+ * the steady state allocates nothing. The pool is split into stripes, chosen by thread, so that concurrent copies
+ * rarely contend for the same stripe.
+ * 
+ * <p>
+ * A buffer is taken from the caller's stripe, or from the next stripe that holds one; it is only allocated if the whole
+ * pool is empty (a miss). A returned buffer is likewise kept in the first stripe with room, and left to the garbage
+ * collector if the pool is full. The pool therefore never holds more than its capacity, however many copies run at
+ * once.
+ * </p>
+ */
+public class BufferPool {
+	private final ArrayBlockingQueue<ByteBuffer>[] stripes;
+	private final int bufferSize;
+	private final boolean direct;
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * @param bufferSize
+	 *            The size of each buffer in bytes
+	 * @param capacity
+	 *            The largest number of buffers the pool holds
+	 * @param direct
+	 *            True to pool direct buffers, for copies between channels; false to pool heap buffers, whose arrays are
+	 *            used for copies between streams
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int bufferSize, int capacity, boolean direct) {
+		int stripeCount = Math.max(1, Math.min(capacity, Runtime.getRuntime().availableProcessors() * 2));
+		this.stripes = new ArrayBlockingQueue[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			// The first stripes take the remainder of the capacity
+			int stripeCapacity = capacity / stripeCount + ((i < capacity % stripeCount) ? 1 : 0);
+			stripes[i] = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, stripeCapacity));
+		}
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+	}
+
+	/**
+	 * Takes a buffer from the pool. The buffer must be returned with {@link #release(ByteBuffer)} once the copy is done,
+	 * usually in a finally block.
+	 * 
+	 * @return A cleared buffer of the pool's buffer size
+	 */
+	public ByteBuffer acquire() {
+		acquired.incrementAndGet();
+		int home = getStripeIndex();
+		for (int i = 0; i < stripes.length; i++) {
+			ByteBuffer buffer = stripes[(home + i) % stripes.length].poll();
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		misses.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            A buffer taken from this pool. Ignored if null.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		buffer.clear();
+		int home = getStripeIndex();
+		for (int i = 0; i < stripes.length; i++) {
+			if (stripes[(home + i) % stripes.length].offer(buffer)) {
+				return;
+			}
+		}
+		discarded.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of buffers taken from the pool, and of those that had to be allocated; the number of returned
+	 * buffers that did not fit in the pool; and the number of buffers the pool holds.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		long pooled = 0;
+		long capacity = 0;
+		for (ArrayBlockingQueue<ByteBuffer> stripe : stripes) {
+			pooled += stripe.size();
+			capacity += stripe.size() + stripe.remainingCapacity();
+		}
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("acquired", acquired.get());
+		statistics.put("misses", misses.get());
+		statistics.put("discarded", discarded.get());
+		statistics.put("pooled", pooled);
+		statistics.put("capacity", capacity);
+		statistics.put("bufferSize", bufferSize);
+		statistics.put("direct", direct);
+		return statistics;
+	}
+
+	private int getStripeIndex() {
+		return (int) (Thread.currentThread().getId() % stripes.length);
+	}
+}
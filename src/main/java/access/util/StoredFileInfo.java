@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.util;
+
+/**
+ * Describes a stored file without reading its contents: the length in bytes, a strong entity tag and the last
+ * modification time. Used to answer Range and conditional requests for file downloads.
+ */
+public class StoredFileInfo {
+	private long length;
+	private String eTag;
+	private long lastModified;
+
+	/**
+	 * @param length
+	 *            The size of the file in bytes
+	 * @param eTag
+	 *            The quoted, strong entity tag of the file
+	 * @param lastModified
+	 *            The last modification time of the file, in epoch milliseconds. -1 if not known.
+	 */
+	public StoredFileInfo(long length, String eTag, long lastModified) {
+		this.length = length;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+}
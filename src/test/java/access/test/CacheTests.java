@@ -0,0 +1,381 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import access.cache.CachedContent;
+import access.cache.ContentCache;
+import access.cache.DiskCache;
+import access.cache.TileCache;
+import access.cache.TransformCache;
+import access.util.AccessUtilities;
+import access.util.BufferPool;
+import access.util.StoredFileInfo;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+
+/**
+ * Tests the local disk cache used for file content, and the coalescing of fetches into it.
+ */
+public class CacheTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Tests hits, misses and attributes of cached entries
+	 */
+	@Test
+	public void testGetAndCommit() throws Exception {
+		DiskCache cache = new DiskCache(folder.getRoot(), 100);
+
+		// Miss
+		assertTrue(cache.get("123456", "s3://bucket/file.tif") == null);
+
+		// Fill and hit
+		DiskCache.Fill fill = cache.begin("123456", "s3://bucket/file.tif");
+		fill.getOutputStream().write(new byte[10]);
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("eTag", "\"abc\"");
+		fill.commit(attributes);
+		DiskCache.Entry entry = cache.get("123456", "s3://bucket/file.tif");
+		assertTrue(entry != null);
+		assertTrue(entry.getLength() == 10);
+		assertTrue(entry.getAttribute("eTag").equals("\"abc\""));
+
+		// Aborted fills are never visible
+		fill = cache.begin("654321", "s3://bucket/other.tif");
+		fill.getOutputStream().write(new byte[10]);
+		fill.abort();
+		assertTrue(cache.get("654321", "s3://bucket/other.tif") == null);
+		assertTrue(folder.getRoot().listFiles().length == 2);
+
+		// Verify counters
+		Map<String, Object> statistics = cache.getStatistics();
+		assertTrue(statistics.get("hits").equals(1L));
+		assertTrue(statistics.get("misses").equals(2L));
+	}
+
+	/**
+	 * Tests least-recently-used eviction once the budget is exceeded
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		DiskCache cache = new DiskCache(folder.getRoot(), 25);
+		for (String key : new String[] { "a", "b" }) {
+			DiskCache.Fill fill = cache.begin("123456", key);
+			fill.getOutputStream().write(new byte[10]);
+			fill.commit(null);
+		}
+		// Use "a", so that "b" is the least recently used entry
+		assertTrue(cache.get("123456", "a") != null);
+		DiskCache.Fill fill = cache.begin("123456", "c");
+		fill.getOutputStream().write(new byte[10]);
+		fill.commit(null);
+
+		assertTrue(cache.get("123456", "b") == null);
+		assertTrue(cache.get("123456", "a") != null);
+		assertTrue(cache.get("123456", "c") != null);
+		assertTrue(cache.getStatistics().get("evictions").equals(1L));
+		assertTrue(!cache.accepts(26));
+	}
+
+	/**
+	 * Tests least-recently-used eviction of vector tiles
+	 */
+	@Test
+	public void testTileCache() {
+		TileCache cache = new TileCache(25);
+		cache.put("123456", 1, 0, 0, new byte[10]);
+		cache.put("123456", 1, 0, 1, new byte[10]);
+		// Use the first tile, so that the second is the least recently used
+		assertTrue(cache.get("123456", 1, 0, 0) != null);
+		cache.put("123456", 1, 1, 0, new byte[10]);
+		// Too large to cache
+		cache.put("123456", 1, 1, 1, new byte[26]);
+
+		assertTrue(cache.get("123456", 1, 0, 1) == null);
+		assertTrue(cache.get("123456", 1, 0, 0) != null);
+		assertTrue(cache.get("123456", 1, 1, 0) != null);
+		assertTrue(cache.get("123456", 1, 1, 1) == null);
+		assertTrue(cache.getStatistics().get("evictions").equals(1L));
+		assertTrue(cache.getStatistics().get("bytes").equals(20L));
+
+		// Removing a Data Id drops only its tiles
+		cache.put("1234567", 1, 0, 0, new byte[5]);
+		cache.remove("123456");
+		assertTrue(cache.get("123456", 1, 0, 0) == null);
+		assertTrue(cache.get("1234567", 1, 0, 0) != null);
+		assertTrue(cache.getStatistics().get("bytes").equals(5L));
+	}
+
+	/**
+	 * Tests that coordinate reference systems and transforms are decoded once
+	 */
+	@Test
+	public void testTransformCache() {
+		TransformCache cache = new TransformCache();
+		CoordinateReferenceSystem wgs84 = cache.getCrs("EPSG:4326");
+		CoordinateReferenceSystem mercator = cache.getCrs("3857");
+		assertTrue(cache.getCrs("epsg:3857") == mercator);
+		MathTransform transform = cache.getTransform(wgs84, mercator);
+		assertTrue(cache.getTransform(wgs84, mercator) == transform);
+		assertTrue(cache.getStatistics().get("hits").equals(2L));
+		assertTrue(cache.getStatistics().get("misses").equals(3L));
+
+		try {
+			cache.getCrs("EPSG:999999");
+			assertTrue(false);
+		} catch (IllegalArgumentException exception) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests that entries survive a restart, and can be removed by group
+	 */
+	@Test
+	public void testReloadAndRemoveGroup() throws Exception {
+		DiskCache cache = new DiskCache(folder.getRoot(), 100);
+		DiskCache.Fill fill = cache.begin("123456", "a");
+		fill.getOutputStream().write(new byte[10]);
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("eTag", "\"abc\"");
+		fill.commit(attributes);
+		fill = cache.begin("654321", "a");
+		fill.getOutputStream().write(new byte[10]);
+		fill.commit(null);
+		// Leave behind an interrupted write
+		cache.begin("123456", "b").getOutputStream().write(new byte[10]);
+
+		// Restart
+		cache = new DiskCache(folder.getRoot(), 100);
+		DiskCache.Entry entry = cache.get("123456", "a");
+		assertTrue(entry != null);
+		assertTrue(entry.getAttribute("eTag").equals("\"abc\""));
+		assertTrue(cache.getStatistics().get("bytes").equals(20L));
+
+		// Remove a group
+		cache.removeGroup("123456");
+		assertTrue(cache.get("123456", "a") == null);
+		assertTrue(cache.get("654321", "a") != null);
+		File[] files = folder.getRoot().listFiles();
+		assertTrue(files.length == 1);
+	}
+
+	/**
+	 * Tests that concurrent fetches of the same file are coalesced, and that the result or error of the fetch in flight
+	 * is passed to every waiting caller
+	 */
+	@Test
+	public void testCoalescedFetch() throws Exception {
+		final ContentCache contentCache = new ContentCache();
+		ReflectionTestUtils.setField(contentCache, "CACHE_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(contentCache, "CACHE_MAX_BYTES", 100L);
+		ReflectionTestUtils.setField(contentCache, "FLIGHT_WAIT_SECONDS", 60L);
+		ReflectionTestUtils.invokeMethod(contentCache, "initialize");
+		final FileLocation location = new S3FileStore("bucket", "file.tif", 10L, "domain");
+		StoredFileInfo fileInfo = new StoredFileInfo(10, "\"abc\"", 0);
+
+		// Only one caller may fetch at a time
+		ContentCache.Flight flight = contentCache.lead("123456", location);
+		assertTrue(flight != null);
+		assertTrue(contentCache.lead("123456", location) == null);
+
+		// A waiting caller receives the fetched file
+		final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+		Thread follower = startFollower(contentCache, location, results);
+		contentCache.fill(flight, fileInfo, new ByteArrayInputStream(new byte[10]), null);
+		follower.join();
+		assertTrue(results.get(0) instanceof CachedContent);
+		assertTrue(((CachedContent) results.get(0)).getFile().length() == 10);
+		assertTrue(contentCache.get("123456", location) != null);
+		assertTrue(contentCache.getStatistics().get("coalesced").equals(1L));
+		assertTrue(contentCache.getStatistics().get("inFlight").equals(0));
+
+		// A waiting caller receives the error of a failed fetch
+		results.clear();
+		FileLocation otherLocation = new S3FileStore("bucket", "other.tif", 10L, "domain");
+		flight = contentCache.lead("123456", otherLocation);
+		follower = startFollower(contentCache, otherLocation, results);
+		try {
+			contentCache.fill(flight, fileInfo, new ByteArrayInputStream(new byte[5]), null);
+			assertTrue(false);
+		} catch (IOException exception) {
+			// Expected; the file is shorter than described
+		}
+		follower.join();
+		assertTrue(results.get(0) instanceof IOException);
+		assertTrue(contentCache.get("123456", otherLocation) == null);
+		flight = contentCache.lead("123456", otherLocation);
+		assertTrue(flight != null);
+
+		// A waiting caller fetches the file itself if the leading request goes away
+		results.clear();
+		follower = startFollower(contentCache, otherLocation, results);
+		flight.abandon();
+		follower.join();
+		assertTrue(results.get(0) == null);
+
+		// A waiting caller gives up once the wait limit passes
+		ReflectionTestUtils.setField(contentCache, "FLIGHT_WAIT_SECONDS", 0L);
+		assertTrue(contentCache.lead("123456", otherLocation) != null);
+		assertTrue(contentCache.await("123456", otherLocation) == null);
+	}
+
+	/**
+	 * Tests following a fetch in flight, reading the file as it is written to the cache
+	 */
+	@Test
+	public void testFollowedFetch() throws Exception {
+		final ContentCache contentCache = new ContentCache();
+		ReflectionTestUtils.setField(contentCache, "CACHE_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(contentCache, "CACHE_MAX_BYTES", 100L);
+		ReflectionTestUtils.setField(contentCache, "FLIGHT_WAIT_SECONDS", 60L);
+		ReflectionTestUtils.invokeMethod(contentCache, "initialize");
+		final FileLocation location = new S3FileStore("bucket", "file.tif", 10L, "domain");
+		final StoredFileInfo fileInfo = new StoredFileInfo(10, "\"abc\"", 0);
+
+		// Nothing to follow
+		assertTrue(contentCache.follow("123456", location) == null);
+
+		// The follower reads the whole file as it is fetched
+		final ContentCache.Flight flight = contentCache.lead("123456", location);
+		InputStream flightStream = contentCache.follow("123456", location);
+		Thread leader = new Thread(() -> {
+			try {
+				contentCache.fill(flight, fileInfo, new ByteArrayInputStream("Test Data!".getBytes()), null);
+			} catch (IOException exception) {
+				exception.printStackTrace();
+			}
+		});
+		leader.start();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		assertTrue(AccessUtilities.copyStream(flightStream, outputStream) == 10);
+		flightStream.close();
+		leader.join();
+		assertTrue("Test Data!".equals(outputStream.toString()));
+
+		// An abandoned fetch ends the stream early, without an error, so the follower can fetch the rest itself
+		FileLocation otherLocation = new S3FileStore("bucket", "other.tif", 10L, "domain");
+		ContentCache.Flight otherFlight = contentCache.lead("123456", otherLocation);
+		flightStream = contentCache.follow("123456", otherLocation);
+		otherFlight.abandon();
+		assertTrue(flightStream.read() == -1);
+		flightStream.close();
+
+		// A failure reading the file is passed on
+		otherFlight = contentCache.lead("123456", otherLocation);
+		flightStream = contentCache.follow("123456", otherLocation);
+		otherFlight.fail(new IOException("Upstream failure"));
+		try {
+			flightStream.read();
+			assertTrue(false);
+		} catch (IOException exception) {
+			assertTrue(exception.getMessage().equals("Upstream failure"));
+		} finally {
+			flightStream.close();
+		}
+	}
+
+	/**
+	 * Tests the reuse of pooled copy buffers, and the bound on the pool
+	 */
+	@Test
+	public void testBufferPool() throws Exception {
+		BufferPool pool = new BufferPool(1024, 2, true);
+		ByteBuffer first = pool.acquire();
+		ByteBuffer second = pool.acquire();
+		ByteBuffer third = pool.acquire();
+		assertTrue(first.isDirect() && (first.capacity() == 1024));
+		assertTrue(((Long) pool.getStatistics().get("misses")) == 3);
+
+		// Only the capacity is kept
+		first.put((byte) 1);
+		pool.release(first);
+		pool.release(second);
+		pool.release(third);
+		assertTrue(((Long) pool.getStatistics().get("pooled")) == 2);
+		assertTrue(((Long) pool.getStatistics().get("discarded")) == 1);
+
+		// Buffers are reused, cleared
+		ByteBuffer reused = pool.acquire();
+		assertTrue((reused == first) || (reused == second));
+		assertTrue(reused.position() == 0);
+		assertTrue(((Long) pool.getStatistics().get("misses")) == 3);
+
+		// Copies through the pool
+		File file = folder.newFile("file.tif");
+		Files.write(file.toPath(), "Test Data".getBytes());
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (InputStream inputStream = new FileInputStream(file)) {
+			assertTrue(AccessUtilities.copyStream(inputStream, outputStream) == 9);
+		}
+		assertTrue("Test Data".equals(outputStream.toString()));
+		CRC32 crc = new CRC32();
+		crc.update("Test Data".getBytes());
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			assertTrue(AccessUtilities.getChecksum(fileChannel) == crc.getValue());
+			assertTrue(fileChannel.position() == 0);
+		}
+	}
+
+	/**
+	 * Starts a thread that waits for the fetch in flight, and returns once it is waiting.
+	 */
+	private Thread startFollower(final ContentCache contentCache, final FileLocation location, final List<Object> results)
+			throws InterruptedException {
+		Thread follower = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results.add(contentCache.await("123456", location));
+				} catch (IOException exception) {
+					results.add(exception);
+				}
+			}
+		};
+		follower.start();
+		while (follower.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(10);
+		}
+		return follower;
+	}
+}
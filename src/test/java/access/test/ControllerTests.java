@@ -1,43 +1,85 @@
 package access.test;
 
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.IOUtils;
+import org.geotools.data.DataStore;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
 import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.joda.time.DateTime;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
+import access.bulk.BulkDownloader;
+import access.cache.ContentCache;
+import access.cache.ExportCache;
+import access.cache.TransformCache;
 import access.controller.AccessController;
+import access.controller.CompressionFilter;
 import access.database.Accessor;
 import access.deploy.Deployer;
+import access.deploy.GeoServerClient;
 import access.deploy.Leaser;
+import access.export.ExportOptions;
+import access.export.FeatureWriter;
+import access.export.ParallelExporter;
 import access.messaging.AccessThreadManager;
+import access.tile.TileGenerator;
+import access.util.AccessUtilities;
 import model.data.DataResource;
 import model.data.deployment.Deployment;
+import model.data.deployment.Lease;
+import model.data.location.FileLocation;
 import model.data.location.FolderShare;
+import model.data.location.S3FileStore;
 import model.data.type.GeoJsonDataType;
 import model.data.type.PostGISDataType;
 import model.data.type.RasterDataType;
@@ -69,6 +111,24 @@ public class ControllerTests {
 	private Leaser leaser;
 	@Mock
 	private ThreadPoolTaskExecutor threadPoolTaskExecutor;
+	@Spy
+	private AccessUtilities accessUtilities = new AccessUtilities();
+	@Mock
+	private ContentCache contentCache;
+	@Mock
+	private ParallelExporter parallelExporter;
+	@Mock
+	private TileGenerator tileGenerator;
+	@Spy
+	private TransformCache transformCache = new TransformCache();
+	@Spy
+	private ExportCache exportCache = new ExportCache();
+	@Spy
+	private BulkDownloader bulkDownloader = new BulkDownloader();
+	@Spy
+	private GeoServerClient geoServerClient = new GeoServerClient();
+	@Mock
+	private HttpServletRequest mockRequest;
 	@InjectMocks
 	private AccessController accessController;
 
@@ -77,9 +137,24 @@ public class ControllerTests {
 	/**
 	 * Initialize Mock objects.
 	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Before
 	public void setup() throws Exception {
+		// The Export Cache is disabled, unless a test enables it
+		ReflectionTestUtils.setField(exportCache, "CACHE_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(exportCache, "CACHE_MAX_BYTES", 0L);
+		ReflectionTestUtils.invokeMethod(exportCache, "initialize");
+		ReflectionTestUtils.setField(bulkDownloader, "THREADS", 2);
+		ReflectionTestUtils.setField(bulkDownloader, "PREFETCH_WINDOW", 2);
+		ReflectionTestUtils.setField(bulkDownloader, "PREFETCH_BUFFERS", 2);
+		ReflectionTestUtils.setField(bulkDownloader, "MAX_ITEMS", 10);
+		ReflectionTestUtils.invokeMethod(bulkDownloader, "initialize");
 		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(bulkDownloader, "accessor", accessor);
+		ReflectionTestUtils.setField(bulkDownloader, "accessUtilities", accessUtilities);
+		ReflectionTestUtils.setField(bulkDownloader, "contentCache", contentCache);
 
 		// Creating a Mock in-memory Data Store
 		mockDataStore = new MemoryDataStore();
@@ -117,7 +192,7 @@ public class ControllerTests {
 		when(accessor.getData(eq("123456"))).thenReturn(null);
 
 		// Test
-		accessController.accessFile("123456", "file.file");
+		accessController.accessFile("123456", "file.file", new ExportOptions(), mockRequest);
 	}
 
 	/**
@@ -131,7 +206,7 @@ public class ControllerTests {
 		mockData.dataType = new TextDataType();
 		((TextDataType) mockData.dataType).content = "This is a test";
 		when(accessor.getData(eq("123456"))).thenReturn(mockData);
-		ResponseEntity<?> response = accessController.accessFile("123456", "file.txt");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file.txt", new ExportOptions(), mockRequest);
 
 		// Verify
 		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
@@ -142,17 +217,20 @@ public class ControllerTests {
 		((PostGISDataType) mockData.dataType).database = "localhost";
 		((PostGISDataType) mockData.dataType).table = "Test";
 		when(accessor.getData(eq("123456"))).thenReturn(mockData);
-		when(accessor.getPostGisDataStore(anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
-				.thenReturn(mockDataStore);
-		response = accessController.accessFile("123456", "file.geojson");
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+		response = accessController.accessFile("123456", "file.geojson", new ExportOptions(), mockRequest);
 
 		// Verify
 		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
-		assertTrue(((byte[]) (response.getBody())).length > 0);
-		// Check that the points exist in the response.
-		String geoJson = new String((byte[]) response.getBody());
+		ByteArrayOutputStream geoJsonStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(geoJsonStream);
+		// Check that the points exist in a valid FeatureCollection.
+		String geoJson = new String(geoJsonStream.toByteArray(), "UTF-8");
+		assertTrue(geoJson.startsWith("{\"type\":\"FeatureCollection\",\"features\":[{"));
+		assertTrue(geoJson.endsWith("}]}"));
 		assertTrue(geoJson.contains("[5,5]"));
 		assertTrue(geoJson.contains("[0.0,0.0]"));
+		assertTrue(geoJson.contains("},{"));
 
 		// Mock File
 		mockData.dataType = new RasterDataType();
@@ -160,11 +238,581 @@ public class ControllerTests {
 		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
 		((RasterDataType) mockData.dataType).location = location;
 		when(accessor.getData(eq("123456"))).thenReturn(mockData);
-		response = accessController.accessFile("123456", "file.tif");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+
+		// Verify
+		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(outputStream);
+		assertTrue(outputStream.size() == 90074);
+	}
+
+	/**
+	 * Tests downloading many Data Items in one archive
+	 */
+	@Test
+	public void testDownloadBulk() throws Exception {
+		// Mock Text, a local File, an S3 File, and Vector (Database)
+		DataResource textData = new DataResource();
+		textData.setDataId("1");
+		textData.dataType = new TextDataType();
+		((TextDataType) textData.dataType).content = "This is a test";
+		DataResource localData = new DataResource();
+		localData.setDataId("2");
+		localData.dataType = new RasterDataType();
+		FolderShare location = new FolderShare();
+		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
+		((RasterDataType) localData.dataType).location = location;
+		DataResource s3Data = new DataResource();
+		s3Data.setDataId("3");
+		s3Data.dataType = new RasterDataType();
+		((RasterDataType) s3Data.dataType).location = new S3FileStore("bucket", "file.txt", 200000L, "domain");
+		byte[] s3Bytes = new byte[200000];
+		Arrays.fill(s3Bytes, (byte) 'a');
+		Mockito.doReturn(new ByteArrayInputStream(s3Bytes)).when(accessUtilities).getFileStream(any(FileLocation.class));
+		DataResource vectorData = new DataResource();
+		vectorData.setDataId("4");
+		vectorData.dataType = new PostGISDataType();
+		((PostGISDataType) vectorData.dataType).database = "localhost";
+		((PostGISDataType) vectorData.dataType).table = "Test";
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+		when(accessor.getData(Mockito.anyListOf(String.class))).thenReturn(Arrays.asList(vectorData, s3Data, localData, textData));
+
+		// Test
+		ResponseEntity<?> response = accessController.accessFiles(Arrays.asList("1", "2", "3", "4", "1"));
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/zip"));
+		ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(getBody(response)));
+
+		// Verify the entries, in the requested order
+		ZipEntry entry = zipStream.getNextEntry();
+		assertTrue(entry.getName().equals("1.txt"));
+		assertTrue(new String(IOUtils.toByteArray(zipStream), "UTF-8").equals("This is a test"));
+		entry = zipStream.getNextEntry();
+		assertTrue(entry.getName().equals("2.tif"));
+		assertTrue(entry.getMethod() == ZipEntry.STORED);
+		assertTrue(IOUtils.toByteArray(zipStream).length == 90074);
+		entry = zipStream.getNextEntry();
+		assertTrue(entry.getName().equals("3.txt"));
+		assertTrue(entry.getMethod() == ZipEntry.DEFLATED);
+		assertTrue(Arrays.equals(IOUtils.toByteArray(zipStream), s3Bytes));
+		entry = zipStream.getNextEntry();
+		assertTrue(entry.getName().equals("4.geojson"));
+		assertTrue(new String(IOUtils.toByteArray(zipStream), "UTF-8").contains("[5,5]"));
+		assertTrue(zipStream.getNextEntry() == null);
+
+		// Test an archive written while other archives hold every prefetch window fetches its files itself
+		Semaphore prefetchPermits = (Semaphore) ReflectionTestUtils.getField(bulkDownloader, "prefetchPermits");
+		int permits = prefetchPermits.drainPermits();
+		Mockito.doReturn(new ByteArrayInputStream(s3Bytes)).when(accessUtilities).getFileStream(any(FileLocation.class));
+		response = accessController.accessFiles(Arrays.asList("3", "2"));
+		zipStream = new ZipInputStream(new ByteArrayInputStream(getBody(response)));
+		assertTrue(zipStream.getNextEntry().getName().equals("3.txt"));
+		assertTrue(Arrays.equals(IOUtils.toByteArray(zipStream), s3Bytes));
+		assertTrue(zipStream.getNextEntry().getName().equals("2.tif"));
+		assertTrue(IOUtils.toByteArray(zipStream).length == 90074);
+		assertTrue(((Long) bulkDownloader.getStatistics().get("prefetched")) == 1);
+		prefetchPermits.release(permits);
+
+		// Test missing and invalid requests
+		response = accessController.accessFiles(Arrays.asList("1", "5"));
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_FOUND));
+		response = accessController.accessFiles(new ArrayList<String>());
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Tests passing the export options of a PostGIS download to the data store
+	 */
+	@Test
+	public void testDownloadFilteredGeoJSON() throws Exception {
+		// Mock Vector (Database)
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new PostGISDataType();
+		((PostGISDataType) mockData.dataType).database = "localhost";
+		((PostGISDataType) mockData.dataType).table = "Test";
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+
+		// Test a bounding box
+		ExportOptions exportOptions = new ExportOptions();
+		exportOptions.setBbox("4,4,6,6");
+		String geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		assertTrue(geoJson.contains("[5,5]"));
+		assertTrue(!geoJson.contains("[0.0,0.0]"));
+
+		// Test a filter, with a property projection
+		exportOptions = new ExportOptions();
+		exportOptions.setFilter("INTERSECTS(the_geom, POINT(0 0))");
+		exportOptions.setProperties("the_geom");
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		assertTrue(!geoJson.contains("[5,5]"));
+		assertTrue(geoJson.contains("[0.0,0.0]"));
+
+		// Test paging
+		exportOptions = new ExportOptions();
+		exportOptions.setMaxFeatures(1);
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		assertTrue(!geoJson.contains("},{"));
+
+		// Test newline-delimited output
+		exportOptions = new ExportOptions();
+		exportOptions.setFormat("ndjson");
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		String[] lines = geoJson.split("\n");
+		assertTrue(lines.length == 2);
+		assertTrue(lines[0].startsWith("{\"type\":\"Feature\""));
+		assertTrue(geoJson.endsWith("}\n"));
+
+		// Test GeoJSON Text Sequences
+		exportOptions = new ExportOptions();
+		exportOptions.setFormat("geojsonseq");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/geo+json-seq"));
+		geoJson = getGeoJSON(response);
+		assertTrue(geoJson.startsWith("\u001E{\"type\":\"Feature\""));
+		assertTrue(geoJson.split("\u001E").length == 3);
+
+		// Test rounding and simplification
+		exportOptions = new ExportOptions();
+		exportOptions.setPrecision(0);
+		exportOptions.setSimplify(1.0);
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		assertTrue(geoJson.contains("[5,5]"));
+
+		// Test reprojection
+		exportOptions = new ExportOptions();
+		exportOptions.setCrs("EPSG:3857");
+		exportOptions.setPrecision(0);
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest));
+		assertTrue(geoJson.contains("556597"));
+		assertTrue(geoJson.contains("557305"));
+
+		// Test invalid options
+		exportOptions = new ExportOptions();
+		exportOptions.setFormat("unknown");
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setFilter("this is not a filter");
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setProperties("missing");
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setBbox("4,4,6");
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setPrecision(16);
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setSimplify(-1.0);
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		exportOptions = new ExportOptions();
+		exportOptions.setCrs("EPSG:999999");
+		response = accessController.accessFile("123456", "file.geojson", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Tests exporting vector data in the FlatGeobuf and GeoPackage formats
+	 */
+	@Test
+	public void testDownloadBinaryFormats() throws Exception {
+		// Mock Vector (Database)
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new PostGISDataType();
+		((PostGISDataType) mockData.dataType).database = "localhost";
+		((PostGISDataType) mockData.dataType).table = "Test";
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+
+		// Test streamed FlatGeobuf
+		ExportOptions exportOptions = new ExportOptions();
+		exportOptions.setFormat("flatgeobuf");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/flatgeobuf"));
+		assertTrue(response.getHeaders().getFirst("Content-Disposition").endsWith("file.fgb"));
+		byte[] flatGeobuf = getBody(response);
+		assertTrue(isPrefixed(flatGeobuf, new byte[] { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 }));
+
+		// Test FlatGeobuf with an index; larger by the header envelope and the three nodes of the tree
+		exportOptions.setIndex(true);
+		byte[] indexedFlatGeobuf = getBody(accessController.accessFile("123456", "file", exportOptions, mockRequest));
+		assertTrue(isPrefixed(indexedFlatGeobuf, new byte[] { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 }));
+		assertTrue(indexedFlatGeobuf.length > flatGeobuf.length + 3 * 40);
+
+		// Test GeoPackage
+		exportOptions = new ExportOptions();
+		exportOptions.setFormat("gpkg");
+		response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/geopackage+sqlite3"));
+		assertTrue(isPrefixed(getBody(response), "SQLite format 3".getBytes("UTF-8")));
+
+		// Test a GeoJSON file resource, exported from the table it was loaded into
+		mockData.dataType = new GeoJsonDataType();
+		((GeoJsonDataType) mockData.dataType).databaseTableName = "Test";
+		exportOptions = new ExportOptions();
+		exportOptions.setFormat("ndjson");
+		String geoJson = getGeoJSON(accessController.accessFile("123456", "file", exportOptions, mockRequest));
+		assertTrue(geoJson.contains("[5,5]"));
+	}
+
+	/**
+	 * Tests joining the fragments of an export written in parallel partitions
+	 */
+	@Test
+	public void testDownloadPartitioned() throws Exception {
+		// Mock Vector (Database)
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new PostGISDataType();
+		((PostGISDataType) mockData.dataType).database = "localhost";
+		((PostGISDataType) mockData.dataType).table = "Test";
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+
+		// Write each feature in its own fragment, with an empty fragment between them
+		when(parallelExporter.write(any(DataStore.class), eq("Test"), any(Query.class), any(FeatureWriter.class), anyBoolean()))
+				.thenAnswer(invocation -> {
+					FeatureWriter featureWriter = (FeatureWriter) invocation.getArguments()[3];
+					List<byte[]> fragments = new ArrayList<byte[]>();
+					SimpleFeatureIterator iterator = mockDataStore.getFeatureSource("Test").getFeatures().features();
+					try {
+						while (iterator.hasNext()) {
+							ByteArrayOutputStream fragmentStream = new ByteArrayOutputStream();
+							FeatureWriter fragmentWriter = featureWriter.createFragmentWriter(fragmentStream);
+							fragmentWriter.writeFeature(iterator.next());
+							fragmentWriter.writeEnd();
+							fragments.add(fragmentStream.toByteArray());
+						}
+					} finally {
+						iterator.close();
+					}
+					featureWriter.writeFragment(new ByteArrayInputStream(fragments.get(0)));
+					featureWriter.writeFragment(new ByteArrayInputStream(new byte[0]));
+					featureWriter.writeFragment(new ByteArrayInputStream(fragments.get(1)));
+					return true;
+				});
+
+		// Test a FeatureCollection
+		String geoJson = getGeoJSON(accessController.accessFile("123456", "file", new ExportOptions(), mockRequest));
+		assertTrue(geoJson.startsWith("{\"type\":\"FeatureCollection\",\"features\":[{"));
+		assertTrue(geoJson.endsWith("}]}"));
+		assertTrue(geoJson.split("\\},\\{\"type\":\"Feature\"").length == 2);
+		assertTrue(geoJson.contains("[5,5]"));
+		assertTrue(geoJson.contains("[0.0,0.0]"));
+
+		// Test newline-delimited output
+		ExportOptions exportOptions = new ExportOptions();
+		exportOptions.setFormat("ndjson");
+		exportOptions.setOrdered(false);
+		geoJson = getGeoJSON(accessController.accessFile("123456", "file", exportOptions, mockRequest));
+		assertTrue(geoJson.split("\n").length == 2);
+	}
+
+	/**
+	 * Tests serving a repeated export from the Export Cache
+	 */
+	@Test
+	public void testDownloadCachedExport() throws Exception {
+		// Mock Vector (Database)
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new PostGISDataType();
+		((PostGISDataType) mockData.dataType).database = "localhost";
+		((PostGISDataType) mockData.dataType).table = "Test";
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+		ReflectionTestUtils.setField(exportCache, "CACHE_MAX_BYTES", 1000000L);
+		ReflectionTestUtils.invokeMethod(exportCache, "initialize");
+
+		// Test the first export is streamed from the database
+		ExportOptions exportOptions = new ExportOptions();
+		exportOptions.setFormat("ndjson");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getHeaders().getETag() == null);
+		byte[] export = getBody(response);
+
+		// Test the repeated export is sent from the cache, without handing the cache file to sendfile
+		ReflectionTestUtils.setField(accessController, "SENDFILE_ENABLED", true);
+		when(mockRequest.getAttribute(eq("org.apache.tomcat.sendfile.support"))).thenReturn(Boolean.TRUE);
+		response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		String eTag = response.getHeaders().getETag();
+		assertTrue(eTag != null);
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/x-ndjson"));
+		assertTrue(response.getHeaders().getContentLength() == export.length);
+		assertTrue(Arrays.equals(getBody(response), export));
+		Mockito.verify(accessor, Mockito.times(1)).getPostGisDataStore();
+		Mockito.verify(mockRequest, Mockito.never()).setAttribute(eq("org.apache.tomcat.sendfile.filename"), anyString());
+
+		// Test other options are not served from the cache
+		exportOptions.setMaxFeatures(1);
+		response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getHeaders().getETag() == null);
+
+		// Test a conditional request
+		exportOptions.setMaxFeatures(null);
+		when(mockRequest.getHeader("If-None-Match")).thenReturn(eTag);
+		response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+
+		// Test the cached exports are dropped once the Data is deleted
+		when(accessor.getData(eq("123456"))).thenReturn(null);
+		response = accessController.accessFile("123456", "file", exportOptions, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_FOUND));
+		assertTrue(exportCache.get("123456", exportOptions.getCacheKey()) == null);
+	}
+
+	/**
+	 * Tests fetching a vector tile
+	 */
+	@Test
+	public void testGetTile() throws Exception {
+		// Mock Vector (Database)
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new PostGISDataType();
+		((PostGISDataType) mockData.dataType).database = "localhost";
+		((PostGISDataType) mockData.dataType).table = "Test";
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		when(accessor.getPostGisDataStore()).thenReturn(mockDataStore);
+		byte[] mockTile = new byte[] { 0x1a, 0x02, 0x78, 0x02 };
+		when(tileGenerator.isValidTile(anyInt(), anyInt(), anyInt())).thenReturn(true);
+		when(tileGenerator.getTile(any(DataStore.class), eq("123456"), eq("Test"), eq(3), eq(2), eq(1))).thenReturn(mockTile);
+
+		// Test
+		ResponseEntity<?> response = accessController.getTile("123456", 3, 2, 1, mockRequest);
 
 		// Verify
 		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
-		assertTrue(((byte[]) (response.getBody())).length == 90074);
+		assertTrue(response.getHeaders().getContentType().toString().equals("application/vnd.mapbox-vector-tile"));
+		assertTrue(Arrays.equals((byte[]) response.getBody(), mockTile));
+
+		// Test a conditional request for the same tile
+		when(mockRequest.getHeader("If-None-Match")).thenReturn(response.getHeaders().getETag());
+		response = accessController.getTile("123456", 3, 2, 1, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+		when(mockRequest.getHeader("If-None-Match")).thenReturn(null);
+
+		// Test Data that is not in PostGIS
+		mockData.dataType = new TextDataType();
+		response = accessController.getTile("123456", 3, 2, 1, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+
+		// Test missing Data
+		response = accessController.getTile("654321", 3, 2, 1, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_FOUND));
+
+		// Test a tile outside the tiling scheme
+		when(tileGenerator.isValidTile(anyInt(), anyInt(), anyInt())).thenReturn(false);
+		response = accessController.getTile("123456", 1, 2, 0, mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Writes the body of a GeoJSON download to a String.
+	 */
+	private String getGeoJSON(ResponseEntity<?> response) throws Exception {
+		return new String(getBody(response), "UTF-8");
+	}
+
+	/**
+	 * Writes the body of a streamed download to a byte array.
+	 */
+	private byte[] getBody(ResponseEntity<?> response) throws Exception {
+		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(outputStream);
+		return outputStream.toByteArray();
+	}
+
+	private boolean isPrefixed(byte[] bytes, byte[] prefix) {
+		return (bytes.length >= prefix.length) && Arrays.equals(Arrays.copyOf(bytes, prefix.length), prefix);
+	}
+
+	/**
+	 * Tests downloading byte ranges of a file
+	 */
+	@Test
+	public void testDownloadFileRange() throws Exception {
+		// Mock File
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new RasterDataType();
+		FolderShare location = new FolderShare();
+		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
+		((RasterDataType) mockData.dataType).location = location;
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+
+		// Test a single range
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=0-99");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.PARTIAL_CONTENT));
+		assertTrue(response.getHeaders().getFirst("Content-Range").equals("bytes 0-99/90074"));
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(outputStream);
+		assertTrue(outputStream.size() == 100);
+
+		// Test a suffix range
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=-74");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getHeaders().getFirst("Content-Range").equals("bytes 90000-90073/90074"));
+
+		// Test multiple ranges
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=0-9,100-109");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.PARTIAL_CONTENT));
+		assertTrue(response.getHeaders().getContentType().toString().startsWith("multipart/byteranges"));
+		outputStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(outputStream);
+		assertTrue(outputStream.size() == response.getHeaders().getContentLength());
+
+		// Multiple ranges of a file removed after the response is built, as by cache eviction, are still served whole
+		File copy = folder.newFile("elevation.tif");
+		Files.copy(new File(location.filePath).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		location.filePath = copy.getAbsolutePath();
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(copy.delete());
+		outputStream = new ByteArrayOutputStream();
+		((StreamingResponseBody) response.getBody()).writeTo(outputStream);
+		assertTrue(outputStream.size() == response.getHeaders().getContentLength());
+		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
+
+		// Test an unsatisfiable range
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=100000-");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE));
+
+		// Test a stale If-Range; the whole file is returned
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=0-99");
+		when(mockRequest.getHeader(eq("If-Range"))).thenReturn("\"stale\"");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
+		assertTrue(response.getHeaders().getContentLength() == 90074);
+	}
+
+	/**
+	 * Tests handing local files to the servlet container for sendfile
+	 */
+	@Test
+	public void testDownloadFileSendfile() throws Exception {
+		// Mock File
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new RasterDataType();
+		FolderShare location = new FolderShare();
+		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
+		((RasterDataType) mockData.dataType).location = location;
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+		ReflectionTestUtils.setField(accessController, "SENDFILE_ENABLED", true);
+		when(mockRequest.getAttribute(eq("org.apache.tomcat.sendfile.support"))).thenReturn(Boolean.TRUE);
+
+		// Test
+		when(mockRequest.getHeader(eq("Range"))).thenReturn("bytes=100-199");
+		ResponseEntity<?> response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+
+		// Verify the container is given the region of the file, and no body is written
+		assertTrue(response.getStatusCode().equals(HttpStatus.PARTIAL_CONTENT));
+		assertTrue(response.getBody() == null);
+		assertTrue(response.getHeaders().getContentLength() == 100);
+		Mockito.verify(mockRequest).setAttribute(eq("org.apache.tomcat.sendfile.filename"), anyString());
+		Mockito.verify(mockRequest).setAttribute(eq("org.apache.tomcat.sendfile.start"), eq(Long.valueOf(100)));
+		Mockito.verify(mockRequest).setAttribute(eq("org.apache.tomcat.sendfile.end"), eq(Long.valueOf(200)));
+	}
+
+	/**
+	 * Tests conditional requests for files and metadata, which return 304 when the client's copy is current
+	 */
+	@Test
+	public void testConditionalGet() throws Exception {
+		// Mock File
+		DataResource mockData = new DataResource();
+		mockData.setDataId("123456");
+		mockData.dataType = new RasterDataType();
+		FolderShare location = new FolderShare();
+		location.filePath = "src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif";
+		((RasterDataType) mockData.dataType).location = location;
+		when(accessor.getData(eq("123456"))).thenReturn(mockData);
+
+		// Test a current ETag
+		ResponseEntity<?> response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		String eTag = response.getHeaders().getETag();
+		assertTrue(eTag != null);
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(eTag);
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+		assertTrue(response.getBody() == null);
+		assertTrue(response.getHeaders().getETag().equals(eTag));
+
+		// Test a stale ETag
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn("\"stale\"");
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
+
+		// Test If-Modified-Since
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(null);
+		when(mockRequest.getHeader(eq("If-Modified-Since"))).thenReturn("date");
+		when(mockRequest.getDateHeader(eq("If-Modified-Since"))).thenReturn(new File(location.filePath).lastModified());
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+		when(mockRequest.getDateHeader(eq("If-Modified-Since"))).thenReturn(0L);
+		response = accessController.accessFile("123456", "file.tif", new ExportOptions(), mockRequest);
+		assertTrue(response.getStatusCode().equals(HttpStatus.OK));
+		when(mockRequest.getHeader(eq("If-Modified-Since"))).thenReturn(null);
+
+		// Test Data metadata
+		mockData.dataType = new GeoJsonDataType();
+		ResponseEntity<PiazzaResponse> metadataResponse = accessController.getData("123456", mockRequest);
+		eTag = metadataResponse.getHeaders().getETag();
+		assertTrue(eTag != null);
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(eTag);
+		metadataResponse = accessController.getData("123456", mockRequest);
+		assertTrue(metadataResponse.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+		assertTrue(metadataResponse.getBody() == null);
+
+		// Changing the Data changes the ETag
+		mockData.setDataId("654321");
+		when(accessor.getData(eq("654321"))).thenReturn(mockData);
+		metadataResponse = accessController.getData("654321", mockRequest);
+		assertTrue(metadataResponse.getStatusCode().equals(HttpStatus.OK));
+		assertTrue(!metadataResponse.getHeaders().getETag().equals(eTag));
+
+		// Test Deployment metadata
+		Deployment deployment = new Deployment();
+		deployment.setDeploymentId("123456");
+		when(accessor.getDeployment(eq("123456"))).thenReturn(deployment);
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(null);
+		metadataResponse = accessController.getDeployment("123456", mockRequest);
+		eTag = metadataResponse.getHeaders().getETag();
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(eTag);
+		metadataResponse = accessController.getDeployment("123456", mockRequest);
+		assertTrue(metadataResponse.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+
+		// The validators of a Deployment come from the times it and its Lease were saved
+		deployment.createdOn = new DateTime(1000000L);
+		Lease lease = new Lease("123456", "123456", new DateTime(5000000L).toString());
+		when(accessor.getDeploymentLease(eq(deployment))).thenReturn(lease);
+		when(accessor.getLeaseLastModified(eq("123456"))).thenReturn(2000000L);
+		when(mockRequest.getHeader(eq("If-None-Match"))).thenReturn(null);
+		metadataResponse = accessController.getDeployment("123456", mockRequest);
+		assertTrue(metadataResponse.getHeaders().getLastModified() == 2000000L);
+		assertTrue(metadataResponse.getHeaders().getETag().equals("\"123456-2000000\""));
+		when(mockRequest.getHeader(eq("If-Modified-Since"))).thenReturn("date");
+		when(mockRequest.getDateHeader(eq("If-Modified-Since"))).thenReturn(2000000L);
+		metadataResponse = accessController.getDeployment("123456", mockRequest);
+		assertTrue(metadataResponse.getStatusCode().equals(HttpStatus.NOT_MODIFIED));
+		// Renewing the Lease changes the validators
+		when(accessor.getLeaseLastModified(eq("123456"))).thenReturn(3000000L);
+		metadataResponse = accessController.getDeployment("123456", mockRequest);
+		assertTrue(metadataResponse.getStatusCode().equals(HttpStatus.OK));
+		when(mockRequest.getHeader(eq("If-Modified-Since"))).thenReturn(null);
 	}
 
 	/**
@@ -173,12 +821,12 @@ public class ControllerTests {
 	@Test
 	public void testGetData() {
 		// Mock no data Id
-		PiazzaResponse response = accessController.getData("").getBody();
+		PiazzaResponse response = accessController.getData("", mockRequest).getBody();
 		assertTrue(response instanceof ErrorResponse);
 
 		// Mock no data
 		when(accessor.getData(eq("123456"))).thenReturn(null);
-		response = accessController.getData("123456").getBody();
+		response = accessController.getData("123456", mockRequest).getBody();
 		assertTrue(response instanceof ErrorResponse);
 
 		// Proper mock
@@ -188,7 +836,7 @@ public class ControllerTests {
 		when(accessor.getData(eq("123456"))).thenReturn(mockData);
 
 		// Test
-		response = accessController.getData("123456").getBody();
+		response = accessController.getData("123456", mockRequest).getBody();
 
 		// Verify
 		assertTrue(response instanceof DataResourceResponse);
@@ -201,12 +849,12 @@ public class ControllerTests {
 	@Test
 	public void testGetDeployment() {
 		// Mock no deployment Id
-		PiazzaResponse response = accessController.getDeployment("").getBody();
+		PiazzaResponse response = accessController.getDeployment("", mockRequest).getBody();
 		assertTrue(response instanceof ErrorResponse);
 
 		// Mock no deployment
 		when(accessor.getDeployment(eq("123456"))).thenReturn(null);
-		response = accessController.getDeployment("123456").getBody();
+		response = accessController.getDeployment("123456", mockRequest).getBody();
 		assertTrue(response instanceof ErrorResponse);
 
 		// Proper mock
@@ -215,7 +863,7 @@ public class ControllerTests {
 		when(accessor.getDeployment(eq("123456"))).thenReturn(deployment);
 
 		// Test
-		response = accessController.getDeployment("123456").getBody();
+		response = accessController.getDeployment("123456", mockRequest).getBody();
 
 		// Verify
 		assertTrue(response instanceof DeploymentResponse);
@@ -316,5 +964,80 @@ public class ControllerTests {
 		// Verify
 		assertTrue(stats != null);
 		assertTrue(stats.keySet().contains("jobs"));
+		assertTrue(stats.keySet().contains("transformCache"));
+		assertTrue(stats.keySet().contains("bufferPools"));
+		assertTrue(stats.keySet().contains("geoServer"));
+	}
+
+	/**
+	 * Tests the compression of responses by Accept-Encoding
+	 */
+	@Test
+	public void testCompression() throws Exception {
+		CompressionFilter compressionFilter = new CompressionFilter();
+		ReflectionTestUtils.setField(compressionFilter, "ENABLED", true);
+		ReflectionTestUtils.setField(compressionFilter, "MIN_BYTES", 1024);
+		ReflectionTestUtils.setField(compressionFilter, "GZIP_LEVEL", 6);
+		ReflectionTestUtils.setField(compressionFilter, "ZSTD_LEVEL", 3);
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 1000; i++) {
+			json.append(String.format("{\"id\":%d},", i));
+		}
+		final byte[] largeJson = json.append("{}]").toString().getBytes();
+		final byte[] smallJson = "{\"id\":1}".getBytes();
+
+		// Test a large GeoJSON body, sent with gzip
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file/123456");
+		request.addHeader("Accept-Encoding", "gzip, deflate");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		compressionFilter.doFilter(request, response, getBodyChain("application/geo+json", largeJson));
+		assertTrue("gzip".equals(response.getHeader("Content-Encoding")));
+		assertTrue("Accept-Encoding".equals(response.getHeader("Vary")));
+		assertTrue(response.getContentAsByteArray().length < largeJson.length);
+		byte[] decompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())));
+		assertTrue(Arrays.equals(largeJson, decompressed));
+		assertTrue(CompressionFilter.isCompressed(request, MediaType.APPLICATION_JSON));
+		assertTrue(!CompressionFilter.isCompressed(request, MediaType.APPLICATION_OCTET_STREAM));
+
+		// Test a body below the minimum size, sent as it is
+		request = new MockHttpServletRequest("GET", "/file/123456");
+		request.addHeader("Accept-Encoding", "gzip");
+		response = new MockHttpServletResponse();
+		compressionFilter.doFilter(request, response, getBodyChain("application/json", smallJson));
+		assertTrue(response.getHeader("Content-Encoding") == null);
+		assertTrue(Arrays.equals(smallJson, response.getContentAsByteArray()));
+
+		// Test a binary body, sent as it is
+		request = new MockHttpServletRequest("GET", "/file/123456");
+		request.addHeader("Accept-Encoding", "gzip");
+		response = new MockHttpServletResponse();
+		compressionFilter.doFilter(request, response, getBodyChain("image/tiff", largeJson));
+		assertTrue(response.getHeader("Content-Encoding") == null);
+		assertTrue(response.getContentLength() == largeJson.length);
+		assertTrue(Arrays.equals(largeJson, response.getContentAsByteArray()));
+
+		// Test a client that does not accept compression
+		request = new MockHttpServletRequest("GET", "/file/123456");
+		response = new MockHttpServletResponse();
+		compressionFilter.doFilter(request, response, getBodyChain("application/json", largeJson));
+		assertTrue(response.getHeader("Content-Encoding") == null);
+		assertTrue(Arrays.equals(largeJson, response.getContentAsByteArray()));
+
+		// Test negotiation
+		assertTrue("zstd".equals(ReflectionTestUtils.invokeMethod(compressionFilter, "negotiate", "gzip, zstd")));
+		assertTrue("gzip".equals(ReflectionTestUtils.invokeMethod(compressionFilter, "negotiate", "gzip;q=1.0, zstd;q=0.5")));
+		assertTrue("gzip".equals(ReflectionTestUtils.invokeMethod(compressionFilter, "negotiate", "*")));
+		assertTrue(ReflectionTestUtils.invokeMethod(compressionFilter, "negotiate", "gzip;q=0, identity") == null);
+	}
+
+	/**
+	 * Gets a filter chain that writes a body of the specified type, declaring its length.
+	 */
+	private FilterChain getBodyChain(final String contentType, final byte[] body) {
+		return (request, response) -> {
+			response.setContentType(contentType);
+			response.setContentLength(body.length);
+			response.getOutputStream().write(body);
+		};
 	}
 }
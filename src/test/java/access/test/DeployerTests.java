@@ -18,10 +18,29 @@ package access.test;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+
 import model.data.DataResource;
 import model.data.deployment.Deployment;
+import model.data.deployment.DeploymentGroup;
+import model.data.location.FileLocation;
+import model.data.location.FolderShare;
 import model.data.location.S3FileStore;
 import model.data.type.GeoJsonDataType;
 import model.data.type.RasterDataType;
@@ -30,24 +49,42 @@ import model.data.type.WfsDataType;
 import model.job.metadata.SpatialMetadata;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import util.PiazzaLogger;
 import util.UUIDFactory;
+import access.cache.ExportCache;
 import access.database.Accessor;
 import access.deploy.Deployer;
+import access.deploy.DeploymentLocker;
+import access.deploy.DeploymentLocker.DeploymentLock;
+import access.deploy.GeoServerClient;
+import access.deploy.GroupDeployer;
+import access.deploy.MosaicDeployer;
+import access.deploy.RasterOptimizer;
+import access.deploy.RasterStager;
+import access.tile.TileGenerator;
 import access.util.AccessUtilities;
 
+import com.mongodb.MongoException;
+
 /**
  * Tests the Deployer; which handles GeoServer deployments.
  * 
@@ -64,9 +101,22 @@ public class DeployerTests {
 	@Mock
 	private Accessor accessor;
 	@Mock
+	private ExportCache exportCache;
+	@Mock
 	private AccessUtilities accessUtilities;
+	@Mock
+	private RasterStager rasterStager;
+	@Mock
+	private RasterOptimizer rasterOptimizer;
+	@Mock
+	private MosaicDeployer mosaicDeployer;
+	@Mock
+	private TileGenerator tileGenerator;
 	@InjectMocks
 	private Deployer deployer;
+	private GeoServerClient geoServerClient;
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
 
 	private DataResource geoJsonData = new DataResource();
 	private DataResource textData = new DataResource();
@@ -80,6 +130,19 @@ public class DeployerTests {
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
 
+		// GeoServer requests are sent through the mock RestTemplate
+		geoServerClient = new GeoServerClient();
+		ReflectionTestUtils.setField(geoServerClient, "GEOSERVER_HOST", "localhost");
+		ReflectionTestUtils.setField(geoServerClient, "GEOSERVER_PORT", "8080");
+		ReflectionTestUtils.setField(geoServerClient, "GEOSERVER_USERNAME", "admin");
+		ReflectionTestUtils.setField(geoServerClient, "GEOSERVER_PASSWORD", "geoserver");
+		ReflectionTestUtils.setField(geoServerClient, "MAX_CONNECTIONS", 5);
+		ReflectionTestUtils.setField(geoServerClient, "KEEPALIVE_SECONDS", 30L);
+		ReflectionTestUtils.setField(geoServerClient, "IDLE_SECONDS", 60L);
+		ReflectionTestUtils.invokeMethod(geoServerClient, "initialize");
+		ReflectionTestUtils.setField(geoServerClient, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(deployer, "geoServerClient", geoServerClient);
+
 		// UUID Factory always generates a GUID
 		when(uuidFactory.getUUID()).thenReturn("123456");
 
@@ -134,11 +197,274 @@ public class DeployerTests {
 		// Raster
 		Mockito.doReturn(new ResponseEntity<String>("OK", HttpStatus.CREATED)).when(restTemplate)
 				.exchange(anyString(), eq(HttpMethod.PUT), any(HttpEntity.class), eq(String.class));
-		Mockito.doReturn(new byte[100]).when(accessUtilities).getBytesForDataResource(any(DataResource.class));
+		Mockito.doReturn(new ByteArrayResource(new byte[100])).when(accessUtilities).getFileResource(any(DataResource.class));
 		deployment = deployer.createDeployment(rasterData);
 		assertTrue(deployment != null);
 		assertTrue(deployment.getDataId().equals("123456"));
 		assertTrue(deployment.getDeploymentId().equals("123456"));
+
+		// Verify the Raster was streamed, with its length
+		ArgumentCaptor<HttpEntity> upload = ArgumentCaptor.forClass(HttpEntity.class);
+		verify(restTemplate).exchange(anyString(), eq(HttpMethod.PUT), upload.capture(), eq(String.class));
+		assertTrue(upload.getValue().getBody() instanceof ByteArrayResource);
+		assertTrue(upload.getValue().getHeaders().getContentLength() == 100);
+	}
+
+	/**
+	 * Tests the deployment of rasters staged on the volume shared with GeoServer
+	 */
+	@Test
+	public void testStagedRaster() throws Exception {
+		// Mock
+		when(rasterStager.isEnabled()).thenReturn(true);
+		when(rasterStager.stage(rasterData, null)).thenReturn("/geoserver/rasters/123456/testfile.tif");
+		Mockito.doReturn(new ResponseEntity<String>("OK", HttpStatus.CREATED)).when(restTemplate)
+				.exchange(anyString(), eq(HttpMethod.PUT), any(HttpEntity.class), eq(String.class));
+
+		// Test
+		Deployment deployment = deployer.createDeployment(rasterData);
+		assertTrue(deployment.getDataId().equals("123456"));
+
+		// Verify only the path was sent
+		ArgumentCaptor<HttpEntity> register = ArgumentCaptor.forClass(HttpEntity.class);
+		verify(restTemplate).exchange(endsWith("/coveragestores/123456/external.geotiff"), eq(HttpMethod.PUT), register.capture(),
+				eq(String.class));
+		assertTrue("file:/geoserver/rasters/123456/testfile.tif".equals(register.getValue().getBody()));
+		verify(accessUtilities, Mockito.never()).getFileResource(any(DataResource.class));
+	}
+
+	/**
+	 * Tests staging raster files on the shared volume
+	 */
+	@Test
+	public void testRasterStaging() throws Exception {
+		RasterStager stager = new RasterStager();
+		ReflectionTestUtils.setField(stager, "ENABLED", true);
+		ReflectionTestUtils.setField(stager, "STAGING_DIRECTORY", folder.newFolder("staging").getAbsolutePath());
+		ReflectionTestUtils.setField(stager, "GEOSERVER_DIRECTORY", "/geoserver/rasters");
+		ReflectionTestUtils.setField(stager, "logger", logger);
+
+		// Stage a file from a folder share
+		File source = folder.newFile("elevation.tif");
+		Files.write(source.toPath(), new byte[100]);
+		DataResource localData = new DataResource();
+		localData.setDataId("654321");
+		RasterDataType rasterType = new RasterDataType();
+		FolderShare location = new FolderShare();
+		location.filePath = source.getAbsolutePath();
+		rasterType.location = location;
+		localData.dataType = rasterType;
+		String path = stager.stage(localData);
+		assertTrue("/geoserver/rasters/654321/elevation.tif".equals(path));
+		File staged = new File(folder.getRoot(), "staging/654321/elevation.tif");
+		assertTrue(staged.length() == 100);
+
+		// Staged only once
+		assertTrue(path.equals(stager.stage(localData)));
+		assertTrue(staged.getParentFile().list().length == 1);
+
+		// Remove
+		stager.remove("654321");
+		assertTrue(!staged.getParentFile().exists());
+	}
+
+	/**
+	 * Tests rewriting rasters as tiled GeoTIFFs with overviews
+	 */
+	@Test
+	public void testRasterOptimization() throws Exception {
+		RasterOptimizer optimizer = new RasterOptimizer();
+		ReflectionTestUtils.setField(optimizer, "ENABLED", true);
+		ReflectionTestUtils.setField(optimizer, "WORK_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(optimizer, "TILE_SIZE", 64);
+		ReflectionTestUtils.setField(optimizer, "COMPRESSION", "Deflate");
+		ReflectionTestUtils.setField(optimizer, "logger", logger);
+		ReflectionTestUtils.setField(optimizer, "accessUtilities", accessUtilities);
+		File source = new File("src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif");
+		when(accessUtilities.getLocalFile(eq("123456"), any(FileLocation.class))).thenReturn(source);
+
+		// Test
+		File optimized = optimizer.optimize(rasterData);
+
+		// Verify the rewrite is tiled, with overviews, at the full size of the source
+		ImageReader reader = new TIFFImageReaderSpi().createReaderInstance();
+		try (ImageInputStream optimizedStream = ImageIO.createImageInputStream(optimized);
+				ImageInputStream sourceStream = ImageIO.createImageInputStream(source)) {
+			reader.setInput(sourceStream);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			reader.setInput(optimizedStream);
+			assertTrue(reader.isImageTiled(0));
+			assertTrue(reader.getTileWidth(0) == 64);
+			assertTrue(reader.getNumImages(true) > 1);
+			assertTrue((reader.getWidth(0) == width) && (reader.getHeight(0) == height));
+			assertTrue((reader.getWidth(1) >= width / 2) && (reader.getWidth(1) <= (width + 1) / 2));
+		} finally {
+			reader.dispose();
+		}
+
+		// An optimized file is not rewritten again
+		when(accessUtilities.getLocalFile(eq("123456"), any(FileLocation.class))).thenReturn(optimized);
+		assertTrue(optimizer.optimize(rasterData) == null);
+	}
+
+	/**
+	 * Tests that a second Deployment of the same Data is rejected, and the first is used
+	 */
+	@Test
+	public void testDuplicateDeployment() throws Exception {
+		// Mock
+		Mockito.doReturn(new ResponseEntity<String>("OK", HttpStatus.CREATED)).when(restTemplate)
+				.exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class));
+		Deployment existing = new Deployment("654321", "123456", "localhost", "8080", "123456", "Test");
+		Mockito.doThrow(new MongoException(11000, "E11000 duplicate key error")).when(accessor).insertDeployment(any(Deployment.class));
+		when(accessor.getDeploymentByDataId(eq("123456"))).thenReturn(existing);
+
+		// Test
+		Deployment deployment = deployer.createDeployment(geoJsonData);
+		assertTrue(deployment == existing);
+	}
+
+	/**
+	 * Tests that Jobs for the same Data deploy it one at a time
+	 */
+	@Test
+	public void testDeploymentLocking() throws Exception {
+		DeploymentLocker locker = new DeploymentLocker();
+		ReflectionTestUtils.setField(locker, "LEASE_SECONDS", 60L);
+		ReflectionTestUtils.setField(locker, "WAIT_SECONDS", 10L);
+		ReflectionTestUtils.setField(locker, "POLL_MILLIS", 10L);
+		ReflectionTestUtils.setField(locker, "accessor", accessor);
+		ReflectionTestUtils.setField(locker, "logger", logger);
+
+		// Another instance holds the lock at first
+		when(accessor.acquireDeploymentLock(eq("123456"), anyString(), eq(60000L))).thenReturn(false).thenReturn(true);
+		DeploymentLock lock = locker.lock("123456");
+		verify(accessor, Mockito.times(2)).acquireDeploymentLock(eq("123456"), anyString(), eq(60000L));
+
+		// Another Job in this instance waits for the lock
+		AtomicBoolean locked = new AtomicBoolean();
+		Thread waiter = new Thread(() -> {
+			try {
+				locker.unlock(locker.lock("123456"));
+				locked.set(true);
+			} catch (Exception exception) {
+				exception.printStackTrace();
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		assertTrue(!locked.get());
+
+		// Jobs for other Data are not held up
+		when(accessor.acquireDeploymentLock(eq("654321"), anyString(), eq(60000L))).thenReturn(true);
+		locker.unlock(locker.lock("654321"));
+
+		// The lease is renewed while the lock is held, and the lock is verified before the Deployment is saved
+		when(accessor.renewDeploymentLock(eq("123456"), anyString(), eq(60000L))).thenReturn(true);
+		locker.renewLocks();
+		locker.verify(lock);
+		verify(accessor, Mockito.times(2)).renewDeploymentLock(eq("123456"), anyString(), eq(60000L));
+
+		locker.unlock(lock);
+		waiter.join(5000);
+		assertTrue(locked.get());
+		verify(accessor, Mockito.times(2)).releaseDeploymentLock(eq("123456"), anyString());
+
+		// A lock whose lease lapsed fails verification
+		lock = locker.lock("123456");
+		when(accessor.renewDeploymentLock(eq("123456"), anyString(), eq(60000L))).thenReturn(false);
+		locker.renewLocks();
+		try {
+			locker.verify(lock);
+			assertTrue(false);
+		} catch (Exception exception) {
+			assertTrue(exception.getMessage().contains("lapsed"));
+		} finally {
+			locker.unlock(lock);
+		}
+	}
+
+	/**
+	 * Tests deploying rasters as granules of a shared mosaic
+	 */
+	@Test
+	public void testMosaicDeployment() throws Exception {
+		RasterStager stager = new RasterStager();
+		ReflectionTestUtils.setField(stager, "ENABLED", true);
+		ReflectionTestUtils.setField(stager, "STAGING_DIRECTORY", folder.newFolder("staging").getAbsolutePath());
+		ReflectionTestUtils.setField(stager, "GEOSERVER_DIRECTORY", "/geoserver/rasters");
+		ReflectionTestUtils.setField(stager, "logger", logger);
+		MosaicDeployer mosaics = new MosaicDeployer();
+		ReflectionTestUtils.setField(mosaics, "ENABLED", true);
+		ReflectionTestUtils.setField(mosaics, "logger", logger);
+		ReflectionTestUtils.setField(mosaics, "uuidFactory", uuidFactory);
+		ReflectionTestUtils.setField(mosaics, "rasterStager", stager);
+		ReflectionTestUtils.setField(mosaics, "geoServerClient", geoServerClient);
+		DeploymentLocker locker = Mockito.mock(DeploymentLocker.class);
+		ReflectionTestUtils.setField(mosaics, "deploymentLocker", locker);
+		assertTrue(mosaics.isEnabled());
+
+		// Mock. The mosaic does not exist yet.
+		Mockito.doThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND)).when(restTemplate)
+				.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+		File source = new File("src" + File.separator + "test" + File.separator + "resources" + File.separator + "elevation.tif");
+		File copy = folder.newFile("copy.tif");
+		Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		// Test
+		Deployment deployment = mosaics.deploy(rasterData, copy);
+		String mosaicName = "piazza_mosaic_4326_1b_float32";
+		assertTrue(mosaicName.equals(deployment.getLayer()));
+		assertTrue(MosaicDeployer.isMosaicDeployment(deployment));
+
+		// Verify the granule is named after its Data Id, and the mosaic was created from its directory
+		File mosaicDirectory = stager.getMosaicDirectory(mosaicName);
+		assertTrue(new File(mosaicDirectory, "123456.tif").length() == source.length());
+		assertTrue(new File(mosaicDirectory, "indexer.properties").exists());
+		ArgumentCaptor<HttpEntity> create = ArgumentCaptor.forClass(HttpEntity.class);
+		verify(restTemplate).exchange(endsWith("/coveragestores/" + mosaicName + "/external.imagemosaic?configure=all"),
+				eq(HttpMethod.PUT), create.capture(), eq(String.class));
+		assertTrue(("file:/geoserver/rasters/mosaics/" + mosaicName).equals(create.getValue().getBody()));
+
+		// Verify the mosaic was created under its lock, and the granule was not harvested again
+		verify(locker).lock(eq(mosaicName));
+		verify(locker).unlock(any(DeploymentLock.class));
+		verify(restTemplate, Mockito.never()).exchange(endsWith("/coveragestores/" + mosaicName + "/external.imagemosaic"),
+				eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class));
+
+		// Undeploy removes only the granule
+		mosaics.undeploy(deployment);
+		assertTrue(!new File(mosaicDirectory, "123456.tif").exists());
+		assertTrue(new File(mosaicDirectory, "indexer.properties").exists());
+	}
+
+	/**
+	 * Tests the GeoServer client's requests and statistics
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGeoServerClient() throws Exception {
+		// Mock
+		Mockito.doReturn(new ResponseEntity<String>("OK", HttpStatus.OK)).when(restTemplate)
+				.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+		// Test
+		String url = geoServerClient.getRestUrl(GeoServerClient.LAYER_PATH + ".json", "123456");
+		assertTrue("http://localhost:8080/geoserver/rest/layers/123456.json".equals(url));
+		assertTrue(deployer.doesGeoServerLayerExist("123456"));
+		assertTrue(geoServerClient.getFeatureTypeTemplate().contains("featureType"));
+
+		// Verify the credentials were sent
+		ArgumentCaptor<HttpEntity> request = ArgumentCaptor.forClass(HttpEntity.class);
+		verify(restTemplate).exchange(eq(url), eq(HttpMethod.GET), request.capture(), eq(String.class));
+		assertTrue("Basic YWRtaW46Z2Vvc2VydmVy".equals(request.getValue().getHeaders().getFirst(HttpHeaders.AUTHORIZATION)));
+
+		// Verify the latency of the operation was recorded, with the pool
+		Map<String, Object> statistics = geoServerClient.getStatistics();
+		Map<String, Object> operations = (Map<String, Object>) statistics.get("operations");
+		assertTrue(((Map<String, Object>) operations.get("getLayer")).get("count").equals(1L));
+		assertTrue(((Map<String, Object>) statistics.get("pool")).get("max").equals(5));
 	}
 
 	/**
@@ -161,6 +487,29 @@ public class DeployerTests {
 
 		// Test. Expect no exceptions.
 		deployer.undeploy("123456");
+
+		// Verify the cached exports and tiles, and staged raster of the Data were dropped
+		verify(exportCache).remove("123456");
+		verify(tileGenerator).remove("123456");
+		verify(rasterStager).remove("123456");
+	}
+
+	/**
+	 * Tests undeploying the granule of a mosaic, which leaves the mosaic's layer in place
+	 */
+	@Test
+	public void testMosaicUndeploy() throws Exception {
+		// Mock
+		Deployment mockDeployment = new Deployment("123456", "123456", "localhost", "8080", "piazza_mosaic_4326_1b_byte", "Test");
+		when(accessor.getDeployment(eq("123456"))).thenReturn(mockDeployment);
+
+		// Test
+		deployer.undeploy("123456");
+
+		// Verify only the granule was removed
+		verify(mosaicDeployer).undeploy(mockDeployment);
+		verify(restTemplate, Mockito.never()).exchange(anyString(), eq(HttpMethod.DELETE), any(HttpEntity.class), eq(String.class));
+		verify(accessor).deleteDeployment(mockDeployment);
 	}
 
 	/**
@@ -190,4 +539,38 @@ public class DeployerTests {
 		exist = deployer.doesDeploymentExist("123456");
 		assertTrue(exist);
 	}
+
+	/**
+	 * Tests that the Deployments of granules are not added to Deployment Groups, which would publish the whole mosaic
+	 */
+	@Test
+	public void testMosaicDeploymentGroup() throws Exception {
+		GroupDeployer groupDeployer = new GroupDeployer();
+		ReflectionTestUtils.setField(groupDeployer, "logger", logger);
+		ReflectionTestUtils.setField(groupDeployer, "uuidFactory", uuidFactory);
+		ReflectionTestUtils.setField(groupDeployer, "accessor", accessor);
+		ReflectionTestUtils.setField(groupDeployer, "geoServerClient", geoServerClient);
+		Deployment layerDeployment = new Deployment("1", "1", "localhost", "8080", "1", "Test");
+		Deployment mosaicDeployment = new Deployment("2", "2", "localhost", "8080", "piazza_mosaic_4326_1b_float32", "Test");
+
+		// Test creating a group
+		try {
+			groupDeployer.createDeploymentGroup(Arrays.asList(layerDeployment, mosaicDeployment), "tester");
+			assertTrue(false);
+		} catch (IllegalArgumentException exception) {
+			assertTrue(exception.getMessage().contains("CQL_FILTER=dataId='2'"));
+		}
+
+		// Test adding to an existing group
+		try {
+			groupDeployer.updateDeploymentGroup(new DeploymentGroup("654321", "tester"), Arrays.asList(mosaicDeployment));
+			assertTrue(false);
+		} catch (IllegalArgumentException exception) {
+			assertTrue(exception.getMessage().contains("piazza_mosaic_4326_1b_float32"));
+		}
+
+		// Verify neither GeoServer nor the database was touched
+		verify(restTemplate, Mockito.never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class), eq(String.class));
+		verify(accessor, Mockito.never()).insertDeploymentGroup(any(DeploymentGroup.class));
+	}
 }
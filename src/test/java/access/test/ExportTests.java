@@ -0,0 +1,387 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package access.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.store.ContentFeatureCollection;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.VirtualTable;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+import access.export.ExportFormat;
+import access.export.ExportOptions;
+import access.export.FeatureWriter;
+import access.export.FlatGeobufWriter;
+import access.export.GeometryReducer;
+import access.export.ParallelExporter;
+
+/**
+ * Tests the reduction of exported geometries, the encoding of FlatGeobuf, and the partitioning of large exports.
+ */
+public class ExportTests {
+	/**
+	 * Tests simplifying and rounding a geometry
+	 */
+	@Test
+	public void testGeometryReducer() throws Exception {
+		SimpleFeatureType featureType = DataUtilities.createType("Test", "the_geom:LineString:srid=4326,name:String");
+		Geometry line = new WKTReader().read("LINESTRING (0 0, 1 0.01, 2 -0.01, 3 0.01, 4 0.123456)");
+		SimpleFeature feature = SimpleFeatureBuilder.build(featureType, new Object[] { line, "line" }, "Test.1");
+
+		// Simplify
+		SimpleFeature reduced = new GeometryReducer(0.1, false, null).transform(feature);
+		assertTrue(((Geometry) reduced.getDefaultGeometry()).getNumPoints() == 2);
+		assertTrue(reduced.getID().equals("Test.1"));
+		assertTrue(reduced.getAttribute("name").equals("line"));
+		// The original feature is unchanged
+		assertTrue(((Geometry) feature.getDefaultGeometry()).getNumPoints() == 5);
+
+		// Round
+		reduced = new GeometryReducer(0, false, 2).transform(feature);
+		Geometry rounded = (Geometry) reduced.getDefaultGeometry();
+		assertTrue(rounded.getNumPoints() == 5);
+		assertTrue(rounded.getCoordinates()[4].y == 0.12);
+		assertTrue(((Geometry) feature.getDefaultGeometry()).getCoordinates()[4].y == 0.123456);
+
+		// Simplify while preserving topology
+		reduced = new GeometryReducer(0.1, true, null).transform(feature);
+		assertTrue(((Geometry) reduced.getDefaultGeometry()).getNumPoints() == 2);
+	}
+
+	/**
+	 * Tests that a reduction is only applied when one is requested
+	 */
+	@Test
+	public void testGeometryReducerOptions() {
+		ExportOptions exportOptions = new ExportOptions();
+		assertTrue(exportOptions.getGeometryReducer(true) == null);
+		exportOptions.setPrecision(3);
+		assertTrue(exportOptions.getGeometryReducer(false) == null);
+		assertTrue(exportOptions.getGeometryReducer(true) != null);
+		exportOptions.setPrecision(null);
+		exportOptions.setSimplify(0.5);
+		assertTrue(exportOptions.getGeometryReducer(false) != null);
+	}
+
+	/**
+	 * Tests splitting a table into ranges of its primary key
+	 */
+	@Test
+	public void testParallelPartitions() throws Exception {
+		ParallelExporter exporter = getParallelExporter(1, 64);
+		JDBCDataStore dataStore = Mockito.mock(JDBCDataStore.class);
+
+		// An empty table, and a table of one key, are not partitioned
+		mockKeyRange(dataStore, null, 0);
+		assertTrue(getPartitionBounds(exporter, dataStore) == null);
+		mockKeyRange(dataStore, 7L, 7);
+		assertTrue(getPartitionBounds(exporter, dataStore) == null);
+
+		// Partitions of a single key each
+		mockKeyRange(dataStore, 1L, 3);
+		assertTrue(getPartitionBounds(exporter, dataStore).equals("1-2,2-3,3-4"));
+
+		// The maximum at the end of a partition, and one past it
+		ReflectionTestUtils.setField(exporter, "PARTITION_ROWS", 5L);
+		mockKeyRange(dataStore, 0L, 9);
+		assertTrue(getPartitionBounds(exporter, dataStore).equals("0-5,5-10"));
+		mockKeyRange(dataStore, 0L, 10);
+		assertTrue(getPartitionBounds(exporter, dataStore).equals("0-4,4-8,8-11"));
+
+		// The number of partitions is capped, widening them
+		ReflectionTestUtils.setField(exporter, "MAX_PARTITIONS", 2);
+		mockKeyRange(dataStore, 1L, 100);
+		assertTrue(getPartitionBounds(exporter, dataStore).equals("1-51,51-101"));
+
+		// Ordered partitions are sorted by the key; unordered ones are not
+		mockKeyRange(dataStore, 1L, 100);
+		List<Query> partitions = ReflectionTestUtils.invokeMethod(exporter, "getPartitions", dataStore, "Test", new Query("Test"), true);
+		assertTrue(partitions.get(0).getSortBy()[0].getPropertyName().getPropertyName().equals("id"));
+		mockKeyRange(dataStore, 1L, 100);
+		partitions = ReflectionTestUtils.invokeMethod(exporter, "getPartitions", dataStore, "Test", new Query("Test"), false);
+		assertTrue((partitions.get(0).getSortBy() == null) || (partitions.get(0).getSortBy().length == 0));
+	}
+
+	/**
+	 * Tests writing partitions in key order, and that the fragments of a failed export are deleted
+	 */
+	@Test
+	public void testParallelExport() throws Exception {
+		ParallelExporter exporter = getParallelExporter(2, 64);
+		JDBCDataStore dataStore = Mockito.mock(JDBCDataStore.class);
+		SimpleFeatureType featureType = DataUtilities.createType("Test", "the_geom:Point:srid=4326,name:String");
+
+		// Mock a partition of one feature for each range, named after the start of the range
+		Map<String, ContentFeatureCollection> collections = new HashMap<String, ContentFeatureCollection>();
+		for (String lower : new String[] { "1", "3", "5" }) {
+			SimpleFeature feature = SimpleFeatureBuilder.build(featureType,
+					new Object[] { new WKTReader().read("POINT (1 1)"), "partition" + lower }, "partition_of_Test." + lower);
+			ContentFeatureCollection collection = Mockito.mock(ContentFeatureCollection.class);
+			when(collection.features()).thenReturn(DataUtilities.collection(feature).features());
+			collections.put(lower, collection);
+		}
+		ContentFeatureSource featureSource = Mockito.mock(ContentFeatureSource.class);
+		when(dataStore.getFeatureSource(anyString())).thenReturn(featureSource);
+		when(featureSource.getFeatures(any(Query.class))).thenAnswer(invocation -> {
+			Query partition = (Query) invocation.getArguments()[0];
+			Map<?, ?> parameters = (Map<?, ?>) partition.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS);
+			return collections.get(parameters.get("lower"));
+		});
+
+		// Test the partitions are written in key order
+		mockKeyRange(dataStore, 1L, 6);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		FeatureWriter featureWriter = ExportFormat.GEOJSON.createWriter(outputStream, null, null);
+		featureWriter.writeStart(featureType);
+		assertTrue(exporter.write(dataStore, "Test", new Query("Test"), featureWriter, true));
+		featureWriter.writeEnd();
+		String geoJson = outputStream.toString("UTF-8");
+		assertTrue(geoJson.indexOf("partition1") < geoJson.indexOf("partition3"));
+		assertTrue(geoJson.indexOf("partition3") < geoJson.indexOf("partition5"));
+		assertTrue(geoJson.contains("\"Test.5\""));
+
+		// Test a failed partition fails the export, and leaves no fragments behind
+		int fragments = countFragments();
+		when(collections.get("3").features()).thenThrow(new RuntimeException("Connection lost"));
+		mockKeyRange(dataStore, 1L, 6);
+		featureWriter = ExportFormat.GEOJSON.createWriter(new ByteArrayOutputStream(), null, null);
+		featureWriter.writeStart(featureType);
+		try {
+			exporter.write(dataStore, "Test", new Query("Test"), featureWriter, true);
+			assertTrue(false);
+		} catch (IOException exception) {
+			assertTrue(exception.getMessage().contains("Connection lost"));
+		}
+		assertTrue(countFragments() == fragments);
+		ReflectionTestUtils.invokeMethod(exporter, "close");
+	}
+
+	/**
+	 * Tests decoding an indexed FlatGeobuf export: its header, its index, and its features
+	 */
+	@Test
+	public void testFlatGeobufDecoding() throws Exception {
+		SimpleFeatureType featureType = DataUtilities.createType("Test", "the_geom:Point:srid=4326,name:String,count:Integer");
+		Object[][] rows = { { "POINT (1 2)", "first", 1 }, { "POINT (5 6)", "second", 2 }, { "POINT (3 4)", "third", null } };
+		WKTReader wktReader = new WKTReader();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (FlatGeobufWriter writer = new FlatGeobufWriter(outputStream, true)) {
+			writer.writeStart(featureType);
+			for (int i = 0; i < rows.length; i++) {
+				Object[] attributes = { wktReader.read((String) rows[i][0]), rows[i][1], rows[i][2] };
+				writer.writeFeature(SimpleFeatureBuilder.build(featureType, attributes, "Test." + (i + 1)));
+			}
+			writer.writeEnd();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+		// Verify the header, which follows the magic bytes
+		int headerStart = 8;
+		int header = getRoot(buffer, headerStart);
+		assertTrue(getString(buffer, getField(buffer, header, 0)).equals("Test"));
+		assertTrue(buffer.get(getField(buffer, header, 2)) == 1);
+		assertTrue(buffer.getLong(getField(buffer, header, 8)) == 3);
+		// The node size is the default of 16, so it is not written
+		assertTrue(getField(buffer, header, 9) == 0);
+		int envelope = getReferenced(buffer, getField(buffer, header, 1));
+		assertTrue(buffer.getInt(envelope) == 4);
+		assertTrue((buffer.getDouble(envelope + 4) == 1) && (buffer.getDouble(envelope + 12) == 2));
+		assertTrue((buffer.getDouble(envelope + 20) == 5) && (buffer.getDouble(envelope + 28) == 6));
+		int columns = getReferenced(buffer, getField(buffer, header, 7));
+		assertTrue(buffer.getInt(columns) == 2);
+		int column = getReferenced(buffer, columns + 4);
+		assertTrue(getString(buffer, getField(buffer, column, 0)).equals("name"));
+		assertTrue(buffer.get(getField(buffer, column, 1)) == 11);
+		column = getReferenced(buffer, columns + 8);
+		assertTrue(getString(buffer, getField(buffer, column, 0)).equals("count"));
+		assertTrue(buffer.get(getField(buffer, column, 1)) == 5);
+		int crs = getReferenced(buffer, getField(buffer, header, 10));
+		assertTrue(buffer.getInt(getField(buffer, crs, 1)) == 4326);
+
+		// Verify the root of the index covers the extent, and points at the three leaves after it
+		int indexStart = headerStart + 4 + buffer.getInt(headerStart);
+		int featuresStart = indexStart + 4 * 40;
+		assertTrue((buffer.getDouble(indexStart) == 1) && (buffer.getDouble(indexStart + 8) == 2));
+		assertTrue((buffer.getDouble(indexStart + 16) == 5) && (buffer.getDouble(indexStart + 24) == 6));
+		assertTrue(buffer.getLong(indexStart + 32) == 1);
+
+		// Verify each leaf points at the feature within its bounds, and the features follow each other to the end
+		long nextOffset = 0;
+		for (int leaf = 1; leaf <= 3; leaf++) {
+			int node = indexStart + leaf * 40;
+			long offset = buffer.getLong(node + 32);
+			assertTrue(offset == nextOffset);
+			int featureStart = featuresStart + (int) offset;
+			nextOffset = offset + 4 + buffer.getInt(featureStart);
+			int feature = getRoot(buffer, featureStart);
+			int geometry = getReferenced(buffer, getField(buffer, feature, 0));
+			int xy = getReferenced(buffer, getField(buffer, geometry, 1));
+			assertTrue(buffer.getInt(xy) == 2);
+			double x = buffer.getDouble(xy + 4);
+			double y = buffer.getDouble(xy + 12);
+			assertTrue((x == buffer.getDouble(node)) && (y == buffer.getDouble(node + 8)));
+			assertTrue((x == buffer.getDouble(node + 16)) && (y == buffer.getDouble(node + 24)));
+
+			// Verify the properties of one feature: the name, then the count, each after its column index
+			if (x == 5) {
+				int properties = getReferenced(buffer, getField(buffer, feature, 1));
+				assertTrue(buffer.getInt(properties) == 2 + 4 + 6 + 2 + 4);
+				int position = properties + 4;
+				assertTrue((buffer.getShort(position) == 0) && (buffer.getInt(position + 2) == 6));
+				byte[] name = new byte[6];
+				for (int i = 0; i < name.length; i++) {
+					name[i] = buffer.get(position + 6 + i);
+				}
+				assertTrue(new String(name, StandardCharsets.UTF_8).equals("second"));
+				position += 6 + name.length;
+				assertTrue((buffer.getShort(position) == 1) && (buffer.getInt(position + 2) == 2));
+			}
+		}
+		assertTrue(featuresStart + nextOffset == buffer.limit());
+	}
+
+	/**
+	 * Gets the position of the root table of a size-prefixed FlatBuffer
+	 */
+	private static int getRoot(ByteBuffer buffer, int start) {
+		return getReferenced(buffer, start + 4);
+	}
+
+	/**
+	 * Gets the position of a field of a FlatBuffers table, or 0 if the field is not written
+	 */
+	private static int getField(ByteBuffer buffer, int table, int field) {
+		int vtable = table - buffer.getInt(table);
+		int entry = 4 + 2 * field;
+		if (entry >= buffer.getShort(vtable)) {
+			return 0;
+		}
+		int offset = buffer.getShort(vtable + entry);
+		return (offset == 0) ? 0 : table + offset;
+	}
+
+	/**
+	 * Follows the offset held at a position to the table, vector or string it refers to
+	 */
+	private static int getReferenced(ByteBuffer buffer, int position) {
+		return position + buffer.getInt(position);
+	}
+
+	private static String getString(ByteBuffer buffer, int position) {
+		int string = getReferenced(buffer, position);
+		byte[] bytes = new byte[buffer.getInt(string)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(string + 4 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private ParallelExporter getParallelExporter(int partitionRows, int maxPartitions) {
+		ParallelExporter exporter = new ParallelExporter();
+		ReflectionTestUtils.setField(exporter, "THREADS", 2);
+		ReflectionTestUtils.setField(exporter, "PARTITION_ROWS", (long) partitionRows);
+		ReflectionTestUtils.setField(exporter, "MAX_PARTITIONS", maxPartitions);
+		ReflectionTestUtils.invokeMethod(exporter, "initialize");
+		return exporter;
+	}
+
+	/**
+	 * Mocks a table whose integer primary key "id" runs from the minimum to the maximum, or that is empty if the
+	 * minimum is null. The partition table of the table is taken to exist.
+	 */
+	private void mockKeyRange(JDBCDataStore dataStore, Long minimum, long maximum) throws Exception {
+		ResultSet keyResult = Mockito.mock(ResultSet.class);
+		when(keyResult.next()).thenReturn(true, false);
+		when(keyResult.getString(1)).thenReturn("id");
+		when(keyResult.getString(2)).thenReturn("integer");
+		PreparedStatement keyStatement = Mockito.mock(PreparedStatement.class);
+		when(keyStatement.executeQuery()).thenReturn(keyResult);
+		ResultSet rangeResult = Mockito.mock(ResultSet.class);
+		when(rangeResult.next()).thenReturn(true);
+		when(rangeResult.getLong(1)).thenReturn((minimum != null) ? minimum : 0L);
+		when(rangeResult.wasNull()).thenReturn(minimum == null);
+		when(rangeResult.getLong(2)).thenReturn(maximum);
+		Statement rangeStatement = Mockito.mock(Statement.class);
+		when(rangeStatement.executeQuery(anyString())).thenReturn(rangeResult);
+		Connection connection = Mockito.mock(Connection.class);
+		when(connection.prepareStatement(anyString())).thenReturn(keyStatement);
+		when(connection.createStatement()).thenReturn(rangeStatement);
+		DataSource dataSource = Mockito.mock(DataSource.class);
+		when(dataSource.getConnection()).thenReturn(connection);
+		when(dataStore.getDataSource()).thenReturn(dataSource);
+		when(dataStore.getDatabaseSchema()).thenReturn("public");
+		when(dataStore.getVirtualTables()).thenReturn(Collections.singletonMap("partition_of_Test", (VirtualTable) null));
+	}
+
+	/**
+	 * Gets the key ranges of the partitions of the table "Test", as comma-separated lower-upper bounds
+	 */
+	private String getPartitionBounds(ParallelExporter exporter, JDBCDataStore dataStore) {
+		List<Query> partitions = ReflectionTestUtils.invokeMethod(exporter, "getPartitions", dataStore, "Test", new Query("Test"), true);
+		if (partitions == null) {
+			return null;
+		}
+		List<String> bounds = new ArrayList<String>();
+		for (Query partition : partitions) {
+			Map<?, ?> parameters = (Map<?, ?>) partition.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS);
+			bounds.add(parameters.get("lower") + "-" + parameters.get("upper"));
+		}
+		return String.join(",", bounds);
+	}
+
+	/**
+	 * Counts the fragment files of partitions in the temporary directory
+	 */
+	private int countFragments() {
+		File[] fragments = new File(System.getProperty("java.io.tmpdir"))
+				.listFiles((directory, name) -> name.startsWith("partition") && name.endsWith(".tmp"));
+		return (fragments != null) ? fragments.length : 0;
+	}
+}
@@ -19,6 +19,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.concurrent.Future;
@@ -43,6 +44,7 @@ import org.mockito.stubbing.Answer;
 import util.PiazzaLogger;
 import access.database.Accessor;
 import access.deploy.Deployer;
+import access.deploy.DeploymentLocker;
 import access.deploy.Leaser;
 import access.messaging.AccessWorker;
 
@@ -62,6 +64,8 @@ public class WorkerTests {
 	@Mock
 	private Leaser leaser;
 	@Mock
+	private DeploymentLocker deploymentLocker;
+	@Mock
 	private PiazzaLogger logger;
 	@Mock
 	private Producer<String, String> producer;
@@ -118,6 +122,7 @@ public class WorkerTests {
 		// Test when a current lease doesn't exist - new is created
 		when(deployer.doesDeploymentExist(eq("123456"))).thenReturn(false);
 		worker.run(mockRecord, producer, callback);
+		verify(deploymentLocker).lock("123456");
 
 		// Test inner exceptions during deployment
 		accessJob.deploymentType = "Mock";